@@ -19,74 +19,128 @@ This is an utility activity class  to facilitate personal profile creation. This
  6. Initiate model training
  7. Initiate model and data versioning
  8. Replace old model with new one.
+ 9. Journal the upload on disk so an enrollment interrupted by the system resumes where it stopped
+ 10. Optionally upload LBP descriptors of the faces instead of JPEG crops (FACE_PAYLOAD=lbp)
+ 11. Find faces with the detector backend of the config file (FACE_DETECTOR=haar, lbp or dnn), optionally
+     calibrating all backends on the picked video first (DETECTOR_CALIBRATION=on)
+ 12. Optionally time every stage of an enrollment and export a summary of it (METRICS=on)
+ 13. Remember the id of every person the server answered, a known person's enrollment starts decoding at once
+ 14. Bulk import: enroll every (person, video) pair of a list passed in the "bulkimport" extra concurrently on
+     one work-stealing scheduler sized to the CPU cores, report the overall throughput and train them with one job at the end
+ 15. Optionally write sampled decoded frames to storage for debugging, in the background (DEBUG_FRAMES=on)
 
- Note: Volley package has been used to make asynchronous communication easy
+ Note: Volley package has been used to make asynchronous communication easy. All calls share the
+ queue of SafeAccessClient
  */
 
 package edu.memphis.com.safeaccess;
-import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
-import android.util.Base64;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 import com.android.volley.Request;
-import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
 import com.github.hiteshsondhi88.libffmpeg.FFmpeg;
 import com.github.hiteshsondhi88.libffmpeg.FFmpegLoadBinaryResponseHandler;
 import com.github.hiteshsondhi88.libffmpeg.exceptions.FFmpegNotSupportedException;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.android.Utils;
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
 import org.opencv.core.MatOfInt;
-import org.opencv.core.MatOfRect;
 import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.objdetect.CascadeClassifier;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import wseemann.media.FFmpegMediaMetadataRetriever; //external packages to read and convert multimedia files
 public class AddPersonFromGallery extends AppCompatActivity { //main class
-    private CascadeClassifier      mJavaDetector; //Helper class used to detect faces from the images
     private static final String    TAG= "OCVSample::Activity"; // Tag to filter logs
     private Text2Speech txt2Speech;// used to convert text to speech for reading out feedback
     private static String SERVER_URL = "";//server url to post data. Picked from config file
     private static String MODEL_URL ="";//server url where model is running. picked from config file
     private static int RESIZE_WIDTH=0;//width resize large face image. Picked from config file
     private static int RESIZE_HEIGHT=0;// resize large face image. Picked from config file
-    private volatile boolean  hasSent= false;// flag to check whether previous frame has received by server
+    private static FrameSampler.Mode FRAME_SAMPLING=FrameSampler.Mode.EXACT;// exact timestamps or nearest keyframe. Picked from config file
+    private static int TARGET_FACES=20;// enrollment stops once this many distinct faces are accepted. Picked from config file
+    private static int MAX_SAMPLED_FRAMES=150;// upper bound of frames sampled from the video. Picked from config file
+    private static int MIN_FACE_SIZE=64;// smaller faces are rejected. Picked from config file
+    private static CascadeFaceDetector.Mode DETECTION_MODE=CascadeFaceDetector.Mode.PYRAMID;// downscaled and tracked or full frame detection. Picked from config file
+    private static int DETECT_WIDTH=320;// width of the frame the cascade runs on in pyramid mode. Picked from config file
+    private static FaceDetectorFactory.Backend FACE_DETECTOR=FaceDetectorFactory.Backend.HAAR;// haar, lbp or dnn face detector. Picked from config file
+    private static int DNN_CONFIDENCE=50;// lowest score in percent of a face found by the dnn detector. Picked from config file
+    private static boolean DETECTOR_CALIBRATION=false;// measure all detectors on the picked video. Picked from config file
+    private static int CALIBRATION_MIN_RECALL=90;// percent of frames a detector must find the face in to be chosen. Picked from config file
+    private static int CALIBRATION_FRAMES=30;// frames of the picked video the detectors are measured on. Picked from config file
+    private static int BLUR_THRESHOLD=60;// faces with lower variance of Laplacian are rejected. Picked from config file
+    private static int DUPLICATE_DISTANCE=6;// faces whose hashes differ in fewer bits are duplicates. Picked from config file
+    private static int POOL_CAPACITY=32;// idle native image buffers kept for reuse. Picked from config file
+    private static int BATCH_SIZE=8;// faces sent per request. Picked from config file
+    private static int BATCH_DELAY_MS=250;// longest time a face waits for its batch to fill. Picked from config file
+    private static int SEND_WINDOW_INITIAL=2;// batches waiting for the server at start. Picked from config file
+    private static int SEND_WINDOW_MAX=8;// upper bound of the adaptive send window. Picked from config file
+    private static BatchUploader.Transport UPLOAD_TRANSPORT=BatchUploader.Transport.BINARY;// raw JPEG frames or Base64 in JSON. Picked from config file
+    private static String FACE_PAYLOAD=BatchUploader.PAYLOAD_CROP;// JPEG crops or LBP descriptors of the faces. Picked from config file
+    private static int TRAIN_IMAGE_WIDTH=100;// IMAGE_WIDTH of the server, descriptors are computed at its training size. Picked from config file
+    private static int TRAIN_IMAGE_HEIGHT=100;// IMAGE_HEIGHT of the server. Picked from config file
     private JSONObject personinfo=null;//json object to send demographic and image to server via POST method
     private String latestModelPath="";//Path of the latest model after updating it with new images.
     //volatile to make changes visible to all threads
-    private volatile int numberOfimageSent=0;// count how many frame has been sent
     private volatile boolean hasTrained=false; //flag to check whether model training has finished or not
+    private volatile long lastAckNanos=0; //when the server acknowledged the last image, to measure how long the new model takes
+    private static final int TRAINING_POLL_MS=20000; //the server holds a training job poll open this long
+    private static final int TRAINING_POLL_ERRORS=5; //polls failing in a row before the job is given up, it may still be running
+    private static final int TRAINING_RETRY_MS=2000; //wait before polling again after a failed poll, grows with every failure
     private static  int PERSON_ID; //Unique Id created by Database
+    private static final String PERSON_IDS="person_ids"; //preferences with the id of every person the server answered
+    private volatile CountDownLatch personReady=new CountDownLatch(0); //open once the server answered addperson
+    private volatile boolean uploadWaiting=false; //submit pressed before the id of a new person was known
+    private int enrollmentPersonId=0; //person id the running enrollment was started with
     private String uploatPath=""; //path of the recorded video picked by user
     private static int REQUEST_TAKE_GALLERY_VIDEO=2; // Intent specific value
     private FFmpeg fFmpeg; //external package to facilitate reading all format of video file
+    private volatile UploadJournal uploadJournal=null; //faces and acknowledgements of the running enrollment, kept on disk
+    private DetectorService detectorService; //extracts and loads the face detector once per process, each detect worker creates its own detector
+    private EnrollmentPipeline enrollmentPipeline; //decode, detect and upload stages of the running enrollment
+    private BatchUploader enrollmentUploader; //uploader of the running enrollment
+    private String replacingWith=null; //video the enrollment being cancelled gives way to, UI thread only
+    private volatile EnrollmentMetrics enrollmentMetrics=new EnrollmentMetrics("none"); //timings and counts of the running enrollment
+    private static final String BULK_IMPORT="bulkimport"; //intent extra, path of the JSON list of a bulk import
+    private String bulkList=null; //list waiting for the face detector to be prepared
+    private List<EnrollmentSession> bulkSessions=null; //persons of the running bulk import
+    private ForkJoinPool bulkScheduler=null; //decode, detect and upload tasks of every person of the bulk import
+    private FrameBufferPool bulkPool=null; //shared by the bulk import, buffers of one video fit the next
+    private EnrollmentPipeline.FrameBudget bulkBudget=null; //frames in flight across every video of the bulk import
+    private static final int BULK_FRAMES_PER_CORE=2; //as many frames in flight as one enrollment has on its own
+    private final ConcurrentLinkedQueue<EnrollmentSession> bulkPending=new ConcurrentLinkedQueue<>(); //persons with an id, not decoding yet
+    private final AtomicInteger bulkDecoding=new AtomicInteger(); //enrollments of the bulk import with an open video
+    private final AtomicInteger bulkRemaining=new AtomicInteger(); //enrollments of the bulk import not drained yet
+    private long bulkStartedNanos=0;
 
 
     /**
@@ -108,7 +162,42 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
         MODEL_URL=Utility.getConfigParameters(this,"MODEL_URL"); //read parameter from config file
         RESIZE_WIDTH=Integer.parseInt(Utility.getConfigParameters(this,"RESIZE_WIDTH")); //read parameter from config file
         RESIZE_HEIGHT=Integer.parseInt(Utility.getConfigParameters(this,"RESIZE_HEIGHT")); //read parameter from config file
+        if ("sync".equalsIgnoreCase(getConfigString("FRAME_SAMPLING","exact"))){ //optional parameter, exact by default
+            FRAME_SAMPLING=FrameSampler.Mode.SYNC;
+        }
+        TARGET_FACES=getConfigInt("TARGET_FACES",TARGET_FACES); //optional parameters of adaptive frame selection
+        MAX_SAMPLED_FRAMES=getConfigInt("MAX_SAMPLED_FRAMES",MAX_SAMPLED_FRAMES);
+        MIN_FACE_SIZE=getConfigInt("MIN_FACE_SIZE",MIN_FACE_SIZE);
+        if ("full".equalsIgnoreCase(getConfigString("DETECTION_MODE","pyramid"))){ //optional parameter, pyramid by default
+            DETECTION_MODE=CascadeFaceDetector.Mode.FULL;
+        }
+        DETECT_WIDTH=getConfigInt("DETECT_WIDTH",DETECT_WIDTH);
+        FACE_DETECTOR=FaceDetectorFactory.parse(getConfigString("FACE_DETECTOR","haar")); //optional parameter, haar by default
+        DNN_CONFIDENCE=getConfigInt("DNN_CONFIDENCE",DNN_CONFIDENCE);
+        DETECTOR_CALIBRATION="on".equalsIgnoreCase(getConfigString("DETECTOR_CALIBRATION","off")); //optional parameter, off by default
+        CALIBRATION_MIN_RECALL=getConfigInt("CALIBRATION_MIN_RECALL",CALIBRATION_MIN_RECALL);
+        CALIBRATION_FRAMES=getConfigInt("CALIBRATION_FRAMES",CALIBRATION_FRAMES);
+        EnrollmentMetrics.setEnabled("on".equalsIgnoreCase(getConfigString("METRICS","off"))); //optional parameter, off by default
+        DebugFrameSink.configure("on".equalsIgnoreCase(getConfigString("DEBUG_FRAMES","off")), //optional parameters, off by default
+                getConfigInt("DEBUG_FRAME_INTERVAL",10), getConfigInt("DEBUG_FRAME_FILES",10), getConfigInt("DEBUG_FRAME_QUEUE",2));
+        BLUR_THRESHOLD=getConfigInt("BLUR_THRESHOLD",BLUR_THRESHOLD);
+        DUPLICATE_DISTANCE=getConfigInt("DUPLICATE_DISTANCE",DUPLICATE_DISTANCE);
+        POOL_CAPACITY=getConfigInt("POOL_CAPACITY",POOL_CAPACITY);
+        BATCH_SIZE=getConfigInt("BATCH_SIZE",BATCH_SIZE);
+        BATCH_DELAY_MS=getConfigInt("BATCH_DELAY_MS",BATCH_DELAY_MS);
+        SEND_WINDOW_INITIAL=getConfigInt("SEND_WINDOW_INITIAL",SEND_WINDOW_INITIAL);
+        SEND_WINDOW_MAX=getConfigInt("SEND_WINDOW_MAX",SEND_WINDOW_MAX);
+        if ("json".equalsIgnoreCase(getConfigString("UPLOAD_TRANSPORT","binary"))){ //optional parameter, binary by default
+            UPLOAD_TRANSPORT=BatchUploader.Transport.JSON;
+        }
+        if (LbpDescriptor.PAYLOAD_TYPE.equalsIgnoreCase(getConfigString("FACE_PAYLOAD",BatchUploader.PAYLOAD_CROP))){ //optional parameter, crops by default. Crops stay available for auditing
+            FACE_PAYLOAD=LbpDescriptor.PAYLOAD_TYPE;
+        }
+        TRAIN_IMAGE_WIDTH=getConfigInt("TRAIN_IMAGE_WIDTH",TRAIN_IMAGE_WIDTH);
+        TRAIN_IMAGE_HEIGHT=getConfigInt("TRAIN_IMAGE_HEIGHT",TRAIN_IMAGE_HEIGHT);
         txt2Speech = new Text2Speech(getBaseContext()); //instantiate txt2Speech object
+        detectorService = DetectorService.getInstance(this);
+        bulkList = getIntent().getStringExtra(BULK_IMPORT);// starts once OpenCV is loaded
 
         txt2Speech = new Text2Speech(getBaseContext()); //instantiate txt2Speech object
         try {
@@ -138,6 +227,8 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
                         personinfo.put("phone_carier","cricket");
                         personinfo.put("relation","junior");
                         Log.i("REST","Person info: "+personinfo.toString());
+                        //a person enrolled before keeps the id, so the enrollment can start before the server answers
+                        PERSON_ID=getSharedPreferences(PERSON_IDS, MODE_PRIVATE).getInt(personKey(), 0);
                         checkPersonExists();// check whether the person is already in database or new. If new enter a record and return ID
 
                     }catch (Exception ex){
@@ -156,14 +247,10 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
              @Override
             public void onClick(View v) {
                  if (PERSON_ID>0 ) { //validate whether person ID is null or not. If null look at required parameter
-                     Log.i("REST","Person id: "+PERSON_ID);
-                     try {
-                         personinfo.put("person_id", PERSON_ID);
-                     } catch (Exception ex) {
-                         Log.i("REST","failed to add person ID");
-                     }
-                     uploadVideo(uploatPath);//Post data to server
-
+                     startUpload();
+                 }else if (personReady.getCount()>0){ //new person, the upload starts once the server answers
+                     Log.i("REST","waiting for person id");
+                     uploadWaiting=true;
                  }else{
                      Toast.makeText(getApplicationContext(), "Check required field", Toast.LENGTH_LONG).show();
                  }
@@ -172,6 +259,44 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
 
     }
 
+    /**
+     This method is to start the enrollment of the person with id PERSON_ID
+     parameter: None
+     return: None
+     exception: none
+     */
+    private void startUpload(){
+        Log.i("REST","Person id: "+PERSON_ID);
+        try {
+            personinfo.put("person_id", PERSON_ID);
+        } catch (Exception ex) {
+            Log.i("REST","failed to add person ID");
+        }
+        enrollmentPersonId=PERSON_ID;
+        uploadVideo(uploatPath);//Post data to server
+    }
+
+    //name and phone identify a person, the same way as on the server
+    private String personKey(){
+        return personKey(personinfo);
+    }
+
+    private static String personKey(JSONObject person){
+        return person.optString("name")+"\n"+person.optString("phone");
+    }
+
+    //uploads must wait for addperson, which clears the person folder on the server. False when the server
+    //answered another id than the enrollment was started with, its faces must not be sent under the stale id
+    private boolean awaitPerson(int personId){
+        try {
+            personReady.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return PERSON_ID == personId;
+    }
+
     /**
      This method is to check whether the entered person is already in database/profile or not. if not the a associated
      webservice call will enter a new record in DB and return the unique ID
@@ -180,9 +305,12 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
      exception: Exception
      */
     public void checkPersonExists(){
-        //Volley is an external package to make asynchronous communication easy
-        RequestQueue queue = Volley.newRequestQueue(AddPersonFromGallery.this);
+        //Volley is an external package to make asynchronous communication easy, one queue is shared by the app
+        SafeAccessClient client = SafeAccessClient.getInstance(AddPersonFromGallery.this);
         String submitURL=SERVER_URL+"addperson";
+        final CountDownLatch answered = new CountDownLatch(1);
+        personReady = answered;
+        enrollmentPersonId = 0; //only an enrollment started while this request is pending may need a restart
         try{
             //invoke the webservice and post data
             JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(Request.Method.POST, submitURL, personinfo,
@@ -192,17 +320,22 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
                             try{
                                 PERSON_ID= Integer.parseInt(response.get("message").toString());
                                 Log.i("REST",personinfo.toString());
+                                if (PERSON_ID>0){
+                                    getSharedPreferences(PERSON_IDS, MODE_PRIVATE).edit().putInt(personKey(), PERSON_ID).apply();
+                                }
                             }catch (Exception ex){
                                 Log.i("REST",ex.toString());
                             }
+                            onPersonAnswered(answered);
                         }
                     }, new Response.ErrorListener() {
                 @Override
                 public void onErrorResponse(VolleyError error) {
                     Log.i("REST",error.toString());
+                    onPersonAnswered(answered);
                 }
             });
-            queue.add(jsonObjectRequest);
+            client.add(jsonObjectRequest);
 
 
         }catch(Exception ex){
@@ -210,6 +343,58 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
         }
     }
 
+    /**
+     This method is to let waiting uploads go once addperson is answered. An enrollment started with a cached id
+     the server no longer knows is started again with the new id
+     parameter: answered - latch of the request
+     return: None
+     exception: none
+     */
+    private void onPersonAnswered(CountDownLatch answered){
+        if (uploadWaiting){
+            answered.countDown();
+            uploadWaiting=false;
+            if (PERSON_ID>0){
+                startUpload();
+            }else{
+                Toast.makeText(getApplicationContext(), "Check required field", Toast.LENGTH_LONG).show();
+            }
+        } else if (enrollmentPersonId>0 && PERSON_ID>0 && enrollmentPersonId!=PERSON_ID){
+            Log.i("REST","person id changed from "+enrollmentPersonId+" to "+PERSON_ID+", enrollment restarted");
+            startUpload();// cancels the enrollment of the stale id before its waiting uploads are let go
+            answered.countDown();
+        } else {
+            answered.countDown();
+        }
+    }
+
+    /**
+     This method is to read an optional parameter from config file
+     parameter: key, default value used when the parameter is missing
+     return: value of the parameter
+     exception: none
+     */
+    private String getConfigString(String key, String defaultValue){
+        try {
+            String value=Utility.getConfigParameters(this,key);
+            if (value!=null && value.trim().length()>0){
+                return value.trim();
+            }
+        }catch (Exception ex){
+            Log.i("REST","config parameter not found "+key);
+        }
+        return defaultValue;
+    }
+
+    private int getConfigInt(String key, int defaultValue){
+        try {
+            return Integer.parseInt(getConfigString(key,String.valueOf(defaultValue)));
+        }catch (NumberFormatException ex){
+            Log.i("REST","invalid config parameter "+key);
+            return defaultValue;
+        }
+    }
+
     /**
      this method is used to get the path of selected video image file from asynchronous call
      parameter: requestCode, resultCode, data
@@ -227,11 +412,52 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
                     uploatPath=selectedImagePath;
 
                    Log.i("REST",selectedImagePath);
-
+                    if (DETECTOR_CALIBRATION) {
+                        calibrateDetectors(selectedImagePath);
+                    }
                 }
             }
         }
     }
+    /**
+     this method measures every face detector backend on the picked video in the background, logs faces/sec
+     and recall of each and uses the fastest one that finds the face in CALIBRATION_MIN_RECALL percent of the
+     frames for the enrollment. Put the chosen backend in the config file (FACE_DETECTOR) to keep it
+     parameter: Path of the selected video file
+     return:None. the chosen detector is handed to detectorService
+     exception: none
+     */
+    private void calibrateDetectors(final String path){
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FaceDetectorFactory factory = detectorService.awaitFactory();
+                if (factory == null) {
+                    Log.e(TAG, "Face detector not loaded, calibration skipped");
+                    return;
+                }
+                final FrameBufferPool pool = new FrameBufferPool(POOL_CAPACITY);
+                DetectorCalibration calibration = new DetectorCalibration(new DetectorCalibration.FrameSourceFactory() {
+                    @Override
+                    public EnrollmentPipeline.FrameSource open() {
+                        return new RetrieverFrameSource(path, CALIBRATION_FRAMES, pool);
+                    }
+                }, pool);
+                List<DetectorCalibration.Result> results = calibration.calibrateAll(factory);
+                for (DetectorCalibration.Result result : results) {
+                    Log.i(TAG, "calibration " + result);
+                }
+                DetectorCalibration.Result chosen = DetectorCalibration.choose(results, CALIBRATION_MIN_RECALL / 100.0);
+                pool.clear();
+                if (chosen != null) {
+                    Log.i(TAG, "calibration chose " + chosen.backend);
+                    detectorService.use(factory.withBackend(chosen.backend));
+                    txt2Speech.sonify("Using " + chosen.backend.name().toLowerCase() + " face detector");
+                }
+            }
+        }).start();
+    }
+
     /**
      this helper method is used to retrieve all selected files and absolute paths. Make sure you have
      set up read permission for external storage in AndroidManifest.xml
@@ -251,12 +477,47 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
     }
 
     /**
-     this methods is used to send the data to the server to train the model
+     this methods is used to send the data to the server to train the model. The work runs in the
+     background as a decode -> detect -> upload pipeline so the activity stays responsive
      parameter: Path of the selected video file
      return:None.
      exception: none
      */
     public void uploadVideo(String path){
+        if (replacingWith != null) {//the enrollment started once the cancelled one has drained uses the latest submit
+            replacingWith = path;
+            return;
+        }
+        final EnrollmentPipeline previous = enrollmentPipeline;
+        if (previous == null) {
+            startEnrollment(path);
+            return;
+        }
+        //a new submit replaces the enrollment still running. Its uploader stops first so no late face is sent,
+        //its journal is closed and the new one opened (maybe the same file) once its sent requests are answered
+        enrollmentPipeline = null;
+        replacingWith = path;
+        final UploadJournal previousJournal = uploadJournal;
+        uploadJournal = null;
+        enrollmentUploader.cancel(new Runnable() {
+            @Override
+            public void run() {
+                previousJournal.close();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String next = replacingWith;
+                        replacingWith = null;
+                        startEnrollment(next);
+                    }
+                });
+            }
+        });
+        previous.cancel();
+    }
+
+    //enrollment of the person with id PERSON_ID, no other enrollment is running
+    private void startEnrollment(String path){
 
         File camfile=new File(path); //checks whether the file exists
         if (! camfile.exists()){
@@ -264,17 +525,18 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
         }else{
             Log.i("REST","file exists "+uploatPath);
         }
-        FFmpegMediaMetadataRetriever mmr = new FFmpegMediaMetadataRetriever(); //external package to read video file
-        try {
-            mmr.setDataSource(uploatPath);// set data source path
-        }catch (Exception e) {
-            System.out.println("Exception= "+e);
-        }
-        //duration of the video file
-        long duration = mmr.getMetadata().getLong("duration");
-        int numberOfFrame =50;  //number of frame with face will be sent
-        long frameRate= duration/numberOfFrame;
-        String imgname=uploatPath.replace(".mp4",".jpg");
+        int numberOfFrame =MAX_SAMPLED_FRAMES;  //frames are sampled densely, decoding stops once enough faces are accepted
+        final FrameBufferPool pool = new FrameBufferPool(POOL_CAPACITY); //gray, rotated and cropped images are reused across frames
+        //faces an earlier run of this enrollment already produced are resent from the journal, not decoded again
+        final UploadJournal journal = UploadJournal.open(new File(getFilesDir(), "enrollments"), PERSON_ID, uploatPath, FACE_PAYLOAD);
+        uploadJournal = journal;
+        final EnrollmentSession session = new EnrollmentSession(personinfo, path); //acknowledged images of this enrollment only
+        final int personId = PERSON_ID; //id the enrollment was started with, possibly cached
+        final int remainingFaces = TARGET_FACES - journal.getFaceCount();
+        final FaceSelector faceSelector = new FaceSelector(remainingFaces, MIN_FACE_SIZE, BLUR_THRESHOLD, DUPLICATE_DISTANCE, pool);
+        final EnrollmentMetrics metrics = new EnrollmentMetrics(PERSON_ID + "-" + FACE_DETECTOR.name().toLowerCase());
+        enrollmentMetrics = metrics;
+        final LatencyHistogram detectionTime = metrics.histogram(EnrollmentMetrics.Stage.DETECT); //time of every detection, all workers
         if (PERSON_ID > 0) {//double chaek person id has valid value
             try {
                 personinfo.put("person_id", PERSON_ID);
@@ -283,162 +545,499 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
             }
             //Log.i("REST", personinfo.toString());
         }
-        //read frames from video file and send it to server
-        for (int frameIterator = 0; frameIterator < numberOfFrame; frameIterator++) {
+        final BatchUploader uploader = createUploader(personinfo.optString("name"), PERSON_ID, journal, metrics, session);
+        enrollmentUploader = uploader;
+        //read frames from video file, find faces and send them to server
+        //read the video once front to back, fall back to per-frame seeks if the platform decoder can not read it
+        FrameSampler sampler = new FrameSampler(uploatPath, numberOfFrame, FRAME_SAMPLING,
+                new RetrieverFrameSource(uploatPath, numberOfFrame, pool), pool);
+        enrollmentPipeline = new EnrollmentPipeline(sampler,
+                new EnrollmentPipeline.FaceProcessorFactory() {
+                    @Override
+                    public EnrollmentPipeline.FaceProcessor create(EnrollmentPipeline pipeline) {
+                        return new CascadeFaceProcessor(faceSelector, pipeline, pool, detectionTime, metrics);
+                    }
+                },
+                new EnrollmentPipeline.FaceUploader() {
+                    @Override
+                    public void upload(byte[] face) {
+                        if (!awaitPerson(personId)) {// decoding and detection do not need the server, the upload does
+                            return;// the enrollment is being replaced by one with the answered id
+                        }
+                        uploader.add(journal.appendFace(face), face);// journal it, then send it to server with the next batch, waits while the send window is full
+                    }
+                },
+                new EnrollmentPipeline.Listener() {
+                    @Override
+                    public void onFinished(int framesDecoded, int facesFound) {
+                        journal.markDecoded();// a restart only has to resend what is not acknowledged
+                        faceSelector.logSummary();
+                        detectionTime.logSummary();
+                        pool.logSummary();
+                        pool.clear();
+                        //send the last partial batch and train once every image sent has been answered
+                        uploader.finish(new Runnable() {
+                            @Override
+                            public void run() {
+                                SafeAccessClient.getInstance(AddPersonFromGallery.this).logSummary();
+                                if( hasTrained==false && session.getAcknowledgedCount()>0){// if all frames are received call for training model
+                                    hasTrained=true;
+                                    trainModel();// call training webservice
+                                } else {
+                                    metrics.export(new File(getFilesDir(), "metrics"));// nothing to train, the enrollment ends here
+                                }
+                            }
+                        });
+                    }
+                }, pool, metrics);
+        final EnrollmentPipeline pipeline = enrollmentPipeline;
+        session.start(journal, metrics, pipeline);
+        if (journal.isDecodeComplete() || remainingFaces <= 0) {
+            pipeline.finishEarly();// nothing left to decode, the pipeline only drains
+        }
+        final Map<Integer, byte[]> unacknowledged = journal.getUnacknowledged();
+        //resending blocks while the send window is full, so it runs off the UI thread before the pipeline starts
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (!unacknowledged.isEmpty()) {
+                    if (!awaitPerson(personId)) {
+                        return;
+                    }
+                    Log.i("REST", "resending " + unacknowledged.size() + " faces from journal");
+                    metrics.add(EnrollmentMetrics.Counter.RETRIES, unacknowledged.size());
+                }
+                for (Map.Entry<Integer, byte[]> entry : unacknowledged.entrySet()) {
+                    if (pipeline.isCancelled()) {
+                        return;
+                    }
+                    uploader.add(entry.getKey(), entry.getValue());
+                }
+                if (!pipeline.isCancelled()) {
+                    pipeline.start();
+                }
+            }
+        }, "enroll-resume").start();
+    }
 
-            //if (hasSent == false) {
-                //read video frame as bitmap image
-                Bitmap b = mmr.getFrameAtTime((long) frameRate * frameIterator*1000, FFmpegMediaMetadataRetriever.OPTION_CLOSEST);
+    /**
+     this method is used to enroll every person of a bulk import list at once. All enrollments share one
+     work-stealing scheduler sized to the CPU cores: decode steps, detect tasks and upload steps of every
+     person are queued on it and idle workers steal whichever is waiting, so a short video does not leave
+     cores idle while a long one is still decoding. At most one video per core is open at a time, the next
+     person starts decoding when one is through, and the frames in flight of all videos share one budget.
+     Every person has a session of its own (id, journal, metrics), one training job for every person is queued
+     after the last enrollment drained
+     parameter: listPath - JSON list of {"name", "phone", "video", ...}
+     return:None.
+     exception: none
+     */
+    public void startBulkImport(String listPath){
+        final List<EnrollmentSession> sessions;
+        try{
+            JSONObject defaults=new JSONObject();
+            String recPesroninfo=getIntent().getStringExtra("pesroninfo");
+            if (recPesroninfo!=null){
+                defaults=new JSONObject(recPesroninfo);
+            }
+            //same as the single enrollment when the list leaves them out
+            defaults.put("email","salam@memphis.edu");
+            defaults.put("phone_carier","cricket");
+            defaults.put("relation","junior");
+            sessions=EnrollmentSession.readList(new File(listPath), defaults);
+        }catch (Exception ex){
+            ex.printStackTrace();
+            Toast.makeText(getApplicationContext(), "Can not read bulk import list", Toast.LENGTH_LONG).show();
+            return;
+        }
+        if (sessions.isEmpty()){
+            return;
+        }
+        Log.i("REST","bulk import of "+sessions.size()+" persons");
+        bulkSessions=sessions;
+        bulkScheduler=new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        bulkPool=new FrameBufferPool(POOL_CAPACITY);
+        bulkBudget=new EnrollmentPipeline.FrameBudget(bulkScheduler.getParallelism()*BULK_FRAMES_PER_CORE);
+        bulkRemaining.set(sessions.size());
+        bulkStartedNanos=System.nanoTime();
+        for (EnrollmentSession session : sessions){
+            addBulkPerson(session);
+        }
+    }
+
+    //asks the server for the id of a bulk import person, the enrollment starts with the answer
+    private void addBulkPerson(final EnrollmentSession session){
+        SafeAccessClient client = SafeAccessClient.getInstance(AddPersonFromGallery.this);
+        String submitURL=SERVER_URL+"addperson";
+        JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(Request.Method.POST, submitURL, session.getPersonInfo(),
+                new Response.Listener<JSONObject>() {
+                    @Override
+                    public void onResponse(JSONObject response) {
+                        try{
+                            int personId=Integer.parseInt(response.get("message").toString());
+                            if (personId>0){
+                                session.setPersonId(personId);
+                                getSharedPreferences(PERSON_IDS, MODE_PRIVATE).edit().putInt(personKey(session.getPersonInfo()), personId).apply();
+                                bulkPending.add(session);
+                                startBulkEnrollments();
+                                return;
+                            }
+                        }catch (Exception ex){
+                            ex.printStackTrace();
+                        }
+                        Log.i("REST","no person id for "+session.getName());
+                        onBulkEnrollmentDone();
+                    }
+                }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                Log.i("REST",error.toString());
+                onBulkEnrollmentDone();
+            }
+        });
+        client.add(jsonObjectRequest);
+    }
+
+    //starts the pending enrollments while fewer videos than cores are open
+    private void startBulkEnrollments(){
+        while (true) {
+            int decoding = bulkDecoding.get();
+            if (decoding >= bulkScheduler.getParallelism()) {
+                return;
+            }
+            if (!bulkDecoding.compareAndSet(decoding, decoding + 1)) {
+                continue;
+            }
+            EnrollmentSession next = bulkPending.poll();
+            if (next == null) {
+                bulkDecoding.decrementAndGet();
+                if (bulkPending.isEmpty()) {
+                    return;
+                }
+                continue; //added while the slot was taken
+            }
+            startBulkEnrollment(next);
+        }
+    }
+
+    //enrollment of one bulk import person, the same stages as uploadVideo on the shared scheduler
+    private void startBulkEnrollment(final EnrollmentSession session){
+        final FrameBufferPool pool = bulkPool;
+        final String path=session.getVideoPath();
+        final UploadJournal journal = UploadJournal.open(new File(getFilesDir(), "enrollments"), session.getPersonId(), path, FACE_PAYLOAD);
+        final int remainingFaces = TARGET_FACES - journal.getFaceCount();
+        final FaceSelector faceSelector = new FaceSelector(remainingFaces, MIN_FACE_SIZE, BLUR_THRESHOLD, DUPLICATE_DISTANCE, pool);
+        final EnrollmentMetrics metrics = new EnrollmentMetrics(session.getPersonId() + "-" + FACE_DETECTOR.name().toLowerCase());
+        final LatencyHistogram detectionTime = metrics.histogram(EnrollmentMetrics.Stage.DETECT);
+        final BatchUploader uploader = createUploader(session.getName(), session.getPersonId(), journal, metrics, session);
+        FrameSampler sampler = new FrameSampler(path, MAX_SAMPLED_FRAMES, FRAME_SAMPLING,
+                new RetrieverFrameSource(path, MAX_SAMPLED_FRAMES, pool), pool);
+        final EnrollmentPipeline pipeline = new EnrollmentPipeline(sampler,
+                new EnrollmentPipeline.FaceProcessorFactory() {
+                    @Override
+                    public EnrollmentPipeline.FaceProcessor create(EnrollmentPipeline pipeline) {
+                        return new CascadeFaceProcessor(faceSelector, pipeline, pool, detectionTime, metrics);
+                    }
+                },
+                new EnrollmentPipeline.FaceUploader() {
+                    @Override
+                    public void upload(byte[] face) {
+                        uploader.add(journal.appendFace(face), face);
+                    }
+                },
+                new EnrollmentPipeline.Listener() {
+                    @Override
+                    public void onFinished(int framesDecoded, int facesFound) {
+                        journal.markDecoded();
+                        faceSelector.logSummary();
+                        detectionTime.logSummary();
+                        session.onDecoded(framesDecoded, facesFound);
+                        bulkDecoding.decrementAndGet();// the video is closed, the next person may start
+                        startBulkEnrollments();
+                        try {
+                            //the last batch may wait for the send window, the scheduler lends a spare worker meanwhile
+                            EnrollmentPipeline.block(new EnrollmentPipeline.Blocking() {
+                                @Override
+                                public void run() {
+                                    uploader.finish(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            onBulkEnrollmentDone();
+                                        }
+                                    });
+                                }
+                            });
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, pool, metrics);
+        session.start(journal, metrics, pipeline);
+        if (journal.isDecodeComplete() || remainingFaces <= 0) {
+            pipeline.finishEarly();
+        }
+        final Map<Integer, byte[]> unacknowledged = journal.getUnacknowledged();
+        metrics.add(EnrollmentMetrics.Counter.RETRIES, unacknowledged.size());
+        bulkScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    //convert bitmap image to Mat so that we can use opencv to process it
-                    Mat imgOr = new Mat (b.getWidth(), b.getHeight(), CvType.CV_8UC1);
-                    Utils.bitmapToMat(b, imgOr);
-                    //convert RGB image to Gray
-                    Imgproc.cvtColor(imgOr, imgOr, Imgproc.COLOR_RGB2GRAY);
-                    //correct orientation of image
-                    Core.rotate(imgOr, imgOr, Core.ROTATE_90_COUNTERCLOCKWISE);
-                    Imgcodecs.imwrite(imgname +(int)(frameIterator%10)+ "_1.jpg", imgOr);
-                    Log.i("REST",""+hasSent +" "+ numberOfFrame +" "+frameRate);
-                    Log.i("REST", "sending.." + frameRate * frameIterator);
-                    processFrame(imgOr);// Process each frame and send to server
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+                    //resending waits while the send window is full, the scheduler lends a spare worker meanwhile
+                    EnrollmentPipeline.block(new EnrollmentPipeline.Blocking() {
+                        @Override
+                        public void run() {
+                            for (Map.Entry<Integer, byte[]> entry : unacknowledged.entrySet()) {
+                                if (pipeline.isCancelled()) {
+                                    return;
+                                }
+                                uploader.add(entry.getKey(), entry.getValue());
+                            }
+                        }
+                    });
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (!pipeline.isCancelled()) {
+                    pipeline.start(bulkScheduler, bulkBudget);
                 }
-             if (hasSent){//give a pause for the acknowledge for current frame
-                 SystemClock.sleep(100);
-             }
+            }
+        });
+    }
+
+    //counts down the bulk import, the last enrollment to drain reports the throughput and trains every person
+    private void onBulkEnrollmentDone(){
+        if (bulkRemaining.decrementAndGet() > 0) {
+            return;
         }
-        if( hasTrained==false){// if all frames are sent call for training model
-            trainModel();// call training webservice
-            hasTrained=true;
+        long elapsedMillis = Math.max(1, (System.nanoTime() - bulkStartedNanos) / 1000000);
+        int framesDecoded = 0;
+        int facesFound = 0;
+        int imagesAcknowledged = 0;
+        EnrollmentSession trained = null;
+        JSONArray trainedNames = new JSONArray();
+        for (EnrollmentSession session : bulkSessions) {
+            framesDecoded += session.getFramesDecoded();
+            facesFound += session.getFacesFound();
+            imagesAcknowledged += session.getAcknowledgedCount();
+            if (session.getAcknowledgedCount() > 0) {
+                trainedNames.put(session.getName());
+                trained = session;
+            }
+        }
+        Log.i("REST", String.format(Locale.US, "bulk import of %d persons in %d ms: %d frames %.1f frames/sec, %d faces %.1f faces/sec, %d images acknowledged",
+                bulkSessions.size(), elapsedMillis, framesDecoded, framesDecoded * 1000.0 / elapsedMillis,
+                facesFound, facesFound * 1000.0 / elapsedMillis, imagesAcknowledged));
+        bulkPool.logSummary();
+        bulkPool.clear();
+        bulkScheduler.shutdown();
+        SafeAccessClient.getInstance(AddPersonFromGallery.this).logSummary();
+        if (trained == null) {
+            for (EnrollmentSession session : bulkSessions) {
+                if (session.getMetrics() != null) {
+                    session.getMetrics().export(new File(getFilesDir(), "metrics"));
+                }
+            }
+            txt2Speech.sonify("No face has been sent");
+            return;
         }
+        //one training job for the batch: a server that did not add the images while they arrived (Flask
+        //without incremental images, restarted server) reads the folder of every person named, one model is written
+        try {
+            personinfo = new JSONObject(trained.getPersonInfo().toString());
+            personinfo.put("names", trainedNames);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return;
+        }
+        enrollmentMetrics = new EnrollmentMetrics("bulk-" + bulkSessions.size());
+        trainModel();
     }
 
     /**
-     this method is used to process each frame. it finds face, crop faces
-     parameter: Frame
-     return:None.
+     this method is used to create the uploader of an enrollment. Faces are sent in batches and every
+     image acknowledged by the server is counted and recorded in the journal
+     parameter: name, personId - of the person, journal - upload journal of the enrollment, metrics - of the enrollment,
+                session - counts the acknowledged images of the enrollment
+     return: uploader for the getpictures webservice
      exception: none
      */
-    public void processFrame(Mat frame) {
-        MatOfRect faces = new MatOfRect();
-        if (mJavaDetector != null) { //make sure face detector is not null
-            mJavaDetector.detectMultiScale(frame, faces); //detect face
-            Log.i(TAG, "called face detector");
-        }
-        Rect[] facesArray = faces.toArray();//get all detected faces
-        Log.i("REST","number of face "+facesArray.length);
-        String sonifyMessage = "";
-        for (int faceIterator = 0; faceIterator < facesArray.length; faceIterator++) {// iterate through each face
-            //if (hasSent == false) {
-                hasSent = true;
-                Mat mcrop=frame.submat(facesArray[faceIterator]);
-                if (mcrop.rows()>RESIZE_WIDTH || mcrop.cols()>RESIZE_HEIGHT){//resize face if it is big
-                    Imgproc.resize(mcrop,mcrop, new Size((int)mcrop.rows()/2,(int)mcrop.cols()/2));
-                }
+    public BatchUploader createUploader(String name, int personId, final UploadJournal journal, EnrollmentMetrics metrics,
+                                        final EnrollmentSession session){
+        SafeAccessClient client = SafeAccessClient.getInstance(AddPersonFromGallery.this);
+        String submitURL=SERVER_URL+"getpictures";
+        SendWindow window = new SendWindow(SEND_WINDOW_INITIAL, SEND_WINDOW_MAX); //batches allowed to wait for the server
+        return new BatchUploader(client, submitURL, name, personId, BATCH_SIZE, BATCH_DELAY_MS, UPLOAD_TRANSPORT,
+                FACE_PAYLOAD, window, metrics, new BatchUploader.AckListener() {
+                    @Override
+                    public void onAcknowledged(int imageId) {//acknowledgement from server
+                        journal.appendAck(imageId);
+                        session.onAcknowledged();
+                        lastAckNanos=System.nanoTime();
+                    }
 
-                sendImage(mcrop);// send it to server
-        }
+                    @Override
+                    public void onFailed(List<Integer> imageIds, VolleyError error) {
+                        Log.i("REST","images not received "+imageIds);
+                    }
+                });
     }
 
     /**
-     this method is used to transfer each frame. It compress the image to utilize the network
-     bandwith, performs base64 encoding to obfuscate the data
-     parameter: Frame
-     return:None.
+     this method is used to invoke the webservice to start training the model. The server queues a training
+     job and answers with its id right away, the job is then polled until the model is written
+     parameter: None.
+     return:None. update class member latestModelPath
      exception: none
      */
-    public void sendImage(Mat img){
-        RequestQueue queue = Volley.newRequestQueue(AddPersonFromGallery.this);
-        String submitURL=SERVER_URL+"getpicture";
-        boolean isConnected=false;
+    public void trainModel(){
+        SafeAccessClient client = SafeAccessClient.getInstance(AddPersonFromGallery.this);
+        String submitURL=SERVER_URL+"trainmodel";
+
         try{
-            //Mat resimg=new  Mat();
-            Mat resimg=img;
-            MatOfByte mb=new MatOfByte();
-            MatOfInt  params90 = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 90);// compress the image
-            Imgcodecs.imencode(".jpg",resimg,mb, params90);
-            byte[] byteArray = mb.toArray();// convert to a byte array
-            //String encodedImage = Base64.encode(byteArray);
-            //String imgString=new String(byteArray);
-            String imgString=Base64.encodeToString(byteArray, Base64.DEFAULT); // perform base64 encoding
-            personinfo.put("pic",imgString);// add picture to the json data
-            JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(Request.Method.POST, submitURL, personinfo,
+            JSONObject trainRequest=new JSONObject(personinfo.toString());
+            trainRequest.put("async",true);// answer with the job instead of waiting for training
+            JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(Request.Method.POST, submitURL, trainRequest,
                     new Response.Listener<JSONObject>() {
                         @Override
                         public void onResponse(JSONObject response) {
                             try{
-
-                                ///personinfo.put("person_id",response.get("message"));
-                                //personId= Integer.parseInt(response.get("message").toString());
-                                if(response.get("message").toString().contains("received")){//acknowledgement from server
-                                    hasSent=false;
-                                    numberOfimageSent++;
-
+                                if (response.has("job_id")){
+                                    pollTrainingJob(response.getString("job_id"));
+                                } else if (response.get("message").toString().contains("Training is complete")){// server without jobs answers after training
+                                    onModelTrained(response.get("modelpath").toString());
+                                } else {
+                                    onTrainingFailed(response.optString("message"));
                                 }
-                                Log.i("REST",response.get("message").toString());
-                                hasSent=false;
-                                //Log.i("REST",personinfo.toString());
+                                Log.i("REST",personinfo.toString());
                             }catch (Exception ex){
-
+                                ex.printStackTrace();
                             }
                         }
                     }, new Response.ErrorListener() {
                 @Override
                 public void onErrorResponse(VolleyError error) {
                     Log.i("REST",error.toString());
+                    onTrainingFailed("trainmodel "+error);// not retried, a job may be queued already
                 }
             });
-            queue.add(jsonObjectRequest);
+            client.add(jsonObjectRequest);
+
+
         }catch(Exception ex){
             ex.printStackTrace();
         }
     }
 
     /**
-     this method is used to invoke the webservice to start training the model
-     parameter: None.
-     return:None. update class member latestModelPath
+     this method is used to wait for a training job. The server answers when the job finishes or after
+     TRAINING_POLL_MS, the job is polled again until it is done. A poll failing on the network is repeated
+     after a pause, the job keeps running on the server meanwhile
+     parameter: jobId - id answered by trainmodel
+     return:None.
      exception: none
      */
-    public void trainModel(){
-        RequestQueue queue = Volley.newRequestQueue(AddPersonFromGallery.this);
-        String submitURL=SERVER_URL+"trainmodel";
+    public void pollTrainingJob(final String jobId){
+        pollTrainingJob(jobId, 0);
+    }
 
-        boolean isConnected=false;
+    private void pollTrainingJob(final String jobId, final int errors){
+        SafeAccessClient client = SafeAccessClient.getInstance(AddPersonFromGallery.this);
+        String submitURL=SERVER_URL+"trainingjob";
         try{
-            JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(Request.Method.POST, submitURL, personinfo,
+            JSONObject pollRequest=new JSONObject();
+            pollRequest.put("job_id",jobId);
+            pollRequest.put("wait_ms",TRAINING_POLL_MS);
+            JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(Request.Method.POST, submitURL, pollRequest,
                     new Response.Listener<JSONObject>() {
                         @Override
                         public void onResponse(JSONObject response) {
-                            try{
-
-                                ///personinfo.put("person_id",response.get("message"));
-                                if (response.get("message").toString().contains("Training")){
-                                    txt2Speech.sonify("Model has been trained with new images");
-                                    latestModelPath=response.get("modelpath").toString();
-                                    Log.i("REST",latestModelPath);
-                                    useLatestModel();
-                                }
-                                Log.i("REST",personinfo.toString());
-                            }catch (Exception ex){
-
+                            String status=response.optString("status");
+                            Log.i("REST","training job "+jobId+" "+status+" queued "+response.optLong("queued_ms",0)
+                                    +" ms training "+response.optLong("training_ms",0)+" ms");
+                            if ("done".equals(status)){
+                                enrollmentMetrics.record(EnrollmentMetrics.Stage.TRAINING, response.optLong("training_ms",0)*1000000);
+                                onModelTrained(response.optString("modelpath"));
+                            } else if ("queued".equals(status) || "running".equals(status)){
+                                pollTrainingJob(jobId, 0);
+                            } else {// failed, or unknown once the server restarted or forgot the job
+                                onTrainingFailed("training job "+jobId+" "+status);
                             }
                         }
                     }, new Response.ErrorListener() {
                 @Override
                 public void onErrorResponse(VolleyError error) {
                     Log.i("REST",error.toString());
+                    if (errors+1 >= TRAINING_POLL_ERRORS) {
+                        onTrainingFailed("training job "+jobId+" not reachable "+error);
+                        return;
+                    }
+                    new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            pollTrainingJob(jobId, errors+1);
+                        }
+                    }, (long) TRAINING_RETRY_MS*(errors+1));
                 }
             });
-            queue.add(jsonObjectRequest);
-
-
+            client.add(jsonObjectRequest);
         }catch(Exception ex){
             ex.printStackTrace();
         }
     }
 
+    /**
+     this method is used when the server did not write a new model. The user is told, the persons of a bulk
+     import left out are logged so the operator can enroll them again. Metrics are exported and journals are
+     closed but kept: the images are on the server, the next enrollment of the person only trains again
+     parameter: reason - logged
+     return:None.
+     exception: none
+     */
+    private void onTrainingFailed(String reason){
+        Log.e("REST","training failed: "+reason+(personinfo.has("names") ? " persons "+personinfo.opt("names") : " person "+personinfo.optString("name")));
+        txt2Speech.sonify("Training failed");
+        if (enrollmentMetrics != null) {
+            enrollmentMetrics.export(new File(getFilesDir(), "metrics"));
+        }
+        if (uploadJournal != null) {
+            uploadJournal.close();
+        }
+        if (bulkSessions != null) {
+            for (EnrollmentSession session : bulkSessions) {
+                if (session.getMetrics() != null) {
+                    session.getMetrics().export(new File(getFilesDir(), "metrics"));
+                }
+                session.cancel();
+            }
+        }
+    }
+
+    /**
+     this method is used once the server has written the new model
+     parameter: modelPath - path of the model on the server
+     return:None. update class member latestModelPath
+     exception: none
+     */
+    private void onModelTrained(String modelPath){
+        if (lastAckNanos>0){
+            Log.i("REST","model live "+(System.nanoTime()-lastAckNanos)/1000000+" ms after the last acknowledged image");
+        }
+        txt2Speech.sonify("Model has been trained with new images");
+        enrollmentMetrics.export(new File(getFilesDir(), "metrics"));
+        latestModelPath=modelPath;
+        if (uploadJournal != null) {
+            uploadJournal.delete();// the server has the images, nothing left to resume
+        }
+        if (bulkSessions != null) {// every person of the bulk import is in the new model
+            for (EnrollmentSession session : bulkSessions) {
+                session.finish(new File(getFilesDir(), "metrics"));
+            }
+        }
+        Log.i("REST",latestModelPath);
+        useLatestModel();
+    }
+
     /**
      this methods is used to notify that model has been updated and ready to use
      parameter: None. Class member latestModelPath
@@ -446,7 +1045,7 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
      exception: none
      */
     public void useLatestModel(){
-        RequestQueue queue = Volley.newRequestQueue(AddPersonFromGallery.this);
+        SafeAccessClient client = SafeAccessClient.getInstance(AddPersonFromGallery.this);
 
         try{
             personinfo.put("modelpath",latestModelPath);
@@ -470,12 +1069,208 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
                     Log.i("REST",error.toString());
                 }
             });
-            queue.add(jsonObjectRequest);
+            client.add(jsonObjectRequest);
         }catch(Exception ex){
             ex.printStackTrace();
         }
     }
 
+    /**
+     Decode stage of the enrollment pipeline. Reads evenly spaced frames from the video, converts them to
+     gray and corrects the orientation. The retriever is opened lazily so it is created on the decode thread
+     */
+    private class RetrieverFrameSource implements EnrollmentPipeline.FrameSource {
+        private final String videoPath;
+        private final int numberOfFrame;
+        private final FrameBufferPool pool;
+        private final FrameConverter converter;
+        private FFmpegMediaMetadataRetriever mmr;
+        private long frameRate;
+        private int frameIterator = 0;
+
+        RetrieverFrameSource(String videoPath, int numberOfFrame, FrameBufferPool pool) {
+            this.videoPath = videoPath;
+            this.pool = pool;
+            this.converter = new FrameConverter(pool, Imgproc.COLOR_RGBA2GRAY);
+            this.numberOfFrame = numberOfFrame;
+        }
+
+        @Override
+        public Mat nextFrame() {
+            if (mmr == null) {
+                mmr = new FFmpegMediaMetadataRetriever(); //external package to read video file
+                try {
+                    mmr.setDataSource(videoPath);// set data source path
+                }catch (Exception e) {
+                    System.out.println("Exception= "+e);
+                }
+                //duration of the video file
+                long duration = mmr.getMetadata().getLong("duration");
+                frameRate = duration/numberOfFrame;
+            }
+            while (frameIterator < numberOfFrame) {
+                int current = frameIterator++;
+                //read video frame as bitmap image
+                Bitmap b = mmr.getFrameAtTime((long) frameRate * current*1000, FFmpegMediaMetadataRetriever.OPTION_CLOSEST);
+                Mat rgba = null;
+                try {
+                    //convert bitmap image to Mat so that we can use opencv to process it
+                    rgba = pool.acquire(b.getHeight(), b.getWidth(), CvType.CV_8UC4);
+                    Utils.bitmapToMat(b, rgba);
+                    //convert RGB image to Gray and correct orientation of image
+                    Mat imgOr = converter.toUprightGray(rgba);
+                    if (EnrollmentMetrics.isEnabled()) {//per frame lines cost string building even when filtered out
+                        Log.i("REST",""+ numberOfFrame +" "+frameRate);
+                        Log.i("REST", "sending.." + frameRate * current);
+                    }
+                    return imgOr;
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                } finally {
+                    pool.release(rgba);
+                    if (b != null) {
+                        b.recycle();// pixels of the bitmap are not needed any more
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            if (mmr != null) {
+                mmr.release();
+            }
+        }
+    }
+
+    /**
+     Detect stage of the enrollment pipeline. Each worker creates its own detector since
+     detectors are not safe to share between threads, and keeps its own detection and
+     compression buffers so they are reused for every frame
+     */
+    private class CascadeFaceProcessor implements EnrollmentPipeline.FaceProcessor {
+        private final FaceSelector faceSelector;
+        private final EnrollmentPipeline pipeline;
+        private final FrameBufferPool pool;
+        private final MatOfByte mb = new MatOfByte();
+        private final MatOfInt params90 = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 90);// compress the image
+        private FaceDetector detector;
+        private final EnrollmentMetrics metrics;
+        private LbpDescriptor descriptor; //set when descriptors are uploaded instead of crops
+
+        CascadeFaceProcessor(FaceSelector faceSelector, EnrollmentPipeline pipeline, FrameBufferPool pool,
+                             LatencyHistogram detectionTime, EnrollmentMetrics metrics) {
+            this.faceSelector = faceSelector;
+            this.pipeline = pipeline;
+            this.pool = pool;
+            this.metrics = metrics;
+            final FaceDetectorFactory[] loaded = new FaceDetectorFactory[1];
+            try {
+                //decoding has started already, only this worker waits. On the shared scheduler of a bulk import
+                //a spare worker is started meanwhile
+                EnrollmentPipeline.block(new EnrollmentPipeline.Blocking() {
+                    @Override
+                    public void run() {
+                        loaded[0] = detectorService.awaitFactory();
+                    }
+                });
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            FaceDetectorFactory factory = loaded[0];
+            if (factory != null) {
+                detector = factory.create(pool, detectionTime);
+                if (detector == null) {
+                    Log.e(TAG, "Failed to load face detector " + factory.getBackend());
+                }
+            }
+            if (LbpDescriptor.PAYLOAD_TYPE.equals(FACE_PAYLOAD)) {
+                descriptor = new LbpDescriptor(TRAIN_IMAGE_WIDTH, TRAIN_IMAGE_HEIGHT);
+            }
+        }
+
+        @Override
+        public List<byte[]> process(Mat frame) {
+            if (faceSelector.isSatisfied()) {//frames decoded before the target was met are dropped
+                return new ArrayList<>();
+            }
+            List<byte[]> encodedFaces = processFrame(frame);
+            if (faceSelector.isSatisfied()) {
+                pipeline.finishEarly();// no need to decode the rest of the video
+            }
+            return encodedFaces;
+        }
+
+        /**
+         this method is used to process each frame. it finds face, crop faces and compress them, or compute
+         their LBP descriptors. Faces that are too small, blurry or duplicates of faces already sent are skipped
+         parameter: Frame
+         return: compressed faces or descriptors found in the frame
+         exception: none
+         */
+        public List<byte[]> processFrame(Mat frame) {
+            List<byte[]> encodedFaces = new ArrayList<>();
+            if (detector == null) { //make sure face detector is not null
+                return encodedFaces;
+            }
+            Rect[] facesArray = detector.detect(frame);//get all detected faces, in full resolution coordinates
+            if (EnrollmentMetrics.isEnabled()) {
+                Log.i(TAG, "called face detector");
+                Log.i("REST","number of face "+facesArray.length);
+            }
+            for (int faceIterator = 0; faceIterator < facesArray.length; faceIterator++) {// iterate through each face
+                Mat mcrop=frame.submat(facesArray[faceIterator]);
+                try {
+                    if (!faceSelector.accept(mcrop)){//not usable or already have a similar face
+                        continue;
+                    }
+                    long started = metrics.start();
+                    if (descriptor != null) {//descriptor of the full crop, the server would resize it anyway
+                        encodedFaces.add(descriptor.compute(mcrop));
+                    } else if (mcrop.rows()>RESIZE_WIDTH || mcrop.cols()>RESIZE_HEIGHT){//resize face if it is big
+                        Mat resized = pool.acquire(mcrop.cols()/2, mcrop.rows()/2, mcrop.type());
+                        Imgproc.resize(mcrop,resized, new Size((int)mcrop.rows()/2,(int)mcrop.cols()/2));
+                        encodedFaces.add(encodeImage(resized));
+                        pool.release(resized);
+                    } else {
+                        encodedFaces.add(encodeImage(mcrop));
+                    }
+                    metrics.stop(EnrollmentMetrics.Stage.ENCODE, started);
+                } finally {
+                    mcrop.release(); //header of the region only, pixels belong to the frame
+                }
+            }
+            return encodedFaces;
+        }
+
+        /**
+         this method is used to compress a face image to utilize the network bandwith
+         parameter: Face image
+         return: JPEG bytes of the face
+         exception: none
+         */
+        public byte[] encodeImage(Mat img){
+            Imgcodecs.imencode(".jpg",img,mb, params90);
+            return mb.toArray();// convert to a byte array
+        }
+
+        @Override
+        public void close() {
+            if (detector != null) {
+                Log.i(TAG, "detector " + detector.getSummary());
+                detector.close();
+                detector = null;
+            }
+            if (descriptor != null) {
+                descriptor.close();
+                descriptor = null;
+            }
+            mb.release();
+            params90.release();
+        }
+    }
+
     /**
      This method load and initialize FFmpeg instance which is used to read and convert video files
      parameter:none
@@ -524,34 +1319,16 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
                 {
                     Log.i(TAG, "OpenCV loaded successfully");
 
-                    try {
-                        InputStream is = getResources().openRawResource(R.raw.haarcascade_frontalface_alt_tree);
-                        File cascadeDir = getDir("cascade", Context.MODE_PRIVATE);
-                        File mCascadeFile = new File(cascadeDir, "lbpcascade_frontalface.xml");
-                        FileOutputStream os = new FileOutputStream(mCascadeFile);
-
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        while ((bytesRead = is.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
-                        }
-                        is.close();
-                        os.close();
-                        mJavaDetector = new CascadeClassifier(mCascadeFile.getAbsolutePath());
-                        if (mJavaDetector.empty()) {
-                            Log.e(TAG, "Failed to load cascade classifier");
-                            mJavaDetector = null;
-                        } else
-                            Log.i(TAG, "Loaded cascade classifier from " + mCascadeFile.getAbsolutePath());
-
-
-                    } catch (IOException e) {
-
-                        e.printStackTrace();
-                        Log.e(TAG, "Failed to load cascade. Exception thrown: " + e);
+                    //extraction and loading run in the background once per process, a resume returns at once.
+                    //the calibration measures every backend, otherwise only the configured one is extracted
+                    detectorService.prepare(FACE_DETECTOR, DETECTOR_CALIBRATION, DETECTION_MODE, DETECT_WIDTH,
+                            MIN_FACE_SIZE, DNN_CONFIDENCE / 100f);
+                    if (bulkList != null) {
+                        String list = bulkList;
+                        bulkList = null;
+                        startBulkImport(list);
                     }
 
-
                 } break;
 
                 default:
@@ -585,6 +1362,18 @@ public class AddPersonFromGallery extends AppCompatActivity { //main class
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (enrollmentPipeline != null) {
+            enrollmentPipeline.cancel();
+        }
+        if (bulkSessions != null) {
+            for (EnrollmentSession session : bulkSessions) {
+                session.cancel();
+            }
+            bulkScheduler.shutdownNow();
+        }
+        if (uploadJournal != null) {
+            uploadJournal.close();
+        }
         txt2Speech.close();
         System.exit(0);
     }
@@ -0,0 +1,367 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class sends face images of an enrollment to the server in batches. Sending one POST per face repeats
+ the whole person record for every image and costs one round trip each, which is slow over cellular.
+ Task performs:
+ 1. Collect compressed faces, each under an id unique within the enrollment given by the caller (the upload
+    journal), so a face resent after a restart keeps its id
+ 2. Send a batch once it holds "batchSize" faces or the oldest face has waited "maxDelayMs"
+ 3. Send person name and id once per batch together with the list of images
+ 4. Report every image the server acknowledged so the caller can count them
+ 5. Count bytes put on the wire so the transports can be compared
+ 6. Keep the number of batches waiting for the server within an adaptive send window, the sender blocks
+    while the window is full which slows the whole enrollment pipeline down to what the server can take
+ 7. Tell the caller once every image sent has been acknowledged or has failed
+ 8. Report round trip, server write time (write_ms of the answer), faces and bytes sent to the enrollment metrics
+ Deadlines of every uploader run on one shared daemon timer. The timer sends a batch only when the send window
+ has a free slot, it never waits for one: a batch it can not send is retried at the next deadline or sent by
+ the upload thread with its next face or finish.
+ Transports: JSON sends Base64 pictures inside a JSON object, BINARY sends raw JPEG bytes as length
+ prefixed frames (see BinaryBatchRequest).
+ Payload: a face is a JPEG crop, or its LBP descriptor (see LbpDescriptor). The payload type is sent with
+ every batch, faces of one enrollment all have the same type.
+ Note: the getpictures webservice accepts both and answers with the ids of the images it stored.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.util.Base64;
+import android.util.Log;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.JsonObjectRequest;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BatchUploader {
+    private static final String TAG = "REST"; // Tag to filter logs
+    //batch deadlines of all uploaders, a daemon thread so a cancelled or failed enrollment leaves nothing running
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "batch-deadline");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public enum Transport { JSON, BINARY }
+    public static final String PAYLOAD_CROP = "crop"; //JPEG crops, the payload when none is announced
+
+    /**
+     Receives acknowledgements from the server. Called on the thread Volley delivers responses on
+     */
+    public interface AckListener {
+        void onAcknowledged(int imageId);
+        void onFailed(List<Integer> imageIds, VolleyError error);
+    }
+
+    private final SafeAccessClient client;
+    private final String submitURL;
+    private final String personName;
+    private final int personId;
+    private final int batchSize;
+    private final long maxDelayMs;
+    private final AckListener listener;
+    private final Transport transport;
+    private final String payloadType;
+    private final SendWindow window;
+    private final EnrollmentMetrics metrics;
+    private final AtomicLong bytesOnWire = new AtomicLong();
+    private final AtomicInteger resolvedImages = new AtomicInteger(); //acknowledged or failed
+    private final AtomicInteger acknowledgedImages = new AtomicInteger();
+    private final AtomicBoolean drainedReported = new AtomicBoolean(false);
+    private final List<Integer> pendingIds = new ArrayList<>();
+    private final List<byte[]> pendingFaces = new ArrayList<>();
+    private ScheduledFuture<?> deadline;
+    private int queuedImages = 0;
+    private boolean finished = false;
+    private volatile boolean cancelled = false;
+    private Runnable onDrained;
+
+    /**
+     This constructor is to prepare an uploader for one enrollment
+     parameter: client, submitURL - getpictures webservice, personName, personId, batchSize - faces per request,
+                maxDelayMs - longest time a face waits for its batch to fill, transport, payloadType - PAYLOAD_CROP
+                or LbpDescriptor.PAYLOAD_TYPE, window - limits batches waiting for the server, metrics - of the
+                enrollment, listener
+     return: None
+     exception: none
+     */
+    public BatchUploader(SafeAccessClient client, String submitURL, String personName, int personId,
+                         int batchSize, long maxDelayMs, Transport transport, String payloadType, SendWindow window,
+                         EnrollmentMetrics metrics, AckListener listener) {
+        this.window = window;
+        this.metrics = metrics;
+        this.transport = transport;
+        this.payloadType = payloadType;
+        this.client = client;
+        this.submitURL = submitURL;
+        this.personName = personName;
+        this.personId = personId;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxDelayMs = maxDelayMs;
+        this.listener = listener;
+    }
+
+    /**
+     This method is to queue a face for upload. Blocks while the send window is full
+     parameter: imageId - id the server acknowledges the face with, face - JPEG bytes or descriptor
+     return: None
+     exception: none
+     */
+    public void add(int imageId, byte[] face) {
+        Batch batch = null;
+        synchronized (this) {
+            if (cancelled) {//the enrollment was replaced, late faces are dropped
+                return;
+            }
+            queuedImages++;
+            pendingIds.add(imageId);
+            pendingFaces.add(face);
+            if (pendingFaces.size() >= batchSize) {
+                batch = takeBatch();
+            } else if (deadline == null) {
+                scheduleDeadline();
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     This method is to send whatever is waiting without waiting for the batch to fill
+     parameter: None
+     return: None
+     exception: none
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (this) {
+            batch = takeBatch();
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    //caller holds the lock
+    private void scheduleDeadline() {
+        deadline = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushDue();
+            }
+        }, maxDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    //timer thread: sends the waiting faces only if the window has room, the timer must never block
+    private void flushDue() {
+        Batch batch;
+        synchronized (this) {
+            deadline = null;
+            if (pendingFaces.isEmpty()) {
+                return;
+            }
+            if (!window.tryAcquire()) {
+                scheduleDeadline(); //the window is full anyway, the upload thread or the next deadline sends it
+                return;
+            }
+            batch = takeBatch();
+        }
+        transmit(batch);
+    }
+
+    /**
+     This method is to send what is left, stop the deadline and get told when every image is settled
+     parameter: onDrained - run once all images are acknowledged or failed, on the thread of the last answer
+     return: None
+     exception: none
+     */
+    public void finish(Runnable onDrained) {
+        flush();
+        synchronized (this) {
+            finished = true;
+            this.onDrained = onDrained;
+        }
+        checkDrained();
+    }
+
+    /**
+     This method is to stop an uploader whose enrollment was replaced. Faces not sent yet are dropped, requests
+     already sent are let finish so their acknowledgements still reach the journal
+     parameter: onDrained - run once every request sent is answered, on the thread of the last answer
+     return: None
+     exception: none
+     */
+    public void cancel(Runnable onDrained) {
+        synchronized (this) {
+            cancelled = true;
+            Batch dropped = takeBatch();
+            if (dropped != null) {
+                resolvedImages.addAndGet(dropped.ids.size());
+            }
+            finished = true;
+            this.onDrained = onDrained;
+        }
+        checkDrained();
+    }
+
+    public int getAcknowledgedImages() {
+        return acknowledgedImages.get();
+    }
+
+    public long getBytesOnWire() {
+        return bytesOnWire.get();
+    }
+
+    public synchronized int getQueuedImages() {
+        return queuedImages;
+    }
+
+    //caller holds the lock
+    private Batch takeBatch() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        if (pendingFaces.isEmpty()) {
+            return null;
+        }
+        Batch batch = new Batch(new ArrayList<>(pendingIds), new ArrayList<>(pendingFaces));
+        pendingIds.clear();
+        pendingFaces.clear();
+        return batch;
+    }
+
+    //waits for a slot of the send window, then sends
+    private void send(Batch batch) {
+        try {
+            window.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            resolve(batch, 0);
+            return;
+        }
+        transmit(batch);
+    }
+
+    //one request for the whole batch: person fields once, then id and picture of every face. A window slot is taken
+    private void transmit(final Batch batch) {
+        if (cancelled) {//taken before the cancel, waited for a slot after it
+            window.onFailed();
+            resolve(batch, 0);
+            return;
+        }
+        final long started = System.nanoTime();
+        Response.Listener<JSONObject> onResponse = new Response.Listener<JSONObject>() {
+            @Override
+            public void onResponse(JSONObject response) {
+                long roundTrip = System.nanoTime() - started;
+                window.onAcknowledged(roundTrip);
+                metrics.record(EnrollmentMetrics.Stage.UPLOAD_RTT, roundTrip);
+                if (response.has("write_ms")) {
+                    metrics.record(EnrollmentMetrics.Stage.SERVER_WRITE, response.optLong("write_ms", 0) * 1000000);
+                }
+                JSONArray acks = response.optJSONArray("acks");
+                int acknowledged = acks == null ? 0 : acks.length();
+                for (int ackIterator = 0; ackIterator < acknowledged; ackIterator++) {
+                    listener.onAcknowledged(acks.optInt(ackIterator, -1));
+                }
+                resolve(batch, acknowledged);
+            }
+        };
+        Response.ErrorListener onError = new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                Log.i(TAG, error.toString());
+                metrics.add(EnrollmentMetrics.Counter.FAILED_UPLOADS, batch.ids.size());
+                window.onFailed();
+                listener.onFailed(batch.ids, error);
+                resolve(batch, 0);
+            }
+        };
+        try {
+            Request<JSONObject> request;
+            if (transport == Transport.BINARY) {
+                request = new BinaryBatchRequest(submitURL, personName, personId, payloadType, batch.ids, batch.faces,
+                        onResponse, onError);
+            } else {
+                request = new JsonObjectRequest(Request.Method.POST, submitURL, toJson(batch.ids, batch.faces), onResponse, onError);
+            }
+            int bytes = request.getBody().length;
+            bytesOnWire.addAndGet(bytes);
+            metrics.add(EnrollmentMetrics.Counter.BYTES_SENT, bytes);
+            metrics.add(EnrollmentMetrics.Counter.FACES_SENT, batch.ids.size());
+            client.add(request);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            window.onFailed();
+            resolve(batch, 0);
+        }
+    }
+
+    //images of the batch the server did not acknowledge count as failed
+    private void resolve(Batch batch, int acknowledged) {
+        acknowledgedImages.addAndGet(acknowledged);
+        resolvedImages.addAndGet(batch.ids.size());
+        checkDrained();
+    }
+
+    private void checkDrained() {
+        Runnable drained;
+        synchronized (this) {
+            if (!finished || resolvedImages.get() < queuedImages || !drainedReported.compareAndSet(false, true)) {
+                return;
+            }
+            drained = onDrained;
+        }
+        Log.i(TAG, "uploaded " + acknowledgedImages.get() + "/" + queuedImages + " images " + transport + " " + payloadType
+                + " bytes on wire " + bytesOnWire.get());
+        drained.run();
+    }
+
+    private JSONObject toJson(List<Integer> batchIds, List<byte[]> batchFaces) throws Exception {
+        JSONObject batch = new JSONObject();
+        batch.put("name", personName);
+        batch.put("person_id", personId);
+        batch.put("payload_type", payloadType);
+        JSONArray images = new JSONArray();
+        for (int imageIterator = 0; imageIterator < batchIds.size(); imageIterator++) {
+            JSONObject image = new JSONObject();
+            image.put("id", batchIds.get(imageIterator));
+            image.put("pic", Base64.encodeToString(batchFaces.get(imageIterator), Base64.NO_WRAP));
+            images.put(image);
+        }
+        batch.put("images", images);
+        return batch;
+    }
+
+    /**
+     Faces sent together in one request
+     */
+    private static class Batch {
+        final List<Integer> ids;
+        final List<byte[]> faces;
+
+        Batch(List<Integer> ids, List<byte[]> faces) {
+            this.ids = ids;
+            this.faces = faces;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class is a Volley request that sends a batch of face images as raw JPEG bytes instead of Base64 text
+ inside JSON. Base64 adds about a third to the payload, and building the JSON copies the image several
+ times (Base64 string, JSON string, UTF-8 bytes). Here each image is copied once, straight into the body.
+ Body format, all integers big endian:
+    repeated for every image: [int32 image id][int32 length][length bytes of JPEG]
+ Person name and id travel in the X-Person-Name and X-Person-Id headers, the payload type of the frames
+ (crop for JPEG, lbp for descriptors) in X-Payload-Type.
+ The server answers with the same JSON as the JSON mode of getpictures.
+ */
+
+package edu.memphis.com.safeaccess;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import org.json.JSONObject;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BinaryBatchRequest extends Request<JSONObject> {
+    public static final String CONTENT_TYPE = "application/octet-stream";
+    private static final int FRAME_HEADER_BYTES = 8; //id and length of every image
+
+    private final Response.Listener<JSONObject> listener;
+    private final Map<String, String> headers = new HashMap<>();
+    private final byte[] body;
+
+    /**
+     This constructor is to lay the images out in the request body
+     parameter: url, personName, personId, payloadType, imageIds, faces - JPEG bytes or descriptors in the same
+                order as imageIds,
+                listener, errorListener
+     return: None
+     exception: none
+     */
+    public BinaryBatchRequest(String url, String personName, int personId, String payloadType, List<Integer> imageIds,
+                              List<byte[]> faces, Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
+        super(Method.POST, url, errorListener);
+        this.listener = listener;
+        headers.put("X-Person-Name", personName);
+        headers.put("X-Person-Id", String.valueOf(personId));
+        headers.put("X-Payload-Type", payloadType);
+        int size = 0;
+        for (byte[] face : faces) {
+            size += FRAME_HEADER_BYTES + face.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size); //sized exactly, nothing is copied twice
+        for (int imageIterator = 0; imageIterator < faces.size(); imageIterator++) {
+            byte[] face = faces.get(imageIterator);
+            buffer.putInt(imageIds.get(imageIterator));
+            buffer.putInt(face.length);
+            buffer.put(face);
+        }
+        body = buffer.array();
+        setShouldCache(false);
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Override
+    protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+        try {
+            String json = new String(response.data, HttpHeaderParser.parseCharset(response.headers, "utf-8"));
+            return Response.success(new JSONObject(json), HttpHeaderParser.parseCacheHeaders(response));
+        } catch (Exception ex) {
+            return Response.error(new ParseError(ex));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(JSONObject response) {
+        listener.onResponse(response);
+    }
+}
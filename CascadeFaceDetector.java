@@ -0,0 +1,187 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class runs a cascade classifier on a gray frame faster than a plain detectMultiScale on the full
+ resolution frame. The cost of the cascade grows with the number of pixels and with the number of scales
+ searched, so both are cut down.
+ Task performs:
+ 1. Detect on a copy of the frame downscaled to "detectWidth" pixels wide and map the faces back to the
+    full resolution frame. Crops are still cut from the full resolution frame so their quality is unchanged
+ 2. Skip scales that can not hold a usable face: faces smaller than "minFaceSize" are never searched
+ 3. Once a face is found, search only a region around it in the next frame and only face sizes close to
+    it. If nothing is found there, fall back to the whole frame
+ 4. Record the time of every detection in a histogram
+ Modes: FULL is the original detectMultiScale on the full frame, kept for comparison. PYRAMID does all of the above.
+ Works with Haar and LBP cascades alike, the cascade file decides.
+ Note: one instance per detect worker, it is not thread safe. Frames a worker sees are not strictly
+ consecutive, a face lost because of that only costs one full frame search.
+ */
+
+package edu.memphis.com.safeaccess;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+public class CascadeFaceDetector implements FaceDetector {
+    public enum Mode { FULL, PYRAMID }
+
+    private static final double SCALE_FACTOR = 1.1; //default of detectMultiScale
+    private static final int MIN_NEIGHBORS = 3; //default of detectMultiScale
+    private static final double ROI_MARGIN = 0.5; //part of the last face added on every side of the search region
+    private static final double TRACK_MIN_SIZE = 0.6; //smallest face searched near the last one, relative to it
+    private static final double TRACK_MAX_SIZE = 1.6; //largest face searched near the last one, relative to it
+
+    private final CascadeClassifier classifier;
+    private final Mode mode;
+    private final int detectWidth;
+    private final int minFaceSize;
+    private final FrameBufferPool pool;
+    private final LatencyHistogram histogram;
+    private final MatOfRect faces = new MatOfRect();
+    private Rect lastFace = null; //in detection (downscaled) coordinates
+    private long roiHits = 0;
+    private long fullSearches = 0;
+
+    /**
+     This constructor is to wrap a loaded classifier
+     parameter: classifier, mode, detectWidth - width of the frame the cascade runs on in PYRAMID mode,
+                minFaceSize - smallest face worth finding in full resolution pixels, pool, histogram - gets the
+                time of every detection, may be shared by several detectors
+     return: None
+     exception: none
+     */
+    public CascadeFaceDetector(CascadeClassifier classifier, Mode mode, int detectWidth, int minFaceSize,
+                               FrameBufferPool pool, LatencyHistogram histogram) {
+        this.classifier = classifier;
+        this.mode = mode;
+        this.detectWidth = detectWidth;
+        this.minFaceSize = minFaceSize;
+        this.pool = pool;
+        this.histogram = histogram;
+    }
+
+    /**
+     This method is to find faces in a frame
+     parameter: gray - rotated gray frame at full resolution
+     return: faces in full resolution coordinates
+     exception: none
+     */
+    @Override
+    public Rect[] detect(Mat gray) {
+        long started = System.nanoTime();
+        try {
+            if (mode == Mode.FULL) {
+                classifier.detectMultiScale(gray, faces);
+                return faces.toArray();
+            }
+            return detectScaled(gray);
+        } finally {
+            histogram.record(System.nanoTime() - started);
+        }
+    }
+
+    public long getRoiHits() {
+        return roiHits;
+    }
+
+    public long getFullSearches() {
+        return fullSearches;
+    }
+
+    @Override
+    public String getSummary() {
+        return "cascade " + mode + " tracked " + roiHits + " full searches " + fullSearches;
+    }
+
+    @Override
+    public void close() {
+        faces.release();
+    }
+
+    private Rect[] detectScaled(Mat gray) {
+        double scale = Math.min(1.0, (double) detectWidth / gray.cols());
+        Mat small = gray;
+        if (scale < 1.0) {
+            small = pool.acquire((int) Math.round(gray.rows() * scale), (int) Math.round(gray.cols() * scale), gray.type());
+            Imgproc.resize(gray, small, small.size(), 0, 0, Imgproc.INTER_AREA); //averages pixels, keeps edges the cascade needs
+        }
+        try {
+            Rect[] found = null;
+            if (lastFace != null) {
+                found = detectAroundLastFace(small);
+                if (found.length > 0) {
+                    roiHits++;
+                }
+            }
+            if (found == null || found.length == 0) {
+                fullSearches++;
+                int minSize = (int) (minFaceSize * scale);
+                classifier.detectMultiScale(small, faces, SCALE_FACTOR, MIN_NEIGHBORS, 0,
+                        new Size(minSize, minSize), new Size());
+                found = faces.toArray();
+            }
+            lastFace = largest(found);
+            Rect[] mapped = new Rect[found.length];
+            for (int faceIterator = 0; faceIterator < found.length; faceIterator++) {
+                mapped[faceIterator] = toFullResolution(found[faceIterator], scale, gray);
+            }
+            return mapped;
+        } finally {
+            if (small != gray) {
+                pool.release(small);
+            }
+        }
+    }
+
+    //search the region around the last face for faces of about its size, coordinates of the result are in "small"
+    private Rect[] detectAroundLastFace(Mat small) {
+        int margin = (int) (Math.max(lastFace.width, lastFace.height) * ROI_MARGIN);
+        int left = Math.max(0, lastFace.x - margin);
+        int top = Math.max(0, lastFace.y - margin);
+        int right = Math.min(small.cols(), lastFace.x + lastFace.width + margin);
+        int bottom = Math.min(small.rows(), lastFace.y + lastFace.height + margin);
+        if (right <= left || bottom <= top) {
+            return new Rect[0];
+        }
+        Mat region = small.submat(top, bottom, left, right);
+        try {
+            int minSize = (int) (lastFace.width * TRACK_MIN_SIZE);
+            int maxSize = (int) (lastFace.width * TRACK_MAX_SIZE);
+            classifier.detectMultiScale(region, faces, SCALE_FACTOR, MIN_NEIGHBORS, 0,
+                    new Size(minSize, minSize), new Size(maxSize, maxSize));
+            Rect[] found = faces.toArray();
+            for (Rect face : found) {
+                face.x += left;
+                face.y += top;
+            }
+            return found;
+        } finally {
+            region.release(); //header of the region only
+        }
+    }
+
+    private static Rect largest(Rect[] found) {
+        Rect largest = null;
+        for (Rect face : found) {
+            if (largest == null || face.area() > largest.area()) {
+                largest = face;
+            }
+        }
+        return largest;
+    }
+
+    //scale back and clip, rounding can push a face touching the border past the frame
+    private static Rect toFullResolution(Rect face, double scale, Mat gray) {
+        int x = (int) Math.round(face.x / scale);
+        int y = (int) Math.round(face.y / scale);
+        int width = Math.min((int) Math.round(face.width / scale), gray.cols() - x);
+        int height = Math.min((int) Math.round(face.height / scale), gray.rows() - y);
+        return new Rect(x, y, width, height);
+    }
+}
@@ -0,0 +1,158 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class writes sampled decoded frames to storage for debugging, off the decode thread. Before it, the
+ decode loop encoded and wrote every frame as a JPEG, only to overwrite the same 10 files again and again.
+ Task performs:
+ 1. Capture one of every DEBUG_FRAME_INTERVAL frames, only while DEBUG_FRAMES=on (off by default)
+ 2. Hand a copy of the frame to a background writer through a small bounded queue. When the writer is
+    behind, the oldest waiting frame is dropped, the decode thread never waits for it
+ 3. Encode and write the frames as JPEG next to the video, the file names cycle through DEBUG_FRAME_FILES slots
+ While off, getInstance() returns null and the decode loop pays one read of a static field per frame.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.util.Log;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DebugFrameSink {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static volatile DebugFrameSink instance = null; //null while debug capture is off
+
+    private final int interval;
+    private final int files;
+    private final BlockingQueue<Capture> queue;
+    private final AtomicInteger captured = new AtomicInteger(); //selects the file a capture is written to
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Thread writer;
+    private final Object queueLock = new Object(); //capture and close offer and drop under it, the end marker is never dropped
+    private volatile boolean closed = false; //set under queueLock
+
+    /**
+     This method is to switch debug capture on or off for the process. A sink replaced or switched off writes
+     what it has queued and stops
+     parameter: on, interval - every interval-th frame is captured, files - slots of the file names before the
+                first is overwritten, capacity - frames waiting for the writer
+     return: None
+     exception: none
+     */
+    public static synchronized void configure(boolean on, int interval, int files, int capacity) {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+        if (on) {
+            instance = new DebugFrameSink(interval, files, capacity);
+        }
+    }
+
+    /**
+     This method is to get the sink of the process
+     parameter: none
+     return: sink, null while debug capture is off
+     exception: none
+     */
+    public static DebugFrameSink getInstance() {
+        return instance;
+    }
+
+    private DebugFrameSink(int interval, int files, int capacity) {
+        this.interval = Math.max(1, interval);
+        this.files = Math.max(1, files);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "debug-frames");
+        writer.setDaemon(true); //never keeps the process alive
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     This method is to capture a frame if it is sampled. Returns at once, the frame is copied and written later
+     parameter: prefix - file name without the slot number, frameIndex - index of the frame in the video,
+                frame - not kept, the caller may release it right after
+     return: None
+     exception: none
+     */
+    public void capture(String prefix, int frameIndex, Mat frame) {
+        if (closed || frameIndex % interval != 0) {
+            return;
+        }
+        Capture capture = new Capture(prefix + (captured.getAndIncrement() % files) + "_1.jpg", frame.clone());
+        synchronized (queueLock) {
+            if (closed) {//closed while the frame was copied, the writer may be gone already
+                capture.image.release();
+                return;
+            }
+            offerDroppingOldest(capture);
+        }
+    }
+
+    //writer thread: encodes and writes captures until the sink is closed
+    private void write() {
+        try {
+            while (true) {
+                Capture capture = queue.take();
+                if (capture.image == null) {
+                    break;
+                }
+                try {
+                    Imgcodecs.imwrite(capture.path, capture.image);
+                    written.incrementAndGet();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                } finally {
+                    capture.image.release();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "debug frames written " + written.get() + " dropped " + dropped.get());
+    }
+
+    //end of the queue, frames queued before it are still written unless the queue is full
+    private void close() {
+        synchronized (queueLock) {
+            closed = true;
+            offerDroppingOldest(new Capture(null, null));
+        }
+    }
+
+    //writer is behind, the newest frame tells more. Called under queueLock, before the end marker is queued
+    private void offerDroppingOldest(Capture capture) {
+        while (!queue.offer(capture)) {
+            Capture oldest = queue.poll();
+            if (oldest != null && oldest.image != null) {
+                oldest.image.release();
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     Copy of a frame waiting for the writer
+     */
+    private static class Capture {
+        final String path;
+        final Mat image;
+
+        Capture(String path, Mat image) {
+            this.path = path;
+            this.image = image;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class measures the face detector backends on a sample video so the fastest one that is still
+ accurate enough can be put in the config file. An enrollment video shows one face, the user's, in every
+ frame, so recall is measured as the share of sampled frames in which at least one face was found; more
+ than one face per frame on average points at false detections.
+ Task performs:
+ 1. Run every backend over the same sampled frames, timing the detections only (decoding is not counted)
+ 2. Report frames per second, faces per second, recall and faces per frame of each backend
+ 3. Pick the fastest backend whose recall reaches the required minimum
+ Uses OpenCV only, it runs in the app (config DETECTOR_CALIBRATION) and on a desktop (benchmarks).
+ */
+
+package edu.memphis.com.safeaccess;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class DetectorCalibration {
+
+    /**
+     Opens the sample video again for every backend
+     */
+    public interface FrameSourceFactory {
+        EnrollmentPipeline.FrameSource open();
+    }
+
+    private final FrameSourceFactory frames;
+    private final FrameBufferPool pool;
+
+    /**
+     This constructor is to set the sample video
+     parameter: frames - opens the sampled frames, gray and upright, pool - the frames are given back to it
+     return: None
+     exception: none
+     */
+    public DetectorCalibration(FrameSourceFactory frames, FrameBufferPool pool) {
+        this.frames = frames;
+        this.pool = pool;
+    }
+
+    /**
+     This method is to measure every backend
+     parameter: factory - settings shared by the backends
+     return: one result per backend that could be loaded
+     exception: none
+     */
+    public List<Result> calibrateAll(FaceDetectorFactory factory) {
+        List<Result> results = new ArrayList<>();
+        for (FaceDetectorFactory.Backend backend : FaceDetectorFactory.Backend.values()) {
+            Result result = calibrate(factory.withBackend(backend));
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     This method is to measure one backend
+     parameter: factory - creates the detector of the backend
+     return: result, null when the detector can not be loaded
+     exception: none
+     */
+    public Result calibrate(FaceDetectorFactory factory) {
+        FaceDetector detector = factory.create(pool, new LatencyHistogram("calibration " + factory.getBackend()));
+        if (detector == null) {
+            return null;
+        }
+        Result result = new Result(factory.getBackend());
+        EnrollmentPipeline.FrameSource source = frames.open();
+        try {
+            Mat frame;
+            while ((frame = source.nextFrame()) != null) {
+                try {
+                    long started = System.nanoTime();
+                    Rect[] faces = detector.detect(frame);
+                    result.detectionNanos += System.nanoTime() - started;
+                    result.frames++;
+                    result.faces += faces.length;
+                    if (faces.length > 0) {
+                        result.framesWithFace++;
+                    }
+                } finally {
+                    pool.release(frame);
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            source.close();
+            detector.close();
+        }
+        return result;
+    }
+
+    /**
+     This method is to pick a backend
+     parameter: results, minRecall - lowest acceptable recall, 0 to 1
+     return: fastest result reaching minRecall, the one of the best recall when none does, null without results
+     exception: none
+     */
+    public static Result choose(List<Result> results, double minRecall) {
+        Result chosen = null;
+        for (Result result : results) {
+            if (result.getRecall() < minRecall) {
+                continue;
+            }
+            if (chosen == null || result.getFramesPerSecond() > chosen.getFramesPerSecond()) {
+                chosen = result;
+            }
+        }
+        if (chosen != null) {
+            return chosen;
+        }
+        for (Result result : results) {
+            if (chosen == null || result.getRecall() > chosen.getRecall()) {
+                chosen = result;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     Measurements of one backend
+     */
+    public static class Result {
+        public final FaceDetectorFactory.Backend backend;
+        int frames = 0;
+        int framesWithFace = 0;
+        int faces = 0;
+        long detectionNanos = 0;
+
+        Result(FaceDetectorFactory.Backend backend) {
+            this.backend = backend;
+        }
+
+        public double getFramesPerSecond() {
+            return detectionNanos == 0 ? 0 : frames * 1e9 / detectionNanos;
+        }
+
+        public double getFacesPerSecond() {
+            return detectionNanos == 0 ? 0 : faces * 1e9 / detectionNanos;
+        }
+
+        public double getRecall() {
+            return frames == 0 ? 0 : (double) framesWithFace / frames;
+        }
+
+        public double getFacesPerFrame() {
+            return frames == 0 ? 0 : (double) faces / frames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s frames %d fps %.1f faces/s %.1f recall %.2f faces/frame %.2f",
+                    backend, frames, getFramesPerSecond(), getFacesPerSecond(), getRecall(), getFacesPerFrame());
+        }
+    }
+}
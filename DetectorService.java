@@ -0,0 +1,260 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class prepares the face detector once per process, off the UI thread. Before it, every onResume
+ copied the raw model resources to disk and parsed the cascade on the main thread.
+ Task performs:
+ 1. Extract the model files of a backend from the raw resources, only when the SHA-256 of the resource
+    differs from the one stored next to the extracted file (a new app version with a new model) or the file
+    is missing or truncated
+ 2. Load the model in the background, so the first detect worker does not parse it
+ 3. Hand the prepared FaceDetectorFactory to whoever needs it, waiting only if it is not ready yet
+ Preparing again with the same settings (every onResume) returns at once, unless the last try failed: a
+ failed extract or load is tried again on the next prepare. The work runs on one loader thread, so a later
+ prepare or a calibration result is applied after the one in progress.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.content.Context;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DetectorService {
+    private static final String TAG = "OCVSample::Activity"; // Tag to filter logs
+    private static final String HASH_SUFFIX = ".sha256"; //stored hash of the resource an extracted file came from
+    private static DetectorService instance;
+
+    private final Context context;
+    private final File modelDir;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    private final Set<String> checkedModels = new HashSet<>(); //model files already checked by this process, loader thread only
+    private String preparedSettings = null;
+    private Future<FaceDetectorFactory> factory = null;
+
+    /**
+     This method is to get the process wide service, created on first use
+     parameter: context - any context, the application context is kept
+     return: shared service
+     exception: none
+     */
+    public static synchronized DetectorService getInstance(Context context) {
+        if (instance == null) {
+            instance = new DetectorService(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private DetectorService(Context context) {
+        this.context = context;
+        this.modelDir = context.getDir("cascade", Context.MODE_PRIVATE);
+    }
+
+    /**
+     This method is to start preparing a detector in the background, OpenCV must be loaded
+     parameter: backend, allBackends - extract the files of every backend too (calibration), cascadeMode,
+                detectWidth, minFaceSize, dnnConfidence - see FaceDetectorFactory
+     return: None
+     exception: none
+     */
+    public synchronized void prepare(final FaceDetectorFactory.Backend backend, final boolean allBackends,
+                                     final CascadeFaceDetector.Mode cascadeMode, final int detectWidth,
+                                     final int minFaceSize, final float dnnConfidence) {
+        final String settings = backend + " " + allBackends + " " + cascadeMode + " " + detectWidth + " " + minFaceSize
+                + " " + dnnConfidence;
+        if (settings.equals(preparedSettings)) {
+            return; //prepared or being prepared, nothing to do on resume
+        }
+        preparedSettings = settings;
+        factory = loader.submit(new Callable<FaceDetectorFactory>() {
+            @Override
+            public FaceDetectorFactory call() {
+                long started = System.nanoTime();
+                try {
+                    for (FaceDetectorFactory.Backend modelBackend : FaceDetectorFactory.Backend.values()) {
+                        if (modelBackend == backend || allBackends) {
+                            for (String modelFile : FaceDetectorFactory.modelFiles(modelBackend)) {
+                                extract(modelFile);
+                            }
+                        }
+                    }
+                } catch (IOException ex) {
+                    Log.e(TAG, "Failed to extract face detector models", ex);
+                    forget(settings);
+                    return null;
+                }
+                FaceDetectorFactory prepared = new FaceDetectorFactory(backend, modelDir, cascadeMode, detectWidth,
+                        minFaceSize, dnnConfidence);
+                if (!prepared.preload()) {
+                    Log.e(TAG, "Failed to load face detector " + backend);
+                    forget(settings);
+                    return null;
+                }
+                Log.i(TAG, "Loaded " + backend + " face detector in " + (System.nanoTime() - started) / 1000000 + " ms");
+                return prepared;
+            }
+        });
+    }
+
+    //a failed try must not count as prepared, the next prepare with these settings tries again
+    private synchronized void forget(String settings) {
+        if (settings.equals(preparedSettings)) {
+            preparedSettings = null;
+        }
+    }
+
+    /**
+     This method is to switch to another prepared factory, e.g. the backend chosen by the calibration
+     parameter: chosen - factory whose model files are extracted
+     return: None
+     exception: none
+     */
+    public synchronized void use(final FaceDetectorFactory chosen) {
+        factory = loader.submit(new Callable<FaceDetectorFactory>() {
+            @Override
+            public FaceDetectorFactory call() {
+                return chosen.preload() ? chosen : null;
+            }
+        });
+    }
+
+    /**
+     This method is to get the prepared factory, waiting for the background load if it is still running.
+     Call it from a worker thread, not the UI thread
+     parameter: none
+     return: factory, null when not prepared or the models can not be loaded
+     exception: none
+     */
+    public FaceDetectorFactory awaitFactory() {
+        Future<FaceDetectorFactory> pending;
+        synchronized (this) {
+            pending = factory;
+        }
+        if (pending == null) {
+            return null;
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    //copies a raw resource to modelDir unless the extracted copy is already the same content
+    private void extract(String modelFile) throws IOException {
+        if (checkedModels.contains(modelFile)) {
+            return;
+        }
+        String resourceName = modelFile.substring(0, modelFile.lastIndexOf('.'));
+        int resourceId = context.getResources().getIdentifier(resourceName, "raw", context.getPackageName());
+        if (resourceId == 0) {
+            Log.e(TAG, "Missing raw resource " + resourceName);
+            return;
+        }
+        File target = new File(modelDir, modelFile);
+        File hashFile = new File(modelDir, modelFile + HASH_SUFFIX);
+        MessageDigest digest = newDigest();
+        long length = 0;
+        InputStream is = context.getResources().openRawResource(resourceId);
+        try {
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                length += bytesRead;
+            }
+        } finally {
+            is.close();
+        }
+        String hash = toHex(digest.digest());
+        if (target.length() == length && hash.equals(readText(hashFile))) {
+            checkedModels.add(modelFile);
+            return;
+        }
+        //write to a temporary file first, a killed process must not leave a half written model behind
+        File partial = new File(modelDir, modelFile + ".part");
+        is = context.getResources().openRawResource(resourceId);
+        OutputStream os = new FileOutputStream(partial);
+        try {
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                os.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+        if (!partial.renameTo(target)) {
+            throw new IOException("can not replace " + target);
+        }
+        os = new FileOutputStream(hashFile);
+        try {
+            os.write(hash.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            os.close();
+        }
+        checkedModels.add(modelFile);
+        Log.i(TAG, "Extracted " + modelFile + " " + length + " bytes");
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static String readText(File file) {
+        if (!file.exists()) {
+            return "";
+        }
+        try {
+            InputStream is = new FileInputStream(file);
+            try {
+                byte[] content = new byte[(int) file.length()];
+                int read = 0;
+                while (read < content.length) {
+                    int bytesRead = is.read(content, read, content.length - read);
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    read += bytesRead;
+                }
+                return new String(content, 0, read, StandardCharsets.US_ASCII).trim();
+            } finally {
+                is.close();
+            }
+        } catch (IOException ex) {
+            return "";
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte value : bytes) {
+            hex.append(String.format("%02x", value & 0xff));
+        }
+        return hex.toString();
+    }
+}
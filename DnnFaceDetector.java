@@ -0,0 +1,135 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class finds faces with the face detector of OpenCV's DNN module: a small SSD network
+ (opencv_face_detector_uint8.pb, 8 bit weights, about 2.7 MB) that runs once per frame on a 300x300
+ copy, however many faces and scales the frame holds. It finds faces turned away from the camera that
+ frontal cascades miss.
+ Task performs:
+ 1. Turn the gray frame into the 3 channel input of the network, scaled to 300x300 with the mean of its training
+ 2. Run the network once
+ 3. Keep detections above "confidence" and at least "minFaceSize" wide, mapped back to the frame and clipped
+ Note: one instance per detect worker, a Net is not thread safe.
+ */
+
+package edu.memphis.com.safeaccess;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+import org.opencv.imgproc.Imgproc;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DnnFaceDetector implements FaceDetector {
+    private static final Size INPUT_SIZE = new Size(300, 300); //input of the network
+    private static final Scalar INPUT_MEAN = new Scalar(104.0, 177.0, 123.0); //BGR mean the network was trained with
+    private static final int DETECTION_VALUES = 7; //image, class, confidence, left, top, right, bottom
+
+    private final Net net;
+    private final float confidence;
+    private final int minFaceSize;
+    private final FrameBufferPool pool;
+    private final LatencyHistogram histogram;
+    private long detections = 0;
+    private long rejected = 0;
+
+    /**
+     This constructor is to wrap a loaded network
+     parameter: net - see load, confidence - lowest score of a face, minFaceSize - smallest face worth finding in
+                pixels, pool, histogram - gets the time of every detection
+     return: None
+     exception: none
+     */
+    public DnnFaceDetector(Net net, float confidence, int minFaceSize, FrameBufferPool pool, LatencyHistogram histogram) {
+        this.net = net;
+        this.confidence = confidence;
+        this.minFaceSize = minFaceSize;
+        this.pool = pool;
+        this.histogram = histogram;
+    }
+
+    /**
+     This method is to load the network
+     parameter: modelPath - opencv_face_detector_uint8.pb, configPath - opencv_face_detector.pbtxt
+     return: network, null when it can not be loaded
+     exception: none
+     */
+    public static Net load(String modelPath, String configPath) {
+        try {
+            Net net = Dnn.readNetFromTensorflow(modelPath, configPath);
+            return net == null || net.empty() ? null : net;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public Rect[] detect(Mat gray) {
+        long started = System.nanoTime();
+        Mat color = pool.acquire(gray.rows(), gray.cols(), CvType.CV_8UC3);
+        Mat blob = null;
+        Mat output = null;
+        try {
+            Imgproc.cvtColor(gray, color, Imgproc.COLOR_GRAY2BGR); //the network takes 3 channels
+            blob = Dnn.blobFromImage(color, 1.0, INPUT_SIZE, INPUT_MEAN, false, false);
+            net.setInput(blob);
+            output = net.forward();
+            Mat rows = output.reshape(1, (int) (output.total() / DETECTION_VALUES));
+            List<Rect> faces = new ArrayList<>();
+            for (int detectionIterator = 0; detectionIterator < rows.rows(); detectionIterator++) {
+                if (rows.get(detectionIterator, 2)[0] < confidence) {
+                    continue;
+                }
+                Rect face = toFrame(rows, detectionIterator, gray);
+                if (face.width < minFaceSize || face.height < minFaceSize) {
+                    rejected++;
+                    continue;
+                }
+                faces.add(face);
+            }
+            rows.release();
+            detections += faces.size();
+            return faces.toArray(new Rect[0]);
+        } finally {
+            pool.release(color);
+            if (blob != null) {
+                blob.release();
+            }
+            if (output != null) {
+                output.release();
+            }
+            histogram.record(System.nanoTime() - started);
+        }
+    }
+
+    @Override
+    public String getSummary() {
+        return "dnn faces " + detections + " rejected small " + rejected;
+    }
+
+    @Override
+    public void close() {
+        //the network is freed with the detector
+    }
+
+    //corners are relative to the frame size and may lie outside of it
+    private static Rect toFrame(Mat rows, int row, Mat gray) {
+        int left = clip(rows.get(row, 3)[0] * gray.cols(), gray.cols());
+        int top = clip(rows.get(row, 4)[0] * gray.rows(), gray.rows());
+        int right = clip(rows.get(row, 5)[0] * gray.cols(), gray.cols());
+        int bottom = clip(rows.get(row, 6)[0] * gray.rows(), gray.rows());
+        return new Rect(left, top, Math.max(0, right - left), Math.max(0, bottom - top));
+    }
+
+    private static int clip(double value, int limit) {
+        return (int) Math.max(0, Math.min(limit, Math.round(value)));
+    }
+}
@@ -0,0 +1,171 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class collects the timings and counts of one enrollment, from the first decoded frame to the trained
+ model, so a slow enrollment can be traced to the stage that made it slow.
+ Task performs:
+ 1. Time the stages in histograms: decode, detect, encode, upload round trip, server write and training
+    (server write and training are the times the server reports)
+ 2. Count frames sampled, faces found, faces sent, bytes sent, retries and failed uploads
+ 3. Export a summary of the enrollment as JSON, to the log and to a file
+ Metrics are off unless METRICS=on in the config file. While off, start() does not read the clock, every
+ record and add returns at once, and per frame log lines guarded by isEnabled() are skipped, so the hot
+ path costs one read of a static field. Detectors record the detect stage themselves, always.
+ All methods are thread safe, stages report from their own threads.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.util.Log;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class EnrollmentMetrics {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static volatile boolean enabled = false;
+
+    public enum Stage { DECODE, DETECT, ENCODE, UPLOAD_RTT, SERVER_WRITE, TRAINING }
+    public enum Counter { FRAMES_SAMPLED, FACES_FOUND, FACES_SENT, BYTES_SENT, RETRIES, FAILED_UPLOADS }
+
+    private final String name;
+    private final long startedMillis = System.currentTimeMillis();
+    private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    /**
+     This constructor is to create the metrics of one enrollment
+     parameter: name - names the enrollment in the log and the exported file
+     return: None
+     exception: none
+     */
+    public EnrollmentMetrics(String name) {
+        this.name = name;
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = new LatencyHistogram(stage.name().toLowerCase());
+        }
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     This method is to start timing a stage
+     parameter: none
+     return: start time to pass to stop, 0 while metrics are off
+     exception: none
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     This method is to stop timing a stage
+     parameter: stage, started - returned by start
+     return: None
+     exception: none
+     */
+    public void stop(Stage stage, long started) {
+        if (started != 0) {
+            stages[stage.ordinal()].record(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     This method is to add a duration measured elsewhere, e.g. reported by the server
+     parameter: stage, nanos
+     return: None
+     exception: none
+     */
+    public void record(Stage stage, long nanos) {
+        if (enabled) {
+            stages[stage.ordinal()].record(nanos);
+        }
+    }
+
+    public void add(Counter counter, long amount) {
+        if (enabled) {
+            counters.addAndGet(counter.ordinal(), amount);
+        }
+    }
+
+    /**
+     This method is to get the histogram of a stage, for code that records into a histogram itself
+     parameter: stage
+     return: histogram
+     exception: none
+     */
+    public LatencyHistogram histogram(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    /**
+     This method is to summarize the enrollment
+     parameter: none
+     return: name, elapsed time, every stage with samples, mean, percentiles and maximum, and every counter
+     exception: Exception
+     */
+    public JSONObject toJson() throws Exception {
+        JSONObject summary = new JSONObject();
+        summary.put("name", name);
+        summary.put("started", startedMillis);
+        summary.put("elapsed_ms", System.currentTimeMillis() - startedMillis);
+        JSONObject stageSummary = new JSONObject();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = stages[stage.ordinal()];
+            JSONObject timing = new JSONObject();
+            timing.put("samples", histogram.getCount());
+            timing.put("mean_us", histogram.getMeanMicros());
+            timing.put("p50_ms", histogram.percentileMillis(0.5));
+            timing.put("p95_ms", histogram.percentileMillis(0.95));
+            timing.put("max_ms", histogram.getMaxMillis());
+            stageSummary.put(stage.name().toLowerCase(), timing);
+        }
+        summary.put("stages", stageSummary);
+        JSONObject counterSummary = new JSONObject();
+        for (Counter counter : Counter.values()) {
+            counterSummary.put(counter.name().toLowerCase(), counters.get(counter.ordinal()));
+        }
+        summary.put("counters", counterSummary);
+        return summary;
+    }
+
+    /**
+     This method is to log the summary and write it to "dir", one file per enrollment. Does nothing while
+     metrics are off
+     parameter: dir - folder of the summaries
+     return: None
+     exception: none
+     */
+    public void export(File dir) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            String summary = toJson().toString();
+            Log.i(TAG, "enrollment metrics " + summary);
+            if (!dir.exists() && !dir.mkdirs()) {
+                Log.i(TAG, "could not create " + dir);
+                return;
+            }
+            OutputStream os = new FileOutputStream(new File(dir, "enrollment-" + name + "-" + startedMillis + ".json"));
+            try {
+                os.write(summary.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                os.close();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,596 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class runs the frame extraction, face detection and upload work of AddPersonFromGallery as a
+ bounded multi-stage pipeline so that the stages overlap instead of running one after the other for
+ every frame. Stages are connected by bounded blocking queues: when a later stage falls behind the
+ earlier one blocks on put() (back pressure) instead of piling frames up in memory. Total time of an
+ enrollment approaches the cost of the slowest stage rather than the sum of all stages, and none of the
+ work runs on the UI thread.
+ Stages:
+ 1. Decode: read sampled frames from the video. Single thread, video retrievers are not thread safe
+ 2. Detect: detect, crop and compress faces. One worker per CPU core, each with its own detector
+ 3. Upload: hand compressed faces to the uploader. Single thread so requests keep their order
+ Frames handed over by the decode stage are given back to the buffer pool once the detect stage is done.
+ Decode time, frames sampled and faces found go to the metrics of the enrollment.
+ Several enrollments can share one work-stealing scheduler instead (start(ForkJoinPool), bulk import). Then
+ no stage owns a thread: decoding is a chain of one-frame steps, every frame is a detect task any idle worker
+ steals, whichever enrollment it belongs to, and uploading is a chain of steps draining the face queue. A
+ stage that has to wait (send window, full face queue) waits as a managed block, the scheduler starts a spare
+ worker meanwhile so the other enrollments keep going. The enrollments of a scheduler also share one frame
+ budget, so the frames in flight stay bounded however many videos are open.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.util.Log;
+import org.opencv.core.Mat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EnrollmentPipeline {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static final int FRAME_QUEUE_PER_WORKER = 2; // decoded frames waiting per detect worker
+    private static final int FACE_QUEUE_CAPACITY = 16; // compressed faces waiting for upload
+    private static final Frame END_OF_FRAMES = new Frame(null); //poison pill for the detect stage
+    private static final byte[] END_OF_FACES = new byte[0]; //poison pill for the upload stage
+
+    /**
+     Source of decoded frames. nextFrame returns null once there is no more frame to read. Calls never overlap,
+     on a shared scheduler successive calls may come from different workers
+     */
+    public interface FrameSource {
+        Mat nextFrame() throws Exception;
+        void close();
+    }
+
+    /**
+     Finds faces in a frame and returns them compressed. One instance is created per detect worker so
+     implementations do not need to be thread safe
+     */
+    public interface FaceProcessor {
+        List<byte[]> process(Mat frame);
+        void close();
+    }
+
+    /**
+     Creates the processor of one detect worker. The pipeline is passed so a processor can finish it early
+     */
+    public interface FaceProcessorFactory {
+        FaceProcessor create(EnrollmentPipeline pipeline);
+    }
+
+    /**
+     Sends one compressed face to the server. Called from the upload stage only, one face at a time
+     */
+    public interface FaceUploader {
+        void upload(byte[] face);
+    }
+
+    /**
+     Called from the upload stage once every stage has drained
+     */
+    public interface Listener {
+        void onFinished(int framesDecoded, int facesFound);
+    }
+
+    private final FrameSource frameSource;
+    private final FaceProcessorFactory processorFactory;
+    private final FaceUploader uploader;
+    private final Listener listener;
+    private final FrameBufferPool pool;
+    private final EnrollmentMetrics metrics;
+    private final int detectWorkers;
+    private final BlockingQueue<Frame> frameQueue;
+    private final BlockingQueue<byte[]> faceQueue;
+    private final AtomicInteger runningWorkers;
+    private final AtomicInteger framesDecoded = new AtomicInteger();
+    private final AtomicInteger facesFound = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private volatile boolean decodeStopped = false;
+    private Thread[] threads;
+    //shared scheduler mode
+    private ForkJoinPool scheduler;
+    private FrameBudget budget; //frames in flight across every enrollment of the scheduler
+    private final ConcurrentLinkedQueue<FaceProcessor> idleProcessors = new ConcurrentLinkedQueue<>(); //processors between detect tasks
+    private final AtomicInteger framesInFlight = new AtomicInteger(); //decoded frames not yet through the detect stage
+    private final AtomicBoolean decodeScheduled = new AtomicBoolean(); //a decode step is queued or running
+    private final AtomicBoolean uploadScheduled = new AtomicBoolean(); //an upload step is queued or running
+    private final AtomicBoolean processorsClosed = new AtomicBoolean();
+    private final AtomicBoolean facesEnded = new AtomicBoolean();
+    private volatile boolean decodeDone = false;
+
+    /**
+     Step of a stage that may have to wait, see block
+     */
+    interface Blocking {
+        void run() throws InterruptedException;
+    }
+
+    /**
+     This constructor is to wire the stages of the pipeline. Detect stage is sized to the CPU cores
+     parameter: frameSource, processorFactory, uploader, listener, pool - where decoded frames are given back,
+                metrics - of the enrollment
+     return: None
+     exception: none
+     */
+    public EnrollmentPipeline(FrameSource frameSource, FaceProcessorFactory processorFactory,
+                              FaceUploader uploader, Listener listener, FrameBufferPool pool, EnrollmentMetrics metrics) {
+        this(frameSource, processorFactory, uploader, listener, pool, metrics, Runtime.getRuntime().availableProcessors());
+    }
+
+    public EnrollmentPipeline(FrameSource frameSource, FaceProcessorFactory processorFactory,
+                              FaceUploader uploader, Listener listener, FrameBufferPool pool, EnrollmentMetrics metrics,
+                              int detectWorkers) {
+        this.frameSource = frameSource;
+        this.processorFactory = processorFactory;
+        this.uploader = uploader;
+        this.listener = listener;
+        this.pool = pool;
+        this.metrics = metrics;
+        this.detectWorkers = Math.max(1, detectWorkers);
+        this.frameQueue = new ArrayBlockingQueue<>(this.detectWorkers * FRAME_QUEUE_PER_WORKER);
+        this.faceQueue = new ArrayBlockingQueue<>(FACE_QUEUE_CAPACITY);
+        this.runningWorkers = new AtomicInteger(this.detectWorkers);
+    }
+
+    /**
+     This method is to start all stages in background threads. It returns immediately
+     parameter: None
+     return: None
+     exception: none
+     */
+    public void start() {
+        threads = new Thread[detectWorkers + 2];
+        threads[0] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decode();
+            }
+        }, "enroll-decode");
+        for (int workerIterator = 0; workerIterator < detectWorkers; workerIterator++) {
+            threads[workerIterator + 1] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    detect();
+                }
+            }, "enroll-detect-" + workerIterator);
+        }
+        threads[detectWorkers + 1] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                upload();
+            }
+        }, "enroll-upload");
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     This method is to run the stages as tasks of a scheduler shared with other enrollments. It returns
+     immediately. As many frames are in flight as the detect queue of start() holds, and no more than the
+     budget shared with the other enrollments has left
+     parameter: scheduler - shared by every enrollment of a bulk import, sized to the CPU cores,
+                budget - frames in flight across every enrollment of the scheduler
+     return: None
+     exception: none
+     */
+    public void start(ForkJoinPool scheduler, FrameBudget budget) {
+        this.scheduler = scheduler;
+        this.budget = budget;
+        scheduleDecode();
+    }
+
+    /**
+     This method is to stop the pipeline. Frames already handed to the uploader are not recalled
+     parameter: None
+     return: None
+     exception: none
+     */
+    public void cancel() {
+        cancelled = true;
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        if (scheduler != null && facesEnded.compareAndSet(false, true)) {//no thread to interrupt, the upload stage is told directly
+            endFaces();
+            scheduleUpload();
+        }
+    }
+
+    /**
+     This method is to stop decoding new frames while letting frames already decoded drain through the
+     remaining stages. Used once enough faces are collected
+     parameter: None
+     return: None
+     exception: none
+     */
+    public void finishEarly() {
+        decodeStopped = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    //decode stage: reads frames until the source is exhausted and blocks when detect stage is behind
+    private void decode() {
+        try {
+            while (!cancelled && !decodeStopped) {
+                long started = metrics.start();
+                Mat frame = frameSource.nextFrame();
+                if (frame == null) {
+                    break;
+                }
+                metrics.stop(EnrollmentMetrics.Stage.DECODE, started);
+                metrics.add(EnrollmentMetrics.Counter.FRAMES_SAMPLED, 1);
+                framesDecoded.incrementAndGet();
+                frameQueue.put(new Frame(frame));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            frameSource.close();
+            endFrames();
+        }
+    }
+
+    //detect stage: each worker owns its own processor, the last worker to leave closes the upload stage
+    private void detect() {
+        FaceProcessor processor = null;
+        try {
+            processor = processorFactory.create(this);
+            while (!cancelled) {
+                Frame frame = frameQueue.take();
+                if (frame == END_OF_FRAMES) {
+                    frameQueue.put(END_OF_FRAMES); //let sibling workers see the end too
+                    break;
+                }
+                try {
+                    List<byte[]> faces = processor.process(frame.image);
+                    metrics.add(EnrollmentMetrics.Counter.FACES_FOUND, faces.size());
+                    for (byte[] face : faces) {
+                        facesFound.incrementAndGet();
+                        faceQueue.put(face);
+                    }
+                } catch (InterruptedException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                } finally {
+                    pool.release(frame.image);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {//e.g. the detector could not be created, the worker leaves
+            ex.printStackTrace();
+        } finally {
+            if (processor != null) {
+                processor.close();
+            }
+            if (runningWorkers.decrementAndGet() == 0) {
+                //workers that failed may leave frames behind, the decode stage must not wait for them
+                decodeStopped = true;
+                Frame left;
+                while ((left = frameQueue.poll()) != null) {
+                    if (left.image != null) {
+                        pool.release(left.image);
+                    }
+                }
+                endFaces();
+            }
+        }
+    }
+
+    //upload stage: forwards faces in the order they were produced
+    private void upload() {
+        try {
+            while (!cancelled) {
+                byte[] face = faceQueue.take();
+                if (face == END_OF_FACES) {
+                    break;
+                }
+                uploader.upload(face);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "pipeline finished frames " + framesDecoded.get() + " faces " + facesFound.get());
+        if (!cancelled) {
+            listener.onFinished(framesDecoded.get(), facesFound.get());
+        }
+    }
+
+    //shared mode: queues the next decode step unless one is pending, decoding is over or the frames in flight
+    //are at the limit, then the detect task that finishes next queues it. A step holds a frame of the shared
+    //budget, when none is left the pipeline waits for a frame of any enrollment to get through
+    private void scheduleDecode() {
+        if (decodeDone || framesInFlight.get() >= detectWorkers * FRAME_QUEUE_PER_WORKER
+                || !decodeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (!budget.tryTake()) {
+            decodeScheduled.set(false);
+            budget.await(this);
+            return;
+        }
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                decodeStep();
+            }
+        });
+    }
+
+    //shared mode decode stage: reads one frame and hands it to a detect task of its own
+    private void decodeStep() {
+        Mat frame = null;
+        try {
+            if (!cancelled && !decodeStopped) {
+                long started = metrics.start();
+                frame = frameSource.nextFrame();
+                if (frame != null) {
+                    metrics.stop(EnrollmentMetrics.Stage.DECODE, started);
+                    metrics.add(EnrollmentMetrics.Counter.FRAMES_SAMPLED, 1);
+                    framesDecoded.incrementAndGet();
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        if (frame == null) {
+            frameSource.close();
+            decodeDone = true; //decodeScheduled stays set, no step follows
+            budget.give();
+            finishIfDrained();
+            return;
+        }
+        framesInFlight.incrementAndGet();
+        final Mat image = frame;
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                detectFrame(image);
+            }
+        });
+        decodeScheduled.set(false);
+        scheduleDecode();
+    }
+
+    //shared mode detect stage: borrows an idle processor, a new one is created only when all are busy
+    private void detectFrame(Mat image) {
+        FaceProcessor processor = idleProcessors.poll();
+        try {
+            if (!cancelled) {
+                if (processor == null) {
+                    processor = processorFactory.create(this);
+                }
+                List<byte[]> faces = processor.process(image);
+                metrics.add(EnrollmentMetrics.Counter.FACES_FOUND, faces.size());
+                for (final byte[] face : faces) {
+                    facesFound.incrementAndGet();
+                    if (!faceQueue.offer(face)) {
+                        scheduleUpload();
+                        block(new Blocking() {
+                            @Override
+                            public void run() throws InterruptedException {
+                                faceQueue.put(face);
+                            }
+                        });
+                    }
+                }
+                scheduleUpload();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            pool.release(image);
+            if (processor != null) {
+                idleProcessors.offer(processor);
+            }
+            framesInFlight.decrementAndGet();
+            budget.give(); //may start the decode step of another enrollment
+            scheduleDecode();
+            finishIfDrained();
+        }
+    }
+
+    //shared mode: once decoding is over and the last frame is through, processors are closed and the upload
+    //stage told there is no more face. Called by the decode step and every detect task, acts once
+    private void finishIfDrained() {
+        if (!decodeDone || framesInFlight.get() != 0 || !processorsClosed.compareAndSet(false, true)) {
+            return;
+        }
+        FaceProcessor processor;
+        while ((processor = idleProcessors.poll()) != null) {
+            processor.close();
+        }
+        if (facesEnded.compareAndSet(false, true)) {
+            scheduleUpload(); //drains a full face queue so the pill fits
+            endFaces();
+            scheduleUpload();
+        }
+    }
+
+    private void scheduleUpload() {
+        if (uploadScheduled.compareAndSet(false, true)) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    uploadStep();
+                }
+            });
+        }
+    }
+
+    //shared mode upload stage: forwards the faces queued so far in order, the next face queues the next step
+    private void uploadStep() {
+        byte[] face;
+        while ((face = faceQueue.poll()) != null) {
+            if (face == END_OF_FACES) {
+                Log.i(TAG, "pipeline finished frames " + framesDecoded.get() + " faces " + facesFound.get());
+                if (!cancelled) {
+                    listener.onFinished(framesDecoded.get(), facesFound.get());
+                }
+                return; //uploadScheduled stays set, no step follows
+            }
+            if (cancelled) {
+                continue;
+            }
+            final byte[] queued = face;
+            try {
+                block(new Blocking() {
+                    @Override
+                    public void run() {
+                        uploader.upload(queued);
+                    }
+                });
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        uploadScheduled.set(false);
+        if (!faceQueue.isEmpty()) {//queued after the last poll, its scheduleUpload saw this step still running
+            scheduleUpload();
+        }
+    }
+
+    /**
+     This method is to wait in a way the shared scheduler makes up for by starting a spare worker, so the
+     other enrollments keep going. On a thread of its own it is a plain wait
+     parameter: step - waits and does its work
+     return: None
+     exception: InterruptedException
+     */
+    static void block(final Blocking step) throws InterruptedException {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean done = false;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                step.run();
+                done = true;
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done;
+            }
+        });
+    }
+
+    //poison pills must get through even when the pipeline is being cancelled, dropped frames are freed
+    private void endFrames() {
+        try {
+            if (!cancelled) {
+                frameQueue.put(END_OF_FRAMES);
+                return;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        while (!frameQueue.offer(END_OF_FRAMES)) {
+            Frame dropped = frameQueue.poll();
+            if (dropped != null && dropped.image != null) {
+                pool.release(dropped.image);
+            }
+        }
+    }
+
+    private void endFaces() {
+        try {
+            if (!cancelled) {
+                block(new Blocking() {
+                    @Override
+                    public void run() throws InterruptedException {
+                        faceQueue.put(END_OF_FACES);
+                    }
+                });
+                return;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        while (!faceQueue.offer(END_OF_FACES)) {
+            faceQueue.poll();
+        }
+    }
+
+    /**
+     Frames in flight allowed across every enrollment of a shared scheduler. A frame is taken by a decode step
+     and given back once it is through the detect stage. Enrollments that found none left wait in line, a
+     frame given back restarts their decoding
+     */
+    public static class FrameBudget {
+        private final AtomicInteger available;
+        private final ConcurrentLinkedQueue<EnrollmentPipeline> waiting = new ConcurrentLinkedQueue<>();
+
+        public FrameBudget(int frames) {
+            this.available = new AtomicInteger(Math.max(1, frames));
+        }
+
+        boolean tryTake() {
+            while (true) {
+                int left = available.get();
+                if (left <= 0) {
+                    return false;
+                }
+                if (available.compareAndSet(left, left - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void give() {
+            available.incrementAndGet();
+            wake();
+        }
+
+        void await(EnrollmentPipeline pipeline) {
+            if (!waiting.contains(pipeline)) {
+                waiting.offer(pipeline);
+            }
+            if (available.get() > 0) {//given back before the pipeline was in line
+                wake();
+            }
+        }
+
+        //pipelines still finding no frame left are back in line, the others decode
+        private void wake() {
+            for (int waiter = waiting.size(); waiter > 0 && available.get() > 0; waiter--) {
+                EnrollmentPipeline pipeline = waiting.poll();
+                if (pipeline == null) {
+                    return;
+                }
+                pipeline.scheduleDecode();
+            }
+        }
+    }
+
+    /**
+     Decoded frame travelling from the decode stage to the detect stage
+     */
+    private static class Frame {
+        final Mat image;
+
+        Frame(Mat image) {
+            this.image = image;
+        }
+    }
+}
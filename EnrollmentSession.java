@@ -0,0 +1,179 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class keeps the state of the enrollment of one person, so enrollments running side by side (bulk import)
+ or one replacing another that is still draining do not touch each other's id, journal, metrics or counts.
+ Task performs:
+ 1. Read the bulk import list, a JSON array of {"name", "phone", "video", ...}, one entry per person
+ 2. Hold the person id answered by the server and the journal, metrics and pipeline of the enrollment
+ 3. Count frames decoded, faces found and images acknowledged for the throughput of the import
+ 4. Close the enrollment once the model is trained: export its metrics and delete its journal
+ */
+
+package edu.memphis.com.safeaccess;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EnrollmentSession {
+    private final JSONObject personinfo;
+    private final String videoPath;
+    private volatile int personId = 0;
+    private volatile UploadJournal journal;
+    private volatile EnrollmentMetrics metrics;
+    private volatile EnrollmentPipeline pipeline;
+    private volatile int framesDecoded = 0;
+    private volatile int facesFound = 0;
+    private final AtomicInteger acknowledged = new AtomicInteger();
+
+    public EnrollmentSession(JSONObject personinfo, String videoPath) {
+        this.personinfo = personinfo;
+        this.videoPath = videoPath;
+    }
+
+    /**
+     This method is to read the bulk import list. Every field of an entry but "video" goes to the person info
+     sent to the server, fields it leaves out are taken from "defaults"
+     parameter: list - JSON file, defaults - person info fields shared by every entry
+     return: one session per entry
+     exception: Exception - the file can not be read or an entry has no name or video
+     */
+    public static List<EnrollmentSession> readList(File list, JSONObject defaults) throws Exception {
+        byte[] content = new byte[(int) list.length()];
+        InputStream is = new FileInputStream(list);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                int bytesRead = is.read(content, read, content.length - read);
+                if (bytesRead == -1) {
+                    break;
+                }
+                read += bytesRead;
+            }
+        } finally {
+            is.close();
+        }
+        JSONArray entries = new JSONArray(new String(content, StandardCharsets.UTF_8));
+        List<EnrollmentSession> sessions = new ArrayList<>();
+        for (int entryIterator = 0; entryIterator < entries.length(); entryIterator++) {
+            JSONObject entry = entries.getJSONObject(entryIterator);
+            JSONObject person = new JSONObject(defaults.toString());
+            Iterator<String> keys = entry.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!"video".equals(key)) {
+                    person.put(key, entry.get(key));
+                }
+            }
+            person.put("name", entry.getString("name").trim().toLowerCase()); //same as a name typed in the activity
+            sessions.add(new EnrollmentSession(person, entry.getString("video")));
+        }
+        return sessions;
+    }
+
+    public JSONObject getPersonInfo() {
+        return personinfo;
+    }
+
+    public String getVideoPath() {
+        return videoPath;
+    }
+
+    public String getName() {
+        return personinfo.optString("name");
+    }
+
+    public int getPersonId() {
+        return personId;
+    }
+
+    /**
+     This method is to keep the id the server answered for the person
+     parameter: personId
+     return: None
+     exception: Exception
+     */
+    public void setPersonId(int personId) throws Exception {
+        this.personId = personId;
+        personinfo.put("person_id", personId);
+    }
+
+    /**
+     This method is to keep what the running enrollment of the person is made of
+     parameter: journal, metrics, pipeline
+     return: None
+     exception: none
+     */
+    public void start(UploadJournal journal, EnrollmentMetrics metrics, EnrollmentPipeline pipeline) {
+        this.journal = journal;
+        this.metrics = metrics;
+        this.pipeline = pipeline;
+        acknowledged.set(journal.getAcknowledgedCount());
+    }
+
+    public EnrollmentMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void onAcknowledged() {
+        acknowledged.incrementAndGet();
+    }
+
+    public int getAcknowledgedCount() {
+        return acknowledged.get();
+    }
+
+    public void onDecoded(int framesDecoded, int facesFound) {
+        this.framesDecoded = framesDecoded;
+        this.facesFound = facesFound;
+    }
+
+    public int getFramesDecoded() {
+        return framesDecoded;
+    }
+
+    public int getFacesFound() {
+        return facesFound;
+    }
+
+    /**
+     This method is to stop the enrollment, e.g. when the activity is destroyed. The journal is kept so the
+     enrollment resumes on the next import
+     parameter: None
+     return: None
+     exception: none
+     */
+    public void cancel() {
+        if (pipeline != null) {
+            pipeline.cancel();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     This method is to end the enrollment once the server has the images in its model
+     parameter: metricsDir - folder of the metric summaries
+     return: None
+     exception: none
+     */
+    public void finish(File metricsDir) {
+        if (metrics != null) {
+            metrics.export(metricsDir);
+        }
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+}
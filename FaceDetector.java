@@ -0,0 +1,36 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This interface is what the detect stage of the enrollment needs from a face detector, so the detector
+ behind it can be changed from the config file without touching the pipeline.
+ Implementations: CascadeFaceDetector (Haar or LBP cascade), DnnFaceDetector (OpenCV DNN face detector).
+ FaceDetectorFactory creates the configured one.
+ Note: one instance per detect worker, implementations do not need to be thread safe.
+ */
+
+package edu.memphis.com.safeaccess;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+public interface FaceDetector {
+    /**
+     This method is to find faces in a frame
+     parameter: gray - rotated gray frame at full resolution
+     return: faces in full resolution coordinates, inside the frame
+     exception: none
+     */
+    Rect[] detect(Mat gray);
+
+    /**
+     This method is to describe the work done so far, for the log
+     parameter: None
+     return: summary
+     exception: none
+     */
+    String getSummary();
+
+    void close();
+}
@@ -0,0 +1,150 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class creates the face detector picked in the config file (FACE_DETECTOR), one per detect worker.
+ Task performs:
+ 1. Name the model files each backend needs, so only those are extracted from the app resources
+ 2. Create a detector of the backend from the extracted files
+ 3. Optionally load one model ahead of time (preload) so the first detector is created without parsing the files
+ Backends:
+    haar - Haar cascade haarcascade_frontalface_alt_tree.xml, the detector the app always used
+    lbp  - LBP cascade lbpcascade_frontalface.xml, integer features, several times faster than Haar
+    dnn  - OpenCV DNN face detector opencv_face_detector_uint8.pb with opencv_face_detector.pbtxt
+ Cascades run in the configured CascadeFaceDetector mode, the network always sees the whole frame.
+ */
+
+package edu.memphis.com.safeaccess;
+import org.opencv.dnn.Net;
+import org.opencv.objdetect.CascadeClassifier;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FaceDetectorFactory {
+    public enum Backend { HAAR, LBP, DNN }
+
+    private final Backend backend;
+    private final File modelDir;
+    private final CascadeFaceDetector.Mode cascadeMode;
+    private final int detectWidth;
+    private final int minFaceSize;
+    private final float dnnConfidence;
+    private final AtomicReference<CascadeClassifier> preloadedCascade = new AtomicReference<>(); //taken by the first create
+    private final AtomicReference<Net> preloadedNet = new AtomicReference<>();
+
+    /**
+     This constructor is to set the backend and its settings
+     parameter: backend, modelDir - folder the model files were extracted to, cascadeMode, detectWidth - see
+                CascadeFaceDetector, minFaceSize - in full resolution pixels, dnnConfidence - lowest score of a
+                DNN face
+     return: None
+     exception: none
+     */
+    public FaceDetectorFactory(Backend backend, File modelDir, CascadeFaceDetector.Mode cascadeMode, int detectWidth,
+                               int minFaceSize, float dnnConfidence) {
+        this.backend = backend;
+        this.modelDir = modelDir;
+        this.cascadeMode = cascadeMode;
+        this.detectWidth = detectWidth;
+        this.minFaceSize = minFaceSize;
+        this.dnnConfidence = dnnConfidence;
+    }
+
+    /**
+     This method is to read a backend from the config file
+     parameter: name - haar, lbp or dnn, any case
+     return: backend, HAAR for anything else
+     exception: none
+     */
+    public static Backend parse(String name) {
+        for (Backend backend : Backend.values()) {
+            if (backend.name().equalsIgnoreCase(name == null ? "" : name.trim())) {
+                return backend;
+            }
+        }
+        return Backend.HAAR;
+    }
+
+    /**
+     This method is to name the model files of a backend, in the order create reads them
+     parameter: backend
+     return: file names, the same as the raw resources
+     exception: none
+     */
+    public static String[] modelFiles(Backend backend) {
+        switch (backend) {
+            case LBP:
+                return new String[] {"lbpcascade_frontalface.xml"};
+            case DNN:
+                return new String[] {"opencv_face_detector_uint8.pb", "opencv_face_detector.pbtxt"};
+            default:
+                return new String[] {"haarcascade_frontalface_alt_tree.xml"};
+        }
+    }
+
+    /**
+     This method is to create a detector
+     parameter: pool - scratch images of the enrollment, histogram - gets the time of every detection
+     return: detector, null when the model files can not be loaded
+     exception: none
+     */
+    public FaceDetector create(FrameBufferPool pool, LatencyHistogram histogram) {
+        if (backend == Backend.DNN) {
+            Net net = preloadedNet.getAndSet(null);
+            if (net == null) {
+                net = loadNet();
+            }
+            return net == null ? null : new DnnFaceDetector(net, dnnConfidence, minFaceSize, pool, histogram);
+        }
+        CascadeClassifier classifier = preloadedCascade.getAndSet(null);
+        if (classifier == null) {
+            classifier = loadCascade();
+        }
+        return classifier == null ? null : new CascadeFaceDetector(classifier, cascadeMode, detectWidth, minFaceSize,
+                pool, histogram);
+    }
+
+    /**
+     This method is to load the model of the backend now, the next create uses it instead of reading the files
+     parameter: none
+     return: true when the model files could be loaded
+     exception: none
+     */
+    public boolean preload() {
+        if (backend == Backend.DNN) {
+            Net net = loadNet();
+            preloadedNet.set(net);
+            return net != null;
+        }
+        CascadeClassifier classifier = loadCascade();
+        preloadedCascade.set(classifier);
+        return classifier != null;
+    }
+
+    private Net loadNet() {
+        String[] files = modelFiles(Backend.DNN);
+        return DnnFaceDetector.load(new File(modelDir, files[0]).getAbsolutePath(),
+                new File(modelDir, files[1]).getAbsolutePath());
+    }
+
+    private CascadeClassifier loadCascade() {
+        CascadeClassifier classifier = new CascadeClassifier(new File(modelDir, modelFiles(backend)[0]).getAbsolutePath());
+        return classifier.empty() ? null : classifier;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     This method is to get a factory of the same settings for another backend, used by the calibration
+     parameter: other - backend
+     return: factory
+     exception: none
+     */
+    public FaceDetectorFactory withBackend(Backend other) {
+        return new FaceDetectorFactory(other, modelDir, cascadeMode, detectWidth, minFaceSize, dnnConfidence);
+    }
+}
@@ -0,0 +1,165 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class decides which detected faces are worth sending to the server for training. Enrollment stops
+ once enough distinct, usable faces are collected instead of always processing a fixed number of frames,
+ which saves decode, detection and upload work and keeps redundant images out of model training.
+ Task performs:
+ 1. Reject faces smaller than the minimum size
+ 2. Reject blurry faces using variance of the Laplacian
+ 3. Reject near duplicates of faces already accepted using a 64 bit perceptual hash (DCT based)
+ 4. Report when the target number of faces has been accepted
+ The selector is shared by all detect workers of an enrollment and is thread safe. Scratch images are
+ taken from the buffer pool of the enrollment.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.util.Log;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FaceSelector {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static final int HASH_SIZE = 8; //hash uses the 8x8 lowest frequencies
+    private static final int DCT_SIZE = 32; //faces are shrunk to 32x32 before the DCT
+
+    private final int targetFaces;
+    private final int minFaceSize;
+    private final double blurThreshold;
+    private final int duplicateDistance;
+    private final FrameBufferPool pool;
+    private final List<Long> acceptedHashes = new ArrayList<>();
+    private int rejectedSmall = 0;
+    private int rejectedBlurry = 0;
+    private int rejectedDuplicate = 0;
+
+    /**
+     This constructor is to set the acceptance rules
+     parameter: targetFaces - stop after this many accepted faces, minFaceSize - in pixels,
+                blurThreshold - minimum variance of Laplacian, duplicateDistance - maximum hamming distance
+                between hashes of two faces considered the same, pool - where scratch images are taken from
+     return: None
+     exception: none
+     */
+    public FaceSelector(int targetFaces, int minFaceSize, double blurThreshold, int duplicateDistance,
+                        FrameBufferPool pool) {
+        this.pool = pool;
+        this.targetFaces = targetFaces;
+        this.minFaceSize = minFaceSize;
+        this.blurThreshold = blurThreshold;
+        this.duplicateDistance = duplicateDistance;
+    }
+
+    /**
+     This method is to check a face and remember it if accepted
+     parameter: face - gray crop of the face as detected, before any resize
+     return: true when the face should be sent to the server
+     exception: none
+     */
+    public boolean accept(Mat face) {
+        if (isSatisfied()) {
+            return false;
+        }
+        if (face.rows() < minFaceSize || face.cols() < minFaceSize) {
+            synchronized (this) {
+                rejectedSmall++;
+            }
+            return false;
+        }
+        if (sharpness(face) < blurThreshold) {
+            synchronized (this) {
+                rejectedBlurry++;
+            }
+            return false;
+        }
+        long hash = perceptualHash(face);
+        synchronized (this) {
+            if (acceptedHashes.size() >= targetFaces) {
+                return false;
+            }
+            for (long accepted : acceptedHashes) {
+                if (Long.bitCount(accepted ^ hash) <= duplicateDistance) {
+                    rejectedDuplicate++;
+                    return false;
+                }
+            }
+            acceptedHashes.add(hash);
+            return true;
+        }
+    }
+
+    public synchronized boolean isSatisfied() {
+        return acceptedHashes.size() >= targetFaces;
+    }
+
+    public synchronized int getAccepted() {
+        return acceptedHashes.size();
+    }
+
+    /**
+     This method is to log how many faces were accepted and why the others were rejected
+     parameter: None
+     return: None
+     exception: none
+     */
+    public synchronized void logSummary() {
+        Log.i(TAG, "faces accepted " + acceptedHashes.size() + "/" + targetFaces + " rejected small "
+                + rejectedSmall + " blurry " + rejectedBlurry + " duplicate " + rejectedDuplicate);
+    }
+
+    //variance of the Laplacian, low values mean few edges i.e. a blurry image
+    private double sharpness(Mat face) {
+        Mat laplacian = pool.acquire(face.rows(), face.cols(), CvType.CV_64FC1);
+        Mat squared = pool.acquire(face.rows(), face.cols(), CvType.CV_64FC1);
+        try {
+            Imgproc.Laplacian(face, laplacian, CvType.CV_64F);
+            Core.multiply(laplacian, laplacian, squared);
+            double mean = Core.mean(laplacian).val[0];
+            return Core.mean(squared).val[0] - mean * mean;
+        } finally {
+            pool.release(laplacian);
+            pool.release(squared);
+        }
+    }
+
+    //pHash: sign of the lowest DCT frequencies compared with their median, robust to small shifts and lighting
+    private long perceptualHash(Mat face) {
+        Mat small = pool.acquire(DCT_SIZE, DCT_SIZE, CvType.CV_8UC1);
+        Mat floating = pool.acquire(DCT_SIZE, DCT_SIZE, CvType.CV_32FC1);
+        Mat frequencies = pool.acquire(DCT_SIZE, DCT_SIZE, CvType.CV_32FC1);
+        try {
+            Imgproc.resize(face, small, new Size(DCT_SIZE, DCT_SIZE), 0, 0, Imgproc.INTER_AREA);
+            small.convertTo(floating, CvType.CV_32F);
+            Core.dct(floating, frequencies);
+            float[] low = new float[HASH_SIZE * HASH_SIZE];
+            float[] row = new float[HASH_SIZE];
+            for (int rowIterator = 0; rowIterator < HASH_SIZE; rowIterator++) {
+                frequencies.get(rowIterator, 0, row);
+                System.arraycopy(row, 0, low, rowIterator * HASH_SIZE, HASH_SIZE);
+            }
+            float[] sorted = Arrays.copyOf(low, low.length);
+            Arrays.sort(sorted, 1, sorted.length); //DC term is left out of the median
+            float median = sorted[1 + (sorted.length - 1) / 2];
+            long hash = 0;
+            for (int bit = 0; bit < low.length; bit++) {
+                if (low[bit] > median) {
+                    hash |= 1L << bit;
+                }
+            }
+            return hash;
+        } finally {
+            pool.release(small);
+            pool.release(floating);
+            pool.release(frequencies);
+        }
+    }
+}
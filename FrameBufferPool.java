@@ -0,0 +1,156 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class keeps native image buffers (Mat) alive between frames so that the per-frame path of the
+ enrollment pipeline does not allocate and free native memory for every frame. Without it every frame
+ allocates a gray, a rotated and several cropped Mats that are only freed by the garbage collector's
+ finalizers, which grows native memory while enrolling.
+ Task performs:
+ 1. Hand out a buffer of the requested geometry with acquire, reusing an idle one if possible
+ 2. Take buffers back with release, keeping at most "capacity" idle buffers
+ 3. Round sizes up to a grid so crops of slightly different sizes share buffers. The caller gets a
+    region of the buffer with exactly the requested size
+ 4. Count hits, misses and peak native bytes held by the pool
+ The pool is shared by all pipeline stages and is thread safe.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.util.Log;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+public class FrameBufferPool {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static final int SIZE_GRID = 32; //rows and cols are rounded up to a multiple of this
+
+    private final int capacity;
+    private final Map<Long, ArrayDeque<Mat>> idle = new HashMap<>(); //idle buffers by geometry
+    private final Map<Mat, Mat> inUse = new IdentityHashMap<>(); //buffer handed out -> backing buffer
+    private int idleCount = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long nativeBytes = 0;
+    private long peakNativeBytes = 0;
+
+    /**
+     This constructor is to create an empty pool
+     parameter: capacity - maximum number of idle buffers kept for reuse
+     return: None
+     exception: none
+     */
+    public FrameBufferPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     This method is to get a buffer. Its content is undefined
+     parameter: rows, cols, type - OpenCV type such as CvType.CV_8UC1
+     return: Mat of exactly rows x cols, must be given back with release
+     exception: none
+     */
+    public synchronized Mat acquire(int rows, int cols, int type) {
+        int bufferRows = roundUp(rows);
+        int bufferCols = roundUp(cols);
+        long key = key(bufferRows, bufferCols, type);
+        ArrayDeque<Mat> buffers = idle.get(key);
+        Mat backing = buffers == null ? null : buffers.poll();
+        if (backing != null) {
+            hits++;
+            idleCount--;
+        } else {
+            misses++;
+            backing = new Mat(bufferRows, bufferCols, type);
+            nativeBytes += bytes(bufferRows, bufferCols, type);
+            peakNativeBytes = Math.max(peakNativeBytes, nativeBytes);
+        }
+        Mat view = (bufferRows == rows && bufferCols == cols) ? backing : backing.submat(0, rows, 0, cols);
+        inUse.put(view, backing);
+        return view;
+    }
+
+    /**
+     This method is to give a buffer back. Mats that were not acquired from the pool are simply released
+     parameter: mat - buffer returned by acquire
+     return: None
+     exception: none
+     */
+    public synchronized void release(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        Mat backing = inUse.remove(mat);
+        if (backing == null) {
+            mat.release();
+            return;
+        }
+        if (mat != backing) {
+            mat.release(); //only the region header, the data stays with the backing buffer
+        }
+        if (idleCount >= capacity) {
+            nativeBytes -= bytes(backing.rows(), backing.cols(), backing.type());
+            backing.release();
+            return;
+        }
+        long key = key(backing.rows(), backing.cols(), backing.type());
+        ArrayDeque<Mat> buffers = idle.get(key);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            idle.put(key, buffers);
+        }
+        buffers.push(backing);
+        idleCount++;
+    }
+
+    /**
+     This method is to free every idle buffer. Buffers still in use are freed when they are released
+     parameter: None
+     return: None
+     exception: none
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Mat> buffers : idle.values()) {
+            for (Mat backing : buffers) {
+                nativeBytes -= bytes(backing.rows(), backing.cols(), backing.type());
+                backing.release();
+            }
+        }
+        idle.clear();
+        idleCount = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getPeakNativeBytes() {
+        return peakNativeBytes;
+    }
+
+    public synchronized void logSummary() {
+        Log.i(TAG, "buffer pool hits " + hits + " misses " + misses + " peak native bytes " + peakNativeBytes);
+    }
+
+    private static int roundUp(int size) {
+        return ((size + SIZE_GRID - 1) / SIZE_GRID) * SIZE_GRID;
+    }
+
+    //rows and cols fit in 24 bits each, type in 16
+    private static long key(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | type;
+    }
+
+    private static long bytes(int rows, int cols, int type) {
+        return (long) rows * cols * CvType.ELEM_SIZE(type);
+    }
+}
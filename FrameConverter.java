@@ -0,0 +1,66 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class turns a decoded color frame into the upright gray frame the detect stage works on. It uses
+ OpenCV only, no Android class, so the same code runs in the app and in the desktop benchmarks.
+ Task performs:
+ 1. Convert the color frame to gray
+ 2. Rotate it 90 degrees counter clockwise to correct the orientation of portrait videos
+ 3. Rotate a frame that is gray already (the luma plane of a video decoder) in one pass, without a copy before
+ Buffers are taken from the buffer pool of the enrollment, the gray intermediate is given back at once.
+ */
+
+package edu.memphis.com.safeaccess;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+public class FrameConverter {
+    private final FrameBufferPool pool;
+    private final int colorConversion;
+
+    /**
+     This constructor is to set how frames are converted
+     parameter: pool - where buffers are taken from, colorConversion - Imgproc code of the decoder's color order,
+                COLOR_RGBA2GRAY for bitmaps, COLOR_BGR2GRAY for desktop VideoCapture
+     return: None
+     exception: none
+     */
+    public FrameConverter(FrameBufferPool pool, int colorConversion) {
+        this.pool = pool;
+        this.colorConversion = colorConversion;
+    }
+
+    /**
+     This method is to convert a frame to gray and correct its orientation
+     parameter: color - decoded frame, not released here
+     return: upright gray frame from the pool, the caller gives it back
+     exception: none
+     */
+    public Mat toUprightGray(Mat color) {
+        Mat gray = pool.acquire(color.rows(), color.cols(), CvType.CV_8UC1);
+        try {
+            Imgproc.cvtColor(color, gray, colorConversion);
+            return rotateUpright(gray, pool);
+        } finally {
+            pool.release(gray);
+        }
+    }
+
+    /**
+     This method is to correct the orientation of a gray frame. The source may be a Mat wrapping memory of
+     the decoder with a row stride, it is read once and not kept
+     parameter: gray - single channel frame, not released here, pool - where the result is taken from
+     return: upright gray frame from the pool, the caller gives it back
+     exception: none
+     */
+    public static Mat rotateUpright(Mat gray, FrameBufferPool pool) {
+        Mat upright = pool.acquire(gray.cols(), gray.rows(), CvType.CV_8UC1);
+        Core.rotate(gray, upright, Core.ROTATE_90_COUNTERCLOCKWISE);
+        return upright;
+    }
+}
@@ -0,0 +1,395 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class samples evenly spaced frames from a video for the enrollment pipeline. Seeking with
+ OPTION_CLOSEST for every sample decodes forward from the previous keyframe each time, so the cost grows
+ with frames x GOP length. This sampler reads the video once, front to back, with MediaExtractor and
+ MediaCodec and emits the requested timestamps as the decoder passes them.
+ Task performs:
+ 1. Index sync (key) frames of the video track with a demux-only pass, nothing is decoded
+ 2. EXACT mode: decode forward and emit the first frame at or after each requested timestamp. When the
+    next timestamp is past a later keyframe the decoder jumps to that keyframe instead of decoding the gap
+ 3. SYNC mode: snap every requested timestamp to the nearest keyframe and decode only keyframes. Use it
+    when exact timing does not matter
+ 4. Rotate the luma plane of the decoder output straight into an upright gray Mat, the orientation used by
+    the server. OpenCV reads the plane where the decoder wrote it, so a color frame is never made and the
+    only copy of a frame is the rotation. Frames are taken from the buffer pool and the consumer gives them back
+ 5. Record decode time per sample so the two modes can be compared
+ 6. Hand every emitted frame to the debug frame sink, also the frames of the fallback, while DEBUG_FRAMES=on
+ If the platform decoder can not handle the file the fallback source is used instead.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FrameSampler implements EnrollmentPipeline.FrameSource {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static final long TIMEOUT_US = 10000; //wait for codec buffers
+
+    public enum Mode { EXACT, SYNC }
+
+    private final String videoPath;
+    private final int numberOfFrame;
+    private final Mode mode;
+    private final EnrollmentPipeline.FrameSource fallback;
+    private final FrameBufferPool pool;
+    private final String debugName; //debug frames are written next to the video
+    private int emitted = 0; //frames returned so far, from the decoder or the fallback
+    private MediaExtractor extractor;
+    private MediaCodec codec;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private long[] targets; //requested timestamps in microseconds
+    private long[] syncTimes; //timestamps of keyframes in microseconds
+    private int targetIndex = 0;
+    private long lastQueuedUs = -1; //timestamp of the last sample handed to the decoder
+    private long lastKeyframeUs = -1; //last keyframe emitted in SYNC mode
+    private boolean inputDone = false;
+    private boolean useFallback = false;
+    private byte[] lumaRow = new byte[0]; //scratch buffer for luma rows with interleaved samples
+    private byte[] pixels = new byte[0]; //scratch buffer with the packed luma plane, interleaved samples only
+    private final List<Long> sampleNanos = new ArrayList<>(); //decode time of each emitted sample
+
+    /**
+     This constructor is to prepare the sampler. The video is opened on first use so it happens on the decode thread
+     parameter: videoPath, numberOfFrame - how many evenly spaced frames to emit, mode, fallback - used when
+                the platform decoder can not read the video, pool - where frame buffers are taken from
+     return: None
+     exception: none
+     */
+    public FrameSampler(String videoPath, int numberOfFrame, Mode mode, EnrollmentPipeline.FrameSource fallback,
+                        FrameBufferPool pool) {
+        this.videoPath = videoPath;
+        this.numberOfFrame = numberOfFrame;
+        this.mode = mode;
+        this.fallback = fallback;
+        this.pool = pool;
+        this.debugName = videoPath.replace(".mp4", ".jpg");
+    }
+
+    /**
+     This method is to return the next sampled frame as rotated gray image
+     parameter: None
+     return: next frame or null when all samples are emitted
+     exception: Exception from the fallback source
+     */
+    @Override
+    public Mat nextFrame() throws Exception {
+        if (extractor == null && !useFallback) {
+            try {
+                open();
+            } catch (Exception ex) {
+                Log.i(TAG, "platform decoder failed, using fallback " + ex);
+                release();
+                useFallback = true;
+            }
+        }
+        Mat frame;
+        if (useFallback) {
+            frame = fallback.nextFrame();
+        } else {
+            long started = System.nanoTime();
+            frame = mode == Mode.SYNC ? nextKeyframe() : nextExactFrame();
+            if (frame != null) {
+                sampleNanos.add(System.nanoTime() - started);
+            }
+        }
+        if (frame != null) {
+            DebugFrameSink debugFrames = DebugFrameSink.getInstance();
+            if (debugFrames != null) {//copied and written in the background, off by default
+                debugFrames.capture(debugName, emitted, frame);
+            }
+            emitted++;
+        }
+        return frame;
+    }
+
+    /**
+     This method is to return decode time of each emitted sample in milliseconds
+     parameter: None
+     return: decode times in the order frames were emitted
+     exception: none
+     */
+    public double[] getSampleDecodeMillis() {
+        double[] millis = new double[sampleNanos.size()];
+        for (int sampleIterator = 0; sampleIterator < millis.length; sampleIterator++) {
+            millis[sampleIterator] = sampleNanos.get(sampleIterator) / 1e6;
+        }
+        return millis;
+    }
+
+    @Override
+    public void close() {
+        if (useFallback) {
+            fallback.close();
+            return;
+        }
+        double[] millis = getSampleDecodeMillis();
+        double total = 0, max = 0;
+        for (double value : millis) {
+            total += value;
+            max = Math.max(max, value);
+        }
+        Log.i(TAG, "sampler mode " + mode + " samples " + millis.length + " total " + (long) total + " ms mean "
+                + (millis.length > 0 ? total / millis.length : 0) + " ms max " + max + " ms");
+        release();
+    }
+
+    //open the video track, index keyframes and start the decoder
+    private void open() throws Exception {
+        extractor = new MediaExtractor();
+        extractor.setDataSource(videoPath);
+        int track = -1;
+        MediaFormat format = null;
+        for (int trackIterator = 0; trackIterator < extractor.getTrackCount(); trackIterator++) {
+            MediaFormat candidate = extractor.getTrackFormat(trackIterator);
+            if (candidate.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                track = trackIterator;
+                format = candidate;
+                break;
+            }
+        }
+        if (track < 0) {
+            throw new IllegalStateException("no video track in " + videoPath);
+        }
+        extractor.selectTrack(track);
+
+        //demux-only pass to find keyframes
+        List<Long> keyframes = new ArrayList<>();
+        while (extractor.getSampleTime() >= 0) {
+            if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                keyframes.add(extractor.getSampleTime());
+            }
+            extractor.advance();
+        }
+        if (keyframes.isEmpty()) {
+            throw new IllegalStateException("no keyframe in " + videoPath);
+        }
+        syncTimes = new long[keyframes.size()];
+        for (int keyIterator = 0; keyIterator < syncTimes.length; keyIterator++) {
+            syncTimes[keyIterator] = keyframes.get(keyIterator);
+        }
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+        long duration = format.getLong(MediaFormat.KEY_DURATION);
+        long frameRate = duration / numberOfFrame;
+        targets = new long[numberOfFrame];
+        for (int frameIterator = 0; frameIterator < numberOfFrame; frameIterator++) {
+            targets[frameIterator] = frameRate * frameIterator;
+        }
+
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        codec.configure(format, null, null, 0);
+        codec.start();
+    }
+
+    //EXACT mode: keep decoding forward until the decoder passes the next requested timestamp
+    private Mat nextExactFrame() {
+        if (targetIndex >= targets.length) {
+            return null;
+        }
+        long target = targets[targetIndex];
+        long keyframe = keyframeBefore(target);
+        if (keyframe > lastQueuedUs) {//frames between here and that keyframe are not needed, jump over them
+            codec.flush();
+            extractor.seekTo(keyframe, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            inputDone = false;
+        }
+        while (true) {
+            if (!inputDone) {
+                queueInput();
+            }
+            int outIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (outIndex < 0) {
+                continue;
+            }
+            boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            Mat frame = null;
+            long presentationUs = info.presentationTimeUs;
+            if (info.size > 0 && presentationUs >= target) {
+                frame = toGray(codec.getOutputImage(outIndex));
+            }
+            codec.releaseOutputBuffer(outIndex, false);
+            if (frame != null) {
+                while (targetIndex < targets.length && targets[targetIndex] <= presentationUs) {
+                    targetIndex++; //a sparse stretch of video can satisfy several timestamps with one frame
+                }
+                return frame;
+            }
+            if (endOfStream) {
+                targetIndex = targets.length;
+                return null;
+            }
+        }
+    }
+
+    //SYNC mode: decode only the keyframe closest to each requested timestamp
+    private Mat nextKeyframe() {
+        while (targetIndex < targets.length) {
+            long keyframe = nearestKeyframe(targets[targetIndex++]);
+            if (keyframe == lastKeyframeUs) {
+                continue; //several timestamps snapped to the same keyframe
+            }
+            lastKeyframeUs = keyframe;
+            codec.flush();
+            extractor.seekTo(keyframe, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            inputDone = false;
+            while (!queueInput()) {
+                //after flush every input buffer is free, this only waits for the codec
+            }
+            queueEndOfStream(); //makes the decoder give the frame back without waiting for more input
+            while (true) {
+                int outIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (outIndex < 0) {
+                    continue;
+                }
+                Mat frame = info.size > 0 ? toGray(codec.getOutputImage(outIndex)) : null;
+                boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                codec.releaseOutputBuffer(outIndex, false);
+                if (frame != null) {
+                    return frame;
+                }
+                if (endOfStream) {
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    //hand the next sample of the track to the decoder, false when no input buffer was free
+    private boolean queueInput() {
+        int inIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+        if (inIndex < 0) {
+            return false;
+        }
+        ByteBuffer buffer = codec.getInputBuffer(inIndex);
+        int size = extractor.readSampleData(buffer, 0);
+        if (size < 0) {
+            codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            inputDone = true;
+        } else {
+            lastQueuedUs = extractor.getSampleTime();
+            codec.queueInputBuffer(inIndex, 0, size, lastQueuedUs, 0);
+            extractor.advance();
+        }
+        return true;
+    }
+
+    private void queueEndOfStream() {
+        int inIndex;
+        while ((inIndex = codec.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+            //wait for a free input buffer
+        }
+        codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        inputDone = true;
+    }
+
+    //latest keyframe at or before the timestamp
+    private long keyframeBefore(long timeUs) {
+        int index = Arrays.binarySearch(syncTimes, timeUs);
+        if (index >= 0) {
+            return syncTimes[index];
+        }
+        int insertion = -index - 1;
+        return insertion > 0 ? syncTimes[insertion - 1] : -1;
+    }
+
+    //keyframe closest to the timestamp in either direction
+    private long nearestKeyframe(long timeUs) {
+        int index = Arrays.binarySearch(syncTimes, timeUs);
+        if (index >= 0) {
+            return syncTimes[index];
+        }
+        int insertion = -index - 1;
+        if (insertion == 0) {
+            return syncTimes[0];
+        }
+        if (insertion == syncTimes.length) {
+            return syncTimes[syncTimes.length - 1];
+        }
+        long before = syncTimes[insertion - 1];
+        long after = syncTimes[insertion];
+        return timeUs - before <= after - timeUs ? before : after;
+    }
+
+    //rotate the luma plane into an upright gray Mat, the same orientation as the retriever path
+    private Mat toGray(Image image) {
+        try {
+            Rect crop = image.getCropRect();
+            int width = crop.width();
+            int height = crop.height();
+            Image.Plane luma = image.getPlanes()[0];
+            ByteBuffer buffer = luma.getBuffer();
+            int rowStride = luma.getRowStride();
+            int pixelStride = luma.getPixelStride();
+            int offset = crop.top * rowStride + crop.left * pixelStride;
+            //the last row of a plane may stop right after its pixels, without the padding of the stride
+            if (pixelStride == 1 && buffer.isDirect() && offset + (long) (height - 1) * rowStride + width <= buffer.limit()) {
+                buffer.position(offset);
+                Mat plane = new Mat(height, width, CvType.CV_8UC1, buffer.slice(), rowStride); //no copy, decoder memory
+                try {
+                    return FrameConverter.rotateUpright(plane, pool);
+                } finally {
+                    plane.release(); //the plane must not be used once the image is closed
+                }
+            }
+            //interleaved luma samples, or a plane OpenCV can not read in place: pack the rows first
+            if (lumaRow.length < width * pixelStride) {
+                lumaRow = new byte[width * pixelStride];
+            }
+            if (pixels.length != width * height) {
+                pixels = new byte[width * height];
+            }
+            for (int row = 0; row < height; row++) {
+                buffer.position((crop.top + row) * rowStride + crop.left * pixelStride);
+                if (pixelStride == 1) {
+                    buffer.get(pixels, row * width, width);
+                } else {
+                    buffer.get(lumaRow, 0, (width - 1) * pixelStride + 1);
+                    for (int col = 0; col < width; col++) {
+                        pixels[row * width + col] = lumaRow[col * pixelStride];
+                    }
+                }
+            }
+            Mat gray = pool.acquire(height, width, CvType.CV_8UC1);
+            gray.put(0, 0, pixels);
+            Mat rotated = FrameConverter.rotateUpright(gray, pool);
+            pool.release(gray);
+            return rotated;
+        } finally {
+            image.close();
+        }
+    }
+
+    private void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (Exception ex) {
+                //codec was never started
+            }
+            codec.release();
+            codec = null;
+        }
+        if (extractor != null) {
+            extractor.release();
+            extractor = null;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class counts how long an operation took, one sample per call, in fixed millisecond buckets. A mean
+ hides the slow frames that decide how long an enrollment takes, the histogram shows them.
+ Task performs:
+ 1. Record a duration in the bucket it falls into
+ 2. Keep count, total and maximum
+ 3. Log the buckets, mean and an estimate of the 50th and 95th percentile
+ Samples come from several worker threads, the histogram is thread safe and never blocks.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.util.Log;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static final long[] BUCKET_LIMITS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000}; //upper limit of every bucket, one more bucket for the rest
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_LIMITS_MS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     This constructor is to create an empty histogram
+     parameter: name - shown in the log
+     return: None
+     exception: none
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     This method is to add one sample
+     parameter: nanos - duration of the operation
+     return: None
+     exception: none
+     */
+    public void record(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_MS.length && millis >= BUCKET_LIMITS_MS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanMicros() {
+        long samples = count.get();
+        return samples > 0 ? totalNanos.get() / samples / 1000 : 0;
+    }
+
+    public long getMaxMillis() {
+        return maxNanos.get() / 1000000;
+    }
+
+    /**
+     This method is to get the upper limit of the bucket holding the given share of samples
+     parameter: fraction - 0.5 for the median, 0.95 for the 95th percentile
+     return: milliseconds, the maximum for the last bucket
+     exception: none
+     */
+    public long percentileMillis(double fraction) {
+        long samples = count.get();
+        if (samples == 0) {
+            return 0;
+        }
+        long needed = (long) Math.ceil(samples * fraction);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_LIMITS_MS.length; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= needed) {
+                return BUCKET_LIMITS_MS[bucket];
+            }
+        }
+        return maxNanos.get() / 1000000;
+    }
+
+    public void logSummary() {
+        Log.i(TAG, toString());
+    }
+
+    @Override
+    public String toString() {
+        long samples = count.get();
+        StringBuilder summary = new StringBuilder(name).append(" samples ").append(samples)
+                .append(" mean ").append(samples > 0 ? totalNanos.get() / samples / 1000 : 0).append(" us")
+                .append(" p50<=").append(percentileMillis(0.5)).append(" ms")
+                .append(" p95<=").append(percentileMillis(0.95)).append(" ms")
+                .append(" max ").append(maxNanos.get() / 1000000).append(" ms |");
+        for (int bucket = 0; bucket <= BUCKET_LIMITS_MS.length; bucket++) {
+            summary.append(bucket < BUCKET_LIMITS_MS.length ? " <" + BUCKET_LIMITS_MS[bucket] : " >=" + BUCKET_LIMITS_MS[bucket - 1])
+                    .append(':').append(buckets.get(bucket));
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,203 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class computes the descriptor the server's LBPH face recognizer keeps for a face, so a phone can
+ upload the descriptor instead of the JPEG crop. The server then adds it to the model without decoding,
+ resizing or running LBP on anything.
+ Task performs:
+ 1. Resize the gray face to the training size and adjust gamma, the same steps the server applies to images
+ 2. Compute the LBP code of every pixel exactly like OpenCV's LBPH (radius 1, 8 neighbors, bilinear samples)
+ 3. Count the codes of each cell of an 8x8 grid, the spatial histogram of LBPH before it is normalized
+ 4. Write the non zero bins of every cell and deflate them
+ Descriptor, big endian: byte 'L', byte version, int16 width, int16 height, byte radius, byte neighbors,
+ byte grid x, byte grid y, then deflated cells: uint16 non zero bins, per bin uint8 code and uint8 count
+ (255 followed by uint16 for counts of 255 or more).
+ The server divides counts by the cell size, which gives the normalized histogram LBPH stores.
+ One instance per detect worker, it keeps scratch buffers and is not thread safe.
+ */
+
+package edu.memphis.com.safeaccess;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class LbpDescriptor {
+    public static final String PAYLOAD_TYPE = "lbp"; //payload type announced to the server
+    private static final int VERSION = 1;
+    private static final int RADIUS = 1; //defaults of LBPHFaceRecognizer, the server checks them
+    private static final int NEIGHBORS = 8;
+    private static final int GRID_X = 8;
+    private static final int GRID_Y = 8;
+    private static final int BINS = 1 << NEIGHBORS;
+    private static final double GAMMA = 1.3; //same correction as the server
+    private static final float EPSILON = Math.ulp(1.0f); //std::numeric_limits<float>::epsilon() of OpenCV
+
+    private final int trainWidth;
+    private final int trainHeight;
+    private final Mat gammaTable;
+    private final Mat scratch = new Mat();
+    private final int[] offsetX = new int[NEIGHBORS * 2]; //floor and ceil of each sample point
+    private final int[] offsetY = new int[NEIGHBORS * 2];
+    private final float[] weights = new float[NEIGHBORS * 4];
+    private byte[] pixels = new byte[0];
+    private int[] counts = new int[0];
+
+    /**
+     This constructor is to match the training images of the server
+     parameter: trainWidth, trainHeight - IMAGE_WIDTH and IMAGE_HEIGHT of the server config
+     return: None
+     exception: none
+     */
+    public LbpDescriptor(int trainWidth, int trainHeight) {
+        this.trainWidth = trainWidth;
+        this.trainHeight = trainHeight;
+        this.gammaTable = gammaTable(GAMMA);
+        for (int n = 0; n < NEIGHBORS; n++) {//sample points of OpenCV's elbp, computed the same way in float
+            float x = (float) (RADIUS * Math.cos(2.0 * Math.PI * n / (float) NEIGHBORS));
+            float y = (float) (-RADIUS * Math.sin(2.0 * Math.PI * n / (float) NEIGHBORS));
+            int fx = (int) Math.floor(x);
+            int fy = (int) Math.floor(y);
+            offsetX[2 * n] = fx;
+            offsetX[2 * n + 1] = (int) Math.ceil(x);
+            offsetY[2 * n] = fy;
+            offsetY[2 * n + 1] = (int) Math.ceil(y);
+            float ty = y - fy;
+            float tx = x - fx;
+            weights[4 * n] = (1 - tx) * (1 - ty);
+            weights[4 * n + 1] = tx * (1 - ty);
+            weights[4 * n + 2] = (1 - tx) * ty;
+            weights[4 * n + 3] = tx * ty;
+        }
+    }
+
+    /**
+     This method is to compute the descriptor of a face
+     parameter: face - gray crop of the face, any size
+     return: encoded descriptor
+     exception: none
+     */
+    public byte[] compute(Mat face) {
+        Imgproc.resize(face, scratch, new Size(trainHeight, trainWidth), 0, 0, Imgproc.INTER_LINEAR); //same order as the server
+        Core.LUT(scratch, gammaTable, scratch);
+        int rows = scratch.rows();
+        int cols = scratch.cols();
+        if (pixels.length != rows * cols) {
+            pixels = new byte[rows * cols];
+        }
+        scratch.get(0, 0, pixels);
+        countCodes(rows, cols);
+        try {
+            return encode(cols, rows);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); //in memory streams do not fail
+        }
+    }
+
+    public void close() {
+        scratch.release();
+        gammaTable.release();
+    }
+
+    //LBP codes of the inner pixels counted per cell, cells of LBPH ignore the rest of the division
+    private void countCodes(int rows, int cols) {
+        int codeRows = rows - 2 * RADIUS;
+        int codeCols = cols - 2 * RADIUS;
+        int cellHeight = codeRows / GRID_Y;
+        int cellWidth = codeCols / GRID_X;
+        if (counts.length != GRID_X * GRID_Y * BINS) {
+            counts = new int[GRID_X * GRID_Y * BINS];
+        }
+        Arrays.fill(counts, 0);
+        if (cellHeight == 0 || cellWidth == 0) {
+            return;
+        }
+        for (int i = RADIUS; i < rows - RADIUS; i++) {
+            int cellRow = (i - RADIUS) / cellHeight;
+            if (cellRow >= GRID_Y) {
+                break;
+            }
+            for (int j = RADIUS; j < cols - RADIUS; j++) {
+                int cellCol = (j - RADIUS) / cellWidth;
+                if (cellCol >= GRID_X) {
+                    break;
+                }
+                float center = pixels[i * cols + j] & 0xFF;
+                int code = 0;
+                for (int n = 0; n < NEIGHBORS; n++) {
+                    int top = (i + offsetY[2 * n]) * cols;
+                    int bottom = (i + offsetY[2 * n + 1]) * cols;
+                    int left = j + offsetX[2 * n];
+                    int right = j + offsetX[2 * n + 1];
+                    float t = weights[4 * n] * (pixels[top + left] & 0xFF) + weights[4 * n + 1] * (pixels[top + right] & 0xFF)
+                            + weights[4 * n + 2] * (pixels[bottom + left] & 0xFF) + weights[4 * n + 3] * (pixels[bottom + right] & 0xFF);
+                    if (t > center || Math.abs(t - center) < EPSILON) {
+                        code |= 1 << n;
+                    }
+                }
+                counts[(cellRow * GRID_X + cellCol) * BINS + code]++;
+            }
+        }
+    }
+
+    private byte[] encode(int width, int height) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('L');
+        out.writeByte(VERSION);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeByte(RADIUS);
+        out.writeByte(NEIGHBORS);
+        out.writeByte(GRID_X);
+        out.writeByte(GRID_Y);
+        out.flush();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        DataOutputStream cells = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+        for (int cell = 0; cell < GRID_X * GRID_Y; cell++) {
+            int used = 0;
+            for (int bin = 0; bin < BINS; bin++) {
+                if (counts[cell * BINS + bin] > 0) {
+                    used++;
+                }
+            }
+            cells.writeShort(used);
+            for (int bin = 0; bin < BINS; bin++) {
+                int count = counts[cell * BINS + bin];
+                if (count == 0) {
+                    continue;
+                }
+                cells.writeByte(bin);
+                if (count < 255) {
+                    cells.writeByte(count);
+                } else {
+                    cells.writeByte(255);
+                    cells.writeShort(count);
+                }
+            }
+        }
+        cells.close();
+        deflater.end();
+        return bytes.toByteArray();
+    }
+
+    private static Mat gammaTable(double gamma) {
+        Mat table = new Mat(1, 256, CvType.CV_8UC1);
+        byte[] values = new byte[256];
+        for (int level = 0; level < 256; level++) {
+            values[level] = (byte) (int) (Math.pow(level / 255.0, 1.0 / gamma) * 255);
+        }
+        table.put(0, 0, values);
+        return table;
+    }
+}
@@ -0,0 +1,205 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class is the single HTTP transport used for every webservice call of SafeAccess. Creating a Volley
+ queue per call starts a new cache dispatcher, a new pool of network threads and new connections every time,
+ which for one enrollment means dozens of thread pools. This class keeps one queue for the whole process.
+ Task performs:
+ 1. Hold one application scoped Volley queue with a configurable number of network threads
+ 2. Keep enough idle connections in the HttpURLConnection keep-alive pool for those threads to reuse
+ 3. Apply a timeout/retry policy per webservice (endpoint = last segment of the url)
+ 4. Expose queued and in-flight request counts and per-endpoint latency
+ Note: the platform HttpURLConnection speaks HTTP/1.1 only, HTTP/2 would need a different HTTP stack.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.content.Context;
+import android.util.Log;
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpResponse;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.NoCache;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SafeAccessClient {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static final int DEFAULT_THREADS = 4; //network threads when HTTP_THREADS is not configured
+    private static SafeAccessClient instance;
+
+    private final RequestQueue queue;
+    private final Map<String, EndpointPolicy> policies = new HashMap<>();
+    private final Set<Request<?>> waiting = Collections.newSetFromMap(new ConcurrentHashMap<Request<?>, Boolean>()); //requests not yet on a network thread
+    private final ConcurrentHashMap<String, EndpointStats> stats = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     This method is to get the process wide client, created on first use
+     parameter: context - any context, the application context is kept
+     return: shared client
+     exception: none
+     */
+    public static synchronized SafeAccessClient getInstance(Context context) {
+        if (instance == null) {
+            Context application = context.getApplicationContext();
+            int threads = DEFAULT_THREADS;
+            try {
+                threads = Integer.parseInt(Utility.getConfigParameters(application, "HTTP_THREADS").trim());
+            } catch (Exception ex) {
+                Log.i(TAG, "HTTP_THREADS not configured, using " + DEFAULT_THREADS);
+            }
+            instance = new SafeAccessClient(threads);
+        }
+        return instance;
+    }
+
+    private SafeAccessClient(int threads) {
+        //every network thread should find an idle keep-alive connection instead of opening a new one
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(threads, 5)));
+        queue = new RequestQueue(new NoCache(), new BasicNetwork(new MeteredStack()), threads);
+        queue.start();
+        //uploads, training and addperson are not retried, a repeated request would store images or train twice,
+        //or insert the person again and clear a folder already holding uploaded images
+        policies.put("addperson", new EndpointPolicy(10000, 0, 1f));
+        policies.put("getpictures", new EndpointPolicy(15000, 0, 1f));
+        policies.put("getpicture", new EndpointPolicy(10000, 0, 1f));
+        policies.put("trainmodel", new EndpointPolicy(60000, 0, 1f));
+        policies.put("trainingjob", new EndpointPolicy(30000, 1, 1f)); //long poll, held open up to 20 s by the server
+        policies.put("latestmodel", new EndpointPolicy(10000, 1, 1.5f));
+    }
+
+    /**
+     This method is to send a request with the policy of its webservice
+     parameter: request
+     return: the same request
+     exception: none
+     */
+    public <T> Request<T> add(Request<T> request) {
+        String endpoint = endpointOf(request.getUrl());
+        EndpointPolicy policy = policies.get(endpoint);
+        if (policy != null) {
+            //retry policies keep state, every request gets its own
+            request.setRetryPolicy(new DefaultRetryPolicy(policy.timeoutMs, policy.retries, policy.backoff));
+        }
+        request.setShouldCache(false);
+        waiting.add(request);
+        queued.incrementAndGet();
+        return queue.add(request);
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     This method is to log request counts and latency of every webservice called so far
+     parameter: None
+     return: None
+     exception: none
+     */
+    public void logSummary() {
+        StringBuilder summary = new StringBuilder("http queued " + queued.get() + " in flight " + inFlight.get());
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            summary.append(" | ").append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        Log.i(TAG, summary.toString());
+    }
+
+    private static String endpointOf(String url) {
+        String path = url;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     HttpURLConnection stack that counts requests on the wire and measures their latency
+     */
+    private class MeteredStack extends HurlStack {
+        @Override
+        public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders)
+                throws IOException, AuthFailureError {
+            if (waiting.remove(request)) {//first attempt, retries were already counted
+                queued.decrementAndGet();
+            }
+            inFlight.incrementAndGet();
+            long started = System.nanoTime();
+            boolean failed = true;
+            try {
+                HttpResponse response = super.executeRequest(request, additionalHeaders);
+                failed = false;
+                return response;
+            } finally {
+                inFlight.decrementAndGet();
+                String endpoint = endpointOf(request.getUrl());
+                if (!stats.containsKey(endpoint)) {
+                    stats.putIfAbsent(endpoint, new EndpointStats());
+                }
+                stats.get(endpoint).record(System.nanoTime() - started, failed);
+            }
+        }
+    }
+
+    /**
+     Timeout and retries of one webservice
+     */
+    private static class EndpointPolicy {
+        final int timeoutMs;
+        final int retries;
+        final float backoff;
+
+        EndpointPolicy(int timeoutMs, int retries, float backoff) {
+            this.timeoutMs = timeoutMs;
+            this.retries = retries;
+            this.backoff = backoff;
+        }
+    }
+
+    /**
+     Request count and latency of one webservice
+     */
+    private static class EndpointStats {
+        private long count = 0;
+        private long failures = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+        synchronized void record(long nanos, boolean failed) {
+            count++;
+            if (failed) {
+                failures++;
+            }
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "count " + count + " failures " + failures + " mean " + (count > 0 ? totalNanos / count / 1000000 : 0)
+                    + " ms max " + maxNanos / 1000000 + " ms";
+        }
+    }
+}
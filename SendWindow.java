@@ -0,0 +1,117 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class limits how many uploads are waiting for the server at the same time. A fixed pause after every
+ image adds latency when the server is fast and does not protect it when it is slow, so the limit adapts to
+ the round trip times actually observed (AIMD, the same idea TCP uses for its congestion window).
+ Task performs:
+ 1. Block the sender while the window is full
+ 2. Grow the window by one request per window worth of acknowledgements while round trips stay near
+    the fastest one seen (additive increase)
+ 3. Halve the window when round trips grow well beyond the fastest one or a request fails, at most
+    once per round trip (multiplicative decrease)
+ The window is shared by the threads that send and the thread acknowledgements arrive on, it is thread safe.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.util.Log;
+
+public class SendWindow {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static final double CONGESTION_FACTOR = 2.0; //round trips this much slower than the fastest mean the server is queueing
+
+    private final int maxWindow;
+    private double window;
+    private int inFlight = 0;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long lastDecreaseNanos = 0;
+
+    /**
+     This constructor is to create the window
+     parameter: initialWindow - requests allowed in flight at start, maxWindow - upper bound
+     return: None
+     exception: none
+     */
+    public SendWindow(int initialWindow, int maxWindow) {
+        this.maxWindow = Math.max(1, maxWindow);
+        this.window = Math.max(1, Math.min(initialWindow, this.maxWindow));
+    }
+
+    /**
+     This method is to take a slot before sending a request, waiting while the window is full
+     parameter: None
+     return: None
+     exception: InterruptedException
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) window) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     This method is to take a slot only if one is free, for callers that must not wait
+     parameter: None
+     return: true when a slot was taken
+     exception: none
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) window) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     This method is to give the slot back when the server answered
+     parameter: rttNanos - time from sending the request to its answer
+     return: None
+     exception: none
+     */
+    public synchronized void onAcknowledged(long rttNanos) {
+        inFlight--;
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        if (rttNanos > minRttNanos * CONGESTION_FACTOR) {
+            decrease();
+        } else {
+            window = Math.min(maxWindow, window + 1.0 / window);
+        }
+        notifyAll();
+    }
+
+    /**
+     This method is to give the slot back when the request failed
+     parameter: None
+     return: None
+     exception: none
+     */
+    public synchronized void onFailed() {
+        inFlight--;
+        decrease();
+        notifyAll();
+    }
+
+    public synchronized double getWindow() {
+        return window;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    //one decrease per round trip, acknowledgements of the same burst should not collapse the window
+    private void decrease() {
+        long now = System.nanoTime();
+        if (minRttNanos != Long.MAX_VALUE && now - lastDecreaseNanos < minRttNanos) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        window = Math.max(1, window / 2);
+        Log.i(TAG, "send window reduced to " + (int) window);
+    }
+}
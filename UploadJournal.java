@@ -0,0 +1,308 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class keeps a disk backed, append-only journal of an enrollment upload so that the work survives the
+ app being backgrounded or killed. Without it every frame has to be decoded, detected and sent again.
+ Task performs:
+ 1. Record the person and video of the enrollment in a header record
+ 2. Append every compressed face before it is sent, with the id it is sent under
+ 3. Append the id of every face the server acknowledged
+ 4. Append a marker once the whole video has been processed
+ 5. On open, replay the journal: faces not acknowledged yet are resent without decoding the video again,
+    and decoding is skipped entirely if the marker is present
+ 6. Compact the journal by rewriting it without acknowledged faces, delete it once training is confirmed
+ Record format, integers big endian: [byte type][int32 image id][int32 length][length bytes of payload]
+ Records are only ever appended with sequential writes. A record cut short by process death, or one whose
+ length can not be right, ends the replay and is dropped with everything after it.
+ Journal errors are logged and never stop the enrollment, the upload just would not be resumable.
+ */
+
+package edu.memphis.com.safeaccess;
+import android.util.Log;
+import org.json.JSONObject;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class UploadJournal {
+    private static final String TAG = "REST"; // Tag to filter logs
+    private static final byte RECORD_HEADER = 1;
+    private static final byte RECORD_FACE = 2;
+    private static final byte RECORD_ACK = 3;
+    private static final byte RECORD_DECODED = 4;
+    private static final int RECORD_OVERHEAD = 9; //type, id and length
+    private static final int MAX_PAYLOAD_BYTES = 4 * 1024 * 1024; //larger than any face, descriptor or header, as the server
+
+    private final File file;
+    private final int personId;
+    private final String videoPath;
+    private final String payloadType;
+    private final Map<Integer, byte[]> unacknowledged = new LinkedHashMap<>(); //in the order they were produced
+    private DataOutputStream out;
+    private int faceCount = 0;
+    private int acknowledgedCount = 0;
+    private int nextImageId = 0;
+    private boolean decodeComplete = false;
+
+    /**
+     This method is to open the journal of an enrollment, replaying what an earlier run recorded. A journal
+     written for another video of the same person or another payload type is discarded
+     parameter: directory - where journals are kept, personId, videoPath, payloadType - JPEG crops or descriptors
+     return: journal ready to append to
+     exception: none
+     */
+    public static UploadJournal open(File directory, int personId, String videoPath, String payloadType) {
+        UploadJournal journal = new UploadJournal(new File(directory, "person_" + personId + ".journal"), personId,
+                videoPath, payloadType);
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("can not create " + directory);
+            }
+            if (journal.file.exists() && !journal.replay()) {
+                Log.i(TAG, "journal belongs to another video or payload, starting over " + journal.file);
+                journal.reset();
+            }
+            if (journal.acknowledgedCount > 0) {
+                journal.rewrite(); //acknowledged faces are not needed for resuming
+            } else {
+                journal.openForAppend();
+            }
+            if (journal.file.length() == 0) {
+                journal.writeHeader();
+            }
+            Log.i(TAG, "journal " + journal.file.getName() + " faces " + journal.faceCount + " acknowledged "
+                    + journal.acknowledgedCount + " decoded " + journal.decodeComplete);
+        } catch (Exception ex) {
+            Log.e(TAG, "journal not available, upload will not be resumable", ex);
+            journal.closeQuietly();
+        }
+        return journal;
+    }
+
+    private UploadJournal(File file, int personId, String videoPath, String payloadType) {
+        this.file = file;
+        this.personId = personId;
+        this.videoPath = videoPath;
+        this.payloadType = payloadType;
+    }
+
+    /**
+     This method is to record a face before it is sent
+     parameter: face - JPEG bytes or descriptor
+     return: id the face must be sent under
+     exception: none
+     */
+    public synchronized int appendFace(byte[] face) {
+        int imageId = nextImageId++;
+        faceCount++;
+        unacknowledged.put(imageId, face);
+        append(RECORD_FACE, imageId, face);
+        return imageId;
+    }
+
+    public synchronized void appendAck(int imageId) {
+        if (unacknowledged.remove(imageId) != null) {
+            acknowledgedCount++;
+            append(RECORD_ACK, imageId, new byte[0]);
+        }
+    }
+
+    public synchronized void markDecoded() {
+        decodeComplete = true;
+        append(RECORD_DECODED, 0, new byte[0]);
+    }
+
+    /**
+     This method is to get faces recorded but not acknowledged, in the order they were produced
+     parameter: None
+     return: image id -> JPEG bytes
+     exception: none
+     */
+    public synchronized Map<Integer, byte[]> getUnacknowledged() {
+        return new LinkedHashMap<>(unacknowledged);
+    }
+
+    public synchronized int getFaceCount() {
+        return faceCount;
+    }
+
+    public synchronized int getAcknowledgedCount() {
+        return acknowledgedCount;
+    }
+
+    public synchronized boolean isDecodeComplete() {
+        return decodeComplete;
+    }
+
+    /**
+     This method is to drop the journal once the server confirmed training, nothing is left to resume
+     parameter: None
+     return: None
+     exception: none
+     */
+    public synchronized void delete() {
+        closeQuietly();
+        if (file.exists() && !file.delete()) {
+            Log.i(TAG, "could not delete journal " + file);
+        }
+    }
+
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    //read records front to back, false when the journal was written for another video or payload type
+    private boolean replay() throws Exception {
+        long goodLength = 0;
+        long fileLength = file.length();
+        boolean sameVideo = false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                int imageId;
+                byte[] payload;
+                try {
+                    imageId = in.readInt();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_PAYLOAD_BYTES || length > fileLength - goodLength - RECORD_OVERHEAD) {
+                        Log.i(TAG, "journal record of length " + length + " dropped at " + goodLength);
+                        break; //corrupt length, allocating it would fail the resume
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException ex) {
+                    break; //torn record at the end, written when the process died
+                }
+                goodLength += RECORD_OVERHEAD + payload.length;
+                if (type == RECORD_HEADER) {
+                    JSONObject header = new JSONObject(new String(payload, "UTF-8"));
+                    sameVideo = videoPath.equals(header.optString("video"))
+                            && payloadType.equals(header.optString("payload_type", BatchUploader.PAYLOAD_CROP));
+                    if (!sameVideo) {
+                        return false;
+                    }
+                    int compacted = header.optInt("compacted", 0); //acknowledged faces dropped by compaction
+                    faceCount += compacted;
+                    acknowledgedCount += compacted;
+                    nextImageId = Math.max(nextImageId, header.optInt("next_id", 0));
+                } else if (type == RECORD_FACE) {
+                    unacknowledged.put(imageId, payload);
+                    faceCount++;
+                    nextImageId = Math.max(nextImageId, imageId + 1);
+                } else if (type == RECORD_ACK) {
+                    if (unacknowledged.remove(imageId) != null) {
+                        acknowledgedCount++;
+                    }
+                } else if (type == RECORD_DECODED) {
+                    decodeComplete = true;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (goodLength < fileLength) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(goodLength);
+            } finally {
+                raf.close();
+            }
+        }
+        return sameVideo;
+    }
+
+    private void reset() {
+        unacknowledged.clear();
+        faceCount = 0;
+        acknowledgedCount = 0;
+        nextImageId = 0;
+        decodeComplete = false;
+        if (!file.delete()) {
+            Log.i(TAG, "could not delete journal " + file);
+        }
+    }
+
+    //write the live part of the journal to a new file and swap it in. Dropped faces are counted in the header
+    private void rewrite() throws Exception {
+        File compacted = new File(file.getPath() + ".tmp");
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)));
+        writeHeader();
+        for (Map.Entry<Integer, byte[]> entry : unacknowledged.entrySet()) {
+            write(RECORD_FACE, entry.getKey(), entry.getValue());
+        }
+        if (decodeComplete) {
+            write(RECORD_DECODED, 0, new byte[0]);
+        }
+        out.flush();
+        out.close();
+        if (!compacted.renameTo(file)) {
+            throw new IOException("can not replace " + file);
+        }
+        openForAppend();
+    }
+
+    private void writeHeader() throws Exception {
+        JSONObject header = new JSONObject();
+        header.put("video", videoPath);
+        header.put("payload_type", payloadType);
+        header.put("person_id", personId);
+        header.put("compacted", faceCount - unacknowledged.size());
+        header.put("next_id", nextImageId);
+        write(RECORD_HEADER, 0, header.toString().getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private void openForAppend() throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    //every record reaches the file before the caller goes on, so it survives the process being killed
+    private void append(byte type, int imageId, byte[] payload) {
+        if (out == null) {
+            return;
+        }
+        try {
+            write(type, imageId, payload);
+            out.flush();
+        } catch (IOException ex) {
+            Log.e(TAG, "journal write failed, upload will not be resumable", ex);
+            closeQuietly();
+        }
+    }
+
+    private void write(byte type, int imageId, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(imageId);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                //nothing more can be done
+            }
+            out = null;
+        }
+    }
+}
@@ -13,6 +13,15 @@ Android app. This webservice retrieve data from users (android app) and performs
 3. Process the received face images and save in file system
 3. Update/train the person recognition model
 4. Perform model and data versioning 
+5. Add received images to the model in the background while they arrive, training jobs only write
+    the model and are polled by the app (trainingjob)
+6. Cache preprocessed faces by content hash so retraining and re-enrollment skip decoding, and a model
+    can be rebuilt from the cache alone (rebuildmodel)
+7. Accept LBP descriptors computed by the app instead of images (payload type lbp). They are the
+    histograms the recognizer keeps and are written into the next model as they are
+8. Keep database connections in a pool and person ids in a cache, so addperson for a known person
+    answers without a query. Lookup and insert of a new person run under a MySql named lock of the
+    person (GET_LOCK, the same the Java server takes), two addperson calls can not both insert
  
  Webservice: Flask Python has been used to create webservice,
  basic os related packages for file operation: os glob, pickle
@@ -32,12 +41,18 @@ from PIL import Image
 import fnmatch
 import json
 import mysql.connector
-from mysql.connector import Error
+from mysql.connector import Error, pooling
 import base64
 #to store server log
 import logging
 #read config parameter from file
 import configparser
+#background training
+import threading, queue, uuid
+#content hash of received images
+import hashlib
+#pooled database connections
+import contextlib
 
 #Create Instance of Flask class and pass module name
 
@@ -61,6 +76,11 @@ train_src=config.get('DB','train_src')
 #directory where model will be stored
 model_folder=config.get('DB','model_folder')
 APP_PORT=config.get('DB','APP_PORT')
+#cache of preprocessed faces, optional parameters
+FACE_CACHE_PATH=config.get('DB','FACE_CACHE_PATH', fallback=directory+"/face_cache.bin")
+FACE_CACHE_MAX_MB=config.getint('DB','FACE_CACHE_MAX_MB', fallback=512)
+#database connections kept open, optional parameter
+DB_POOL_SIZE=config.getint('DB','DB_POOL_SIZE', fallback=5)
 
 #auxiliary variables 
 #used as a received image counter to name and save images to profile
@@ -80,6 +100,38 @@ if (len(model_files)>0):
     recognizer.read(latest_models)
 else:
     logging.info("No model. This will be the first model")
+#true once the recognizer holds a model, first images train it, later ones update it
+has_model=len(model_files)>0
+#versions of the model, oldest first: the folder is scanned once here, later versions are appended by training
+model_catalog=[{"version": indx+1, "modelpath": path, "created": os.path.getctime(path)}
+    for indx, path in enumerate(reversed(model_files))]
+catalog_lock=threading.Lock()
+
+#one worker thread owns the recognizer: received images and training jobs are handled in arrival order
+training_queue=queue.Queue()
+#training jobs by id, oldest first
+training_jobs={}
+jobs_lock=threading.Lock()
+KEPT_JOBS=100
+#person name -> images added to the recognizer since the person was enrolled
+incremental_images={}
+#digests of faces added to the recognizer held by this process. Training worker only
+in_recognizer=set()
+#histograms of received descriptors and their labels, written into the next model. Training worker only
+pending_histograms=[]
+pending_labels=[]
+PAYLOAD_LBP="lbp"
+DESCRIPTOR_HEADER=10
+#largest image or descriptor of a binary batch, the length of a frame comes from the client
+MAX_PAYLOAD_BYTES=4*1024*1024
+#connections to the database are opened once and reused, requests wait for a free one
+db_pool=None
+db_pool_lock=threading.Lock()
+db_slots=threading.BoundedSemaphore(DB_POOL_SIZE)
+DB_LOCK_TIMEOUT=10 #seconds addperson waits for the named lock of a person
+#(name, phone) -> person id, ids never change once the row is inserted
+person_ids={}
+person_lock=threading.Lock()
 
 
 def adjust_gamma(image, gamma=1.0):
@@ -96,6 +148,113 @@ def adjust_gamma(image, gamma=1.0):
     return cv2.LUT(image, table)
 
 
+def preprocess(image):
+    ''' resize a gray face image to the training size and correct its contrast
+        param: image - gray image
+        return: preprocessed image
+    '''
+    #resize image to optimize training
+    image =cv2.resize(image, (int(IMAGE_HEIGHT),int (IMAGE_WIDTH)), interpolation = cv2.INTER_LINEAR)
+    image = np.array(image, 'uint8')
+    #adjust gamma
+    return adjust_gamma(image ,1.3)
+
+class FaceCache:
+    ''' persistent, size bounded cache of preprocessed faces keyed by the SHA-1 of the received JPEG.
+        Decoding, resizing and gamma correction of a face happen once, retraining reads the result back.
+        The cache is one file of fixed size records used as a ring, when it is full the oldest face is
+        overwritten. Records are mapped with numpy.memmap so reading them all is one sequential pass.
+        header, 8 little endian int32: magic, width, height, capacity, count, next slot, 2 reserved
+        record: 20 bytes SHA-1, int32 label, height x width gray pixels
+        The same format is used by the Java server (FaceCache.java).
+    '''
+    MAGIC=0x43464153
+    HEADER=np.dtype([('magic','<i4'),('width','<i4'),('height','<i4'),('capacity','<i4'),
+        ('count','<i4'),('next','<i4'),('reserved','<i4',(2,))])
+
+    def __init__(self, path, width, height, max_bytes):
+        ''' open the cache file, a file written for another image size or capacity is started over
+            param: path, width, height - size of preprocessed faces, max_bytes - size bound of the file
+        '''
+        self.lock=threading.Lock()
+        self.record=np.dtype([('hash','u1',(20,)),('label','<i4'),('pixels','u1',(height,width))])
+        capacity=max(1, (max_bytes-self.HEADER.itemsize)//self.record.itemsize)
+        expected=(self.MAGIC, width, height, capacity)
+        if os.path.exists(path):
+            header=np.fromfile(path, dtype=self.HEADER, count=1)
+            if len(header)==0 or tuple(int(header[0][key]) for key in ('magic','width','height','capacity'))!=expected:
+                logging.info("face cache does not match the configuration, starting over")
+                os.remove(path)
+        if not os.path.exists(path):
+            with open(path, 'wb') as f:
+                np.array([(self.MAGIC, width, height, capacity, 0, 0, (0,0))], dtype=self.HEADER).tofile(f)
+                f.truncate(self.HEADER.itemsize+capacity*self.record.itemsize)
+        self.header=np.memmap(path, dtype=self.HEADER, mode='r+', shape=(1,))
+        self.records=np.memmap(path, dtype=self.record, mode='r+', offset=self.HEADER.itemsize, shape=(capacity,))
+        self.capacity=capacity
+        count=int(self.header[0]['count'])
+        hashes=np.array(self.records['hash'][:count])
+        #hash -> slot, built with one pass over the file
+        self.index={hashes[slot].tobytes(): slot for slot in range(count)}
+        logging.info("face cache "+path+" faces "+str(count)+" capacity "+str(capacity))
+
+    def get(self, digest):
+        ''' return label and preprocessed face of a hash, None if not cached
+        '''
+        with self.lock:
+            slot=self.index.get(digest)
+            if slot is None:
+                return None
+            return int(self.records[slot]['label']), np.array(self.records[slot]['pixels'])
+
+    def put(self, digest, label, face):
+        ''' store a preprocessed face, overwriting the oldest one when the cache is full
+        '''
+        with self.lock:
+            slot=self.index.get(digest)
+            if slot is None:
+                slot=int(self.header[0]['next'])
+                count=int(self.header[0]['count'])
+                if count==self.capacity:
+                    self.index.pop(self.records[slot]['hash'].tobytes(), None)
+                self.header['next'][0]=(slot+1)%self.capacity
+                self.header['count'][0]=min(count+1, self.capacity)
+            self.records[slot]=(np.frombuffer(digest, np.uint8), label, face)
+            self.index[digest]=slot
+
+    def chunks(self, size=1000):
+        ''' read all cached faces in slot order, a chunk at a time
+            return: generator of (faces, labels)
+        '''
+        with self.lock:
+            count=int(self.header[0]['count'])
+        for start in range(0, count, size):
+            chunk=self.records[start:min(start+size, count)]
+            yield list(np.array(chunk['pixels'])), np.array(chunk['label'])
+
+    def flush(self):
+        self.records.flush()
+        self.header.flush()
+
+#preprocessed faces by content hash, kept across enrollments and restarts. preprocess gives IMAGE_WIDTH rows of IMAGE_HEIGHT pixels
+face_cache=FaceCache(FACE_CACHE_PATH, int(IMAGE_HEIGHT), int(IMAGE_WIDTH), FACE_CACHE_MAX_MB*1024*1024)
+
+def cached_face(frame, label):
+    ''' preprocessed face of a received JPEG, decoded only if it is not cached yet
+        param: frame - JPEG bytes, label - person id
+        return: face and whether it was already cached under the same label, face is None if not an image
+    '''
+    digest=hashlib.sha1(frame).digest()
+    cached=face_cache.get(digest)
+    if cached is not None:
+        return cached[1], cached[0]==label
+    image=cv2.imdecode(np.frombuffer(frame, np.uint8), cv2.IMREAD_GRAYSCALE)
+    if image is None:
+        return None, False
+    face=preprocess(image)
+    face_cache.put(digest, label, face)
+    return face, False
+
 def get_images_and_labels(path):
     '''
     read all images received from users to train model. files are saved in .jpg and filter them
@@ -108,73 +267,343 @@ def get_images_and_labels(path):
     labels = []
     indx=0
     for image_path in glob.glob(path+"/*.jpg"):
-        # Read images and convert to grayscale
-        image = cv2.imread(image_path,0)
-        #resize image to optimize training
-        image =cv2.resize(image, (int(IMAGE_HEIGHT),int (IMAGE_WIDTH)), interpolation = cv2.INTER_LINEAR)   
-        image = np.array(image, 'uint8')
         #get number associated with a particular person. it will be used as label for training model
 #subject17.1604191077281.1106_0.jpg
         nbr = int(os.path.split(image_path)[1].split(".")[0].replace("subject", ""))
-        #adjust gamma
-        image =adjust_gamma(image ,1.3)  
+        # Read image, converted to grayscale, resized and gamma adjusted unless it is cached
+        with open(image_path, 'rb') as f:
+            image, _ = cached_face(f.read(), nbr)
+        if image is None:
+            continue
         #append to the list
         images.append(image)
         labels.append(nbr)
+    #descriptors of the person join the model when it is written
+    for descriptor_path in glob.glob(path+"/*.lbp"):
+        with open(descriptor_path, 'rb') as f:
+            descriptor=f.read()
+        if descriptor_matches(descriptor):
+            pending_histograms.append(decode_descriptor(descriptor))
+            pending_labels.append(int(os.path.split(descriptor_path)[1].split(".")[0].replace("subject", "")))
     logging.info('Face Recognizer has been trained')
     return images, labels
 
-def star_training(path, modelname):
-    ''' The method is used train face recognizer model
-        param: path - where the images are stored. will be passed from the caller method
-        patam: modelname -model name will be generated dynamically in the caller method
-        return: status of training
-    '''
-    global recognizer
-    global model_files
-    # Call the get_images_and_labels function and get the face images and the 
-    # corresponding labels
-    images, labels = get_images_and_labels(path)
-    # Perform the tranining
-    #if there exists a model then just update it otherwise train a new model
-    if (len(model_files)>0):
+def descriptor_matches(descriptor):
+    ''' check that a descriptor was computed with the LBP parameters and training size of the recognizer
+        descriptor, big endian: 'L', version 1, int16 width, int16 height, radius, neighbors, grid x, grid y,
+        then deflated cells (see LbpDescriptor of the app)
+        param: descriptor - bytes
+        return: True when it can join the model
+    '''
+    if len(descriptor)<DESCRIPTOR_HEADER:
+        return False
+    tag, version, width, height, radius, neighbors, grid_x, grid_y=struct.unpack(">BBhhBBBB", descriptor[:DESCRIPTOR_HEADER])
+    return (tag==ord('L') and version==1 and width==int(IMAGE_HEIGHT) and height==int(IMAGE_WIDTH)
+        and radius==recognizer.getRadius() and neighbors==recognizer.getNeighbors()
+        and grid_x==recognizer.getGridX() and grid_y==recognizer.getGridY())
+
+def decode_descriptor(descriptor):
+    ''' turn a descriptor into the normalized spatial histogram LBPH keeps: per cell, counts of every
+        LBP code divided by the cell size
+        param: descriptor - bytes, checked with descriptor_matches
+        return: 1 x cells*2^neighbors float32 histogram
+    '''
+    _, _, width, height, radius, neighbors, grid_x, grid_y=struct.unpack(">BBhhBBBB", descriptor[:DESCRIPTOR_HEADER])
+    cells=zlib.decompress(descriptor[DESCRIPTOR_HEADER:])
+    bins=1<<neighbors
+    cell_size=((width-2*radius)//grid_x)*((height-2*radius)//grid_y)
+    histogram=np.zeros(grid_x*grid_y*bins, np.float32)
+    pos=0
+    for cell in range(grid_x*grid_y):
+        used,=struct.unpack_from(">H", cells, pos)
+        pos+=2
+        for _ in range(used):
+            code, count=cells[pos], cells[pos+1]
+            pos+=2
+            if count==255:
+                count,=struct.unpack_from(">H", cells, pos)
+                pos+=2
+            histogram[cell*bins+code]=count
+    return (histogram/np.float32(cell_size)).reshape(1,-1)
+
+def add_descriptors(person_name, person_id, descriptors):
+    ''' queue received descriptors of a person for the next model
+        param: person_name, person_id, descriptors - bytes
+        return: None
+    '''
+    try:
+        label=int(person_id)
+    except (TypeError, ValueError):
+        logging.info("No person id, descriptors of "+str(person_name)+" are read at training")
+        return
+    if len(descriptors)>0:
+        training_queue.put(("descriptors", person_name, label, descriptors))
+
+def run_descriptors(person_name, label, descriptors):
+    ''' decode descriptors, they join the model when it is written
+    '''
+    for descriptor in descriptors:
+        pending_histograms.append(decode_descriptor(descriptor))
+        pending_labels.append(label)
+    incremental_images[person_name]=incremental_images.get(person_name,0)+len(descriptors)
+
+def write_merged_model(modelname):
+    ''' write the histograms of the recognizer followed by the received ones as an LBPH model and read it
+        back. OpenCV can not add a histogram to a recognizer, but it reads them from the model file
+        param: modelname - path of the new model
+    '''
+    global has_model
+    histograms=list(recognizer.getHistograms()) if has_model else []
+    labels=list(recognizer.getLabels().flatten()) if has_model else []
+    fs=cv2.FileStorage(modelname, cv2.FILE_STORAGE_WRITE)
+    fs.startWriteStruct("opencv_lbphfaces", cv2.FileNode_MAP)
+    fs.write("threshold", recognizer.getThreshold())
+    fs.write("radius", recognizer.getRadius())
+    fs.write("neighbors", recognizer.getNeighbors())
+    fs.write("grid_x", recognizer.getGridX())
+    fs.write("grid_y", recognizer.getGridY())
+    fs.startWriteStruct("histograms", cv2.FileNode_SEQ)
+    for histogram in histograms+pending_histograms:
+        fs.write("", histogram)
+    fs.endWriteStruct()
+    fs.write("labels", np.array(labels+pending_labels, np.int32).reshape(-1,1))
+    fs.endWriteStruct()
+    fs.release()
+    recognizer.read(modelname)
+    has_model=True
+    del pending_histograms[:]
+    del pending_labels[:]
+
+def update_recognizer(images, labels):
+    ''' add images to the recognizer, only called from the training worker
+        param: images - preprocessed images, labels - person id of every image
+        return: None
+    '''
+    global has_model
+    if len(images)==0:
+        return
+    if has_model:
         recognizer.update(images, np.array(labels))
-        logging.info('Face recognizer updating END....')
     else:
         recognizer.train(images, np.array(labels))
-        logging.info('Face recognizer training END....')
-    recognizer.write(modelname)
-    
-    return "done"
+    has_model=True
+
+def add_images(person_name, person_id, frames):
+    ''' queue received JPEG images of a person for the recognizer. Images without a valid person id are
+        read from the folder at training
+        param: person_name, person_id, frames - JPEG bytes
+        return: None
+    '''
+    try:
+        label=int(person_id)
+    except (TypeError, ValueError):
+        logging.info("No person id, images of "+str(person_name)+" are read at training")
+        return
+    if len(frames)>0:
+        training_queue.put(("images", person_name, label, frames))
+
+def run_images(person_name, label, frames):
+    ''' decode, preprocess and add images to the recognizer. Only a face this process already added to the
+        recognizer it holds is skipped. A cached face may come from an upload whose model was never written
+        (server restarted before trainmodel), it is not decoded again but still added
+    '''
+    images=[]
+    added=set()
+    handled=0
+    for frame in frames:
+        digest=hashlib.sha1(frame).digest()
+        if digest in in_recognizer or digest in added:
+            handled+=1
+            continue
+        image, _=cached_face(frame, label)
+        if image is None:
+            continue
+        handled+=1
+        images.append(image)
+        added.add(digest)
+    update_recognizer(images, [label]*len(images))
+    in_recognizer.update(added)
+    face_cache.flush()
+    incremental_images[person_name]=incremental_images.get(person_name,0)+handled
+
+def run_training_job(job):
+    ''' write the model of a job. Images arrived before the job are already in the recognizer, the folder of a
+        person is only read when none arrived since the person was enrolled (server restarted during the upload).
+        A job of a batch of persons writes one model for all of them
+        param: job - training job
+        return: None
+    '''
+    job["status"]="running"
+    job["started"]=time.time()
+    logging.info('Face recognizer training starts....')
+    try:
+        if job["kind"]=="rebuild":
+            rebuild_recognizer()
+        else:
+            for person_name in job["names"]:
+                if incremental_images.pop(person_name,0)==0:
+                    images, labels = get_images_and_labels(directory+"/"+person_name)
+                    update_recognizer(images, labels)
+            face_cache.flush()
+        if has_model or pending_histograms:
+            write_model(job)
+    except Exception:
+        logging.error("Training failed for "+job["name"], exc_info=True)
+    job["status"]="done" if job["modelpath"] else "failed"
+    job["finished"]=time.time()
+    logging.info('Face recognizer training END.... '+job["modelpath"])
+    job["event"].set()
+
+def write_model(job):
+    ''' write the recognizer as a new model version
+        param: job - gets the model path
+    '''
+    global latest_models
+    #generate new model name to be saved
+    modelname=directory+"/models/lbp_"+str(round(time.time()))+".yml"
+    if pending_histograms:
+        write_merged_model(modelname)
+    else:
+        recognizer.write(modelname)
+    if os.path.exists(modelname):
+        latest_models=modelname
+        job["modelpath"]=modelname
+        with catalog_lock:
+            model_catalog.append({"version": len(model_catalog)+1, "modelpath": modelname, "created": time.time()})
+
+def rebuild_recognizer():
+    ''' train a new recognizer from every cached face, one sequential read of the cache and no decoding.
+        Faces evicted from the cache and descriptors already written into a model are not part of the new model
+    '''
+    global recognizer, has_model
+    rebuilt=cv2.face.LBPHFaceRecognizer_create()
+    trained=False
+    for images, labels in face_cache.chunks():
+        if trained:
+            rebuilt.update(images, labels)
+        else:
+            rebuilt.train(images, labels)
+            trained=True
+    if trained:
+        recognizer=rebuilt
+        has_model=True
+        #faces re-sent later are added again rather than missed
+        in_recognizer.clear()
+
+def training_worker():
+    ''' take images and training jobs from the queue one at a time, forever
+    '''
+    while True:
+        task=training_queue.get()
+        try:
+            if task[0]=="images":
+                run_images(task[1], task[2], task[3])
+            elif task[0]=="descriptors":
+                run_descriptors(task[1], task[2], task[3])
+            elif task[0]=="reset":
+                incremental_images.pop(task[1], None)
+            else:
+                run_training_job(task[1])
+        except Exception:
+            logging.error("Training worker failed", exc_info=True)
+
+def submit_training_job(person_names, kind="train"):
+    ''' queue a training job, it runs after every image queued before it
+        param: person_names - persons of the job, one model is written for all, kind - train adds the persons
+               to the model, rebuild trains a new one from the cache
+        return: job
+    '''
+    job={"id": str(uuid.uuid4()), "name": ",".join(person_names), "names": person_names, "kind": kind,
+         "status": "queued", "modelpath": "",
+         "submitted": time.time(), "started": 0, "finished": 0, "event": threading.Event()}
+    with jobs_lock:
+        #forget the oldest finished jobs
+        for job_id in list(training_jobs.keys()):
+            if len(training_jobs)<KEPT_JOBS:
+                break
+            if training_jobs[job_id]["event"].is_set():
+                del training_jobs[job_id]
+        training_jobs[job["id"]]=job
+    training_queue.put(("job", job))
+    return job
+
+def job_state(job):
+    ''' JSON friendly state of a training job
+    '''
+    now=time.time()
+    started=job["started"] or now
+    finished=job["finished"] or now
+    return {"job_id": job["id"], "status": job["status"], "modelpath": job["modelpath"],
+            "queued_ms": int((started-job["submitted"])*1000),
+            "training_ms": int((finished-job["started"])*1000) if job["started"] else 0}
+
+def get_db_pool():
+    ''' The method is to get the pool of database connections, created on first use
+        return: MySQLConnectionPool
+    '''
+    global db_pool
+    with db_pool_lock:
+        if db_pool is None:
+            db_pool=pooling.MySQLConnectionPool(pool_name="safeaccess", pool_size=DB_POOL_SIZE, host=DB_HOST,
+                database=DB_DATABASE, user=DB_USERNAME, password=DB_PASSWORD)
+    return db_pool
+
+@contextlib.contextmanager
+def pooled_connection():
+    ''' The method is to borrow a connection of the pool for a with block. A request waits for a free
+        connection instead of failing when all of them are in use
+        return: connection, given back to the pool when the block ends
+    '''
+    with db_slots:
+        connection=get_db_pool().get_connection()
+        try:
+            yield connection
+        finally:
+            #close gives a pooled connection back to the pool
+            connection.close()
+
+def person_lock_name(name, phone):
+    ''' The method is to name the MySql lock of a person, names are limited to 64 characters
+        param: name, phone
+        return: lock name, the same as in the Java server
+    '''
+    return "personinfo-"+hashlib.sha1((name+"\n"+phone).encode("utf-8")).hexdigest()
+
+def find_person_id(connection, name, phone):
+    ''' The method is to look up the id of a person with a prepared statement
+        param: connection, name, phone
+        return: id of the last matching row, None when the person is not in the table
+    '''
+    cursor=connection.cursor(prepared=True)
+    try:
+        cursor.execute("select * from personinfo where name= %s and phone= %s", (name, phone))
+        person_id=None
+        for row in cursor.fetchall():
+            person_id=row[0]
+        return person_id
+    finally:
+        cursor.close()
 
 def get_person_info(personinfo):
-    ''' The method is to retrieve person information stored in database
+    ''' The method is to retrieve person information stored in database, known ids are answered from the cache
         param: personinfo - JSON objects contains name and phone to query
-        return: JSON object contains person name, id etc
+        return: person id
     '''
     #default value will be returned if person is not found in DB
     person_id=-88888
+    key=(str(personinfo["name"]), str(personinfo["phone"]))
+    with person_lock:
+        if key in person_ids:
+            return person_ids[key]
     try:
-        #create connection object
-        connection = mysql.connector.connect(host=DB_HOST, database=DB_DATABASE, user=DB_USERNAME,password=DB_PASSWORD)
-        if connection.is_connected():
-            #create query
-            query="select * from  personinfo where name= %s and phone= %s" 
-            values=(str (personinfo["name"]),str (personinfo["phone"]),)
-            #create cursor
-            cursor_cnt = connection.cursor()
-            cursor_cnt.execute(query,values)
-            #fetch cursor
-            records = cursor_cnt.fetchall()
-            #read records
-            for row in records:
-                person_id=row[0]
-            cursor_cnt.close()
+        with pooled_connection() as connection:
+            found=find_person_id(connection, key[0], key[1])
+            if found is not None:
+                person_id=found
+                with person_lock:
+                    person_ids[key]=person_id
     except Error as e:
         logging.error("Error while connecting to MySQL", exc_info=True)
-    finally:
-        if (connection.is_connected()):
-            connection.close()#clean up connection
     return  person_id
 
 @app.route('/api/ownerinfo', methods=['POST'])
@@ -189,23 +618,16 @@ def get_owner_info():
     #default value if owner is not found
     person_id=88888
     try:    
-        connection = mysql.connector.connect(host=DB_HOST, database=DB_DATABASE, user=DB_USERNAME,password=DB_PASSWORD)
-        if connection.is_connected():
+        with pooled_connection() as connection:
             #get owner information with unique phone id used as owner name
-            query="select * from  personinfo where owner_name =%s"
-            values=(str (personinfo["owner_name"]),)
-            print(values)
-            cursor_cnt = connection.cursor()
-            cursor_cnt.execute(query,values)
+            cursor_cnt = connection.cursor(prepared=True)
+            cursor_cnt.execute("select * from  personinfo where owner_name =%s", (str (personinfo["owner_name"]),))
             records = cursor_cnt.fetchall()
             for row in records:
                 person_id=row[0]
             cursor_cnt.close()
     except Error as e:
         logging.error("Error while connecting to MySQL", exc_info=True)
-    finally:
-        if (connection.is_connected()):
-            connection.close()
     result={"message": str(person_id)}
     # encode response using jsonpickle
     response_pickled = jsonpickle.encode(result)
@@ -216,7 +638,8 @@ def get_owner_info():
 @app.route('/api/addperson', methods=['POST'])
 def insert_person_to_db():
     '''The webservice is to insert a person in DB if not exists and create a folder for that person
-         in the file system
+         in the file system. A person already looked up is answered from the cache without a query,
+         otherwise one pooled connection runs the lookup and, for a new person, the insert
         param: personinfo - JSON objects contains person information
         return: JSON object contains person id generated by DB
     '''
@@ -224,43 +647,56 @@ def insert_person_to_db():
     personinfo=request.json
     result=""
     person_id=-999999
-    try:    
-        connection = mysql.connector.connect(host=DB_HOST, database=DB_DATABASE, user=DB_USERNAME,password=DB_PASSWORD)
-        if connection.is_connected():
-            #check if already name and phone exists
-            query="select count(1) from  personinfo where name= %s and phone= %s" 
-            values=(str (personinfo["name"]),str (personinfo["phone"]),)
-            cursor_cnt = connection.cursor()
-            cursor_cnt.execute(query,values)
-            records = cursor_cnt.fetchall()
-            num_val=-999
-            for row in records:
-                num_val=row[0]
-            #if a person does not exist then insert a record
-            if(num_val)<=0:
-                query="insert into personinfo (name,email,phone,phone_carier,relation,owner_name) values (%s, %s, %s, %s, %s, %s)"
-                values=(str (personinfo["name"]),str(personinfo["email"]),str(personinfo["phone"]),str(personinfo["phone_carier"]),str(personinfo["relation"]),str(personinfo["owner_name"]))
-                cursor = connection.cursor()
-                #execute query
-                cursor.execute(query,values)
-                #commit the changes 
-                connection.commit()
-                #get id generated by DB
-                person_id=cursor.lastrowid
+    key=(str(personinfo["name"]), str(personinfo["phone"]))
+    with person_lock:
+        cached_id=person_ids.get(key)
+    if cached_id is not None:
+        person_id=cached_id
+    else:
+        try:
+            with pooled_connection() as connection:
+                #the schema is not known here, without a unique (name, phone) key an upsert is not possible,
+                #the named lock keeps a concurrent addperson of the same person from inserting it too
+                lock_name=person_lock_name(key[0], key[1])
+                cursor=connection.cursor()
+                cursor.execute("select get_lock(%s, %s)", (lock_name, DB_LOCK_TIMEOUT))
+                locked=cursor.fetchone()[0]
                 cursor.close()
-            else:
-                person_id=get_person_info(personinfo)
-            
-    except Error as e:
-        logging.error("Error while connecting to MySQL",  exc_info=True)
-    finally:
-        if (connection.is_connected()):
-            connection.close()
+                if locked!=1:
+                    raise Error("timed out waiting for "+lock_name)
+                try:
+                    #check if already name and phone exists
+                    found=find_person_id(connection, key[0], key[1])
+                    if found is not None:
+                        person_id=found
+                    else:
+                        #if a person does not exist then insert a record
+                        query="insert into personinfo (name,email,phone,phone_carier,relation,owner_name) values (%s, %s, %s, %s, %s, %s)"
+                        values=(str (personinfo["name"]),str(personinfo["email"]),str(personinfo["phone"]),str(personinfo["phone_carier"]),str(personinfo["relation"]),str(personinfo["owner_name"]))
+                        cursor = connection.cursor(prepared=True)
+                        #execute query
+                        cursor.execute(query,values)
+                        #commit the changes before the lock is released
+                        connection.commit()
+                        #get id generated by DB
+                        person_id=cursor.lastrowid
+                        cursor.close()
+                finally:
+                    cursor=connection.cursor()
+                    cursor.execute("select release_lock(%s)", (lock_name,))
+                    cursor.fetchall()
+                    cursor.close()
+                with person_lock:
+                    person_ids[key]=person_id
+        except Error as e:
+            logging.error("Error while connecting to MySQL",  exc_info=True)
     # create a folder to store images of that person        
     if os.path.exists(directory+"/"+personinfo["name"]):
         #claen up previous images since already trained model with them
         shutil.rmtree(directory+"/"+personinfo["name"])
     os.makedirs(directory+"/"+personinfo["name"])
+    #images added for an earlier enrollment were already written to a model
+    training_queue.put(("reset", personinfo["name"]))
     result={"message": str(person_id)}
     # encode response using jsonpickle
     response_pickled = jsonpickle.encode(result)
@@ -280,22 +716,19 @@ def delete_person_from_db():
     result=""
     deleted_row=-999999
     try:    
-        connection = mysql.connector.connect(host=DB_HOST, database=DB_DATABASE, user=DB_USERNAME,password=DB_PASSWORD)
-        if connection.is_connected():
+        with pooled_connection() as connection:
             #perform soft delete from DB
             query="update  personinfo set isactive=1 where name= %s and phone= %s" 
             values=(str(personinfo["name"]),str(personinfo["phone"]),)
-            cursor_cnt = connection.cursor()
+            cursor_cnt = connection.cursor(prepared=True)
             cursor_cnt.execute(query,values)
             connection.commit() 
             deleted_row=cursor_cnt.rowcount
             cursor_cnt.close()
     except Error as e:
         logging.error("Error while connecting to MySQL", exc_info=True)
-    finally:
-        if (connection.is_connected()):
-
-            connection.close()
+    with person_lock:
+        person_ids.pop((str(personinfo["name"]), str(personinfo["phone"])), None)
             
     result={"message": str(deleted_row)}
     # encode response using jsonpickle
@@ -326,44 +759,177 @@ def get_picture():
     file_name=directory+"/"+person_name+"/"+"subject"+str(person_id)+"."+str(current_milli_time)+"_"+str(pic_indx)+".jpg"
     with open(file_name, 'wb') as f:
         f.write(frame )
+    add_images(person_name, person_id, [frame])
     result="frame received"
     result={"message": result}
     # encode response using jsonpickle
     response_pickled = jsonpickle.encode(result)
     return Response(response=response_pickled, status=200, mimetype="application/json")
 
+def person_folder(person_name):
+    ''' folder of a person, the name comes from the client and must not leave the image directory
+        param: person_name
+        return: path of the folder
+        exception: ValueError - the name is empty or a path
+    '''
+    if not person_name or "/" in person_name or "\\" in person_name or person_name in (".", ".."):
+        raise ValueError("invalid person name "+str(person_name))
+    return directory+"/"+person_name
+
+def save_binary_pictures(stream, person_name, person_id, payload_type):
+    '''read length prefixed images from the request stream and write them to the person folder
+        as they arrive, nothing is decoded. The bytes of the batch are kept for the recognizer
+        frame format, big endian: [int32 image id][int32 length][length bytes of JPEG or descriptor]
+        param: stream - request body, person_name, person_id, payload_type - lbp for descriptors
+        return: ids of the images that were saved and their bytes
+        exception: ValueError - a frame claims a negative length or more than MAX_PAYLOAD_BYTES
+    '''
+    current_milli_time = time.time() * 1000
+    acks=[]
+    frames=[]
+    folder=person_folder(person_name)
+    while True:
+        header=stream.read(8)
+        if len(header)<8:
+            break
+        image_id, length=struct.unpack(">ii", header)
+        if length<0 or length>MAX_PAYLOAD_BYTES:
+            #the length comes from the client, never trust it
+            logging.error("Image "+str(image_id)+" of "+person_name+" has an invalid length "+str(length))
+            raise ValueError("invalid image length")
+        frame=stream.read(length)
+        if len(frame)<length:
+            logging.error("Truncated image "+str(image_id))
+            break
+        extension=".jpg"
+        if payload_type==PAYLOAD_LBP:
+            if not descriptor_matches(frame):
+                logging.error("Descriptor "+str(image_id)+" does not match the recognizer")
+                continue
+            extension=".lbp"
+        file_name=folder+"/"+"subject"+str(person_id)+"."+str(current_milli_time)+"_"+str(image_id)+extension
+        with open(file_name, 'wb') as f:
+            f.write(frame)
+        acks.append(image_id)
+        frames.append(frame)
+    return acks, frames
+
+@app.route('/api/getpictures', methods=['POST'])
+def get_pictures():
+    '''The webservice is to recive a batch of images of a person in one call.
+        param: personinfo - JSON objects contains person name, id and list of images, each with its id
+                or raw JPEG frames (application/octet-stream) with name and id in X-Person-Name/X-Person-Id headers
+                "payload_type" (X-Payload-Type header) lbp sends LBP descriptors in place of images
+        return: ids of the images that were saved, write_ms - time spent reading and storing them
+    '''
+    global directory
+    started=time.time()
+    if request.mimetype == "application/octet-stream":
+        person_name=request.headers.get("X-Person-Name")
+        person_id=request.headers.get("X-Person-Id")
+        payload_type=request.headers.get("X-Payload-Type", "crop")
+        try:
+            acks, frames=save_binary_pictures(request.stream, person_name, person_id, payload_type)
+        except ValueError as e:
+            response_pickled = jsonpickle.encode({"message": str(e)})
+            return Response(response=response_pickled, status=400, mimetype="application/json")
+        if payload_type==PAYLOAD_LBP:
+            add_descriptors(person_name, person_id, frames)
+        else:
+            add_images(person_name, person_id, frames)
+        result={"message": "frames received", "acks": acks, "write_ms": int((time.time()-started)*1000)}
+        response_pickled = jsonpickle.encode(result)
+        return Response(response=response_pickled, status=200, mimetype="application/json")
+    request_recived=request.json
+    #receives person name once for the whole batch
+    person_name= request_recived.get("name")
+    person_id=request_recived.get("person_id")
+    payload_type=request_recived.get("payload_type", "crop")
+    current_milli_time = time.time() * 1000
+    acks=[]
+    frames=[]
+    for image in request_recived.get("images", []):
+        try:
+            #decode image base64
+            frame = base64.b64decode(image.get("pic"))
+            extension=".jpg"
+            if payload_type==PAYLOAD_LBP:
+                if not descriptor_matches(frame):
+                    logging.error("Descriptor "+str(image.get("id"))+" does not match the recognizer")
+                    continue
+                extension=".lbp"
+            #image id keeps file names of the batch unique
+            file_name=directory+"/"+person_name+"/"+"subject"+str(person_id)+"."+str(current_milli_time)+"_"+str(image.get("id"))+extension
+            with open(file_name, 'wb') as f:
+                f.write(frame )
+            acks.append(image.get("id"))
+            frames.append(frame)
+        except Exception as e:
+            logging.error("Failed to save image "+str(image.get("id")), exc_info=True)
+    if payload_type==PAYLOAD_LBP:
+        add_descriptors(person_name, person_id, frames)
+    else:
+        add_images(person_name, person_id, frames)
+    result={"message": "frames received", "acks": acks, "write_ms": int((time.time()-started)*1000)}
+    # encode response using jsonpickle
+    response_pickled = jsonpickle.encode(result)
+    return Response(response=response_pickled, status=200, mimetype="application/json")
+
 @app.route('/api/trainmodel', methods=['POST'])
 def train_model():
     '''The webservice call perform model training after receving all images.
-        param: personinfo - JSON objects contains name
-        return: training status
+        param: personinfo - JSON objects contains name, or names to train a batch of persons (bulk import) with
+               one model, "async": true to get the job id without waiting
+        return: training status, or the queued job when async
     '''
-    global directory
-    global latest_models
-    global train_src
-    
      #receives person name from post method
     request_received=request.json
-    person_name= request_received.get("name")
-   
-    #src directory where images were saved
-    src=directory+"/"+person_name
-    dates=time.time()
-    dest=directory+"/train"+str(dates)
-    logging.info('Face recognizer training starts....')
-    
-    #generate new model name to be saved
-    latest_models=directory+"/models/lbp_"+str(round(dates))+".yml"
-    #start trainign model and pass the source image directory and name
-    star_training(src,latest_models)
-    message=""
-    if os.path.exists(latest_models):
+    person_names= request_received.get("names") or [request_received.get("name")]
+    #images are already in the recognizer, the job only writes the model
+    job=submit_training_job(person_names)
+    if request_received.get("async"):
+        result=job_state(job)
+        result["message"]="Training queued"
+        response_pickled = jsonpickle.encode(result)
+        return Response(response=response_pickled, status=200, mimetype="application/json")
+    job["event"].wait()
+    if job["status"]=="done":
         message="Training is complete"
     else:
         message="Training failed"
-        latest_models=""
     
-    result={"message": message,"modelpath":latest_models}
+    result={"message": message,"modelpath":job["modelpath"]}
+    response_pickled = jsonpickle.encode(result)
+    return Response(response=response_pickled, status=200, mimetype="application/json")
+
+@app.route('/api/rebuildmodel', methods=['POST'])
+def rebuild_model():
+    '''The webservice call is to train a new model from scratch with every cached face
+        param: 
+        return: the queued job, polled with trainingjob
+    '''
+    job=submit_training_job([], "rebuild")
+    result=job_state(job)
+    result["message"]="Rebuild queued"
+    response_pickled = jsonpickle.encode(result)
+    return Response(response=response_pickled, status=200, mimetype="application/json")
+
+@app.route('/api/trainingjob', methods=['POST'])
+def get_training_job():
+    '''The webservice call is to get the state of a training job. It waits up to wait_ms for the job to finish
+        so the app can poll without a tight loop
+        param: job_id, wait_ms
+        return: job id, status (queued, running, done, failed), modelpath and timings
+    '''
+    request_received=request.json
+    with jobs_lock:
+        job=training_jobs.get(request_received.get("job_id"))
+    if job is None:
+        result={"status": "unknown", "message": "Unknown job"}
+    else:
+        wait_ms=min(max(int(request_received.get("wait_ms", 0)), 0), 30000)
+        job["event"].wait(wait_ms/1000.0)
+        result=job_state(job)
     response_pickled = jsonpickle.encode(result)
     return Response(response=response_pickled, status=200, mimetype="application/json")
 
@@ -372,22 +938,19 @@ def get_latest_models_path():
     
     '''The webservice call is to get latest model path after model training.
         param: 
-        return: latest model path
+        return: latest model path and its version, from the catalog instead of scanning the folder
     '''
-    global latest_models
-    #read all model files
-    files_path = os.path.join(model_folder, '*')
-    #sort them by date to get latest one
-    model_files = sorted(glob.iglob(files_path), key=os.path.getctime, reverse=True) 
-    latest_models=model_files[0]
-    result={"models": latest_models}
+    with catalog_lock:
+        latest=model_catalog[-1] if model_catalog else {"version": 0, "modelpath": ""}
+    result={"models": latest["modelpath"], "version": latest["version"]}
     response_pickled = jsonpickle.encode(result)
     return Response(response=response_pickled, status=200, mimetype="application/json")
 
 ####################Face Recognition################
 
-#start the Flask application 
-app.run(host="0.0.0.0", port=APP_PORT)
+#start the training worker and the Flask application, one thread per request so a waiting poll does not block uploads
+threading.Thread(target=training_worker, name="training", daemon=True).start()
+app.run(host="0.0.0.0", port=APP_PORT, threaded=True)
     
 
     
\ No newline at end of file
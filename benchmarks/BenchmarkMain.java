@@ -0,0 +1,43 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class runs the enrollment benchmarks and writes the results as JSON, the format JMH tools (and a
+ plain diff of two runs) can compare, so a regression of any stage shows up between two commits.
+ Benchmarks: DecodeBenchmark, DetectBenchmark, EncodeBenchmark, SerializeBenchmark, EndToEndBenchmark
+ Nothing of Android is needed: VideoCaptureFrameSource replaces the retriever of the app, FrameConverter and
+ the detector are the classes of the app, and android/util/Log.java stands in for the Android log.
+ How to build: javac -cp <jmh-core jar>:<jmh-generator-annprocess jar>:<opencv jar>:<org.json jar> -d out
+               ../CascadeFaceDetector.java ../DetectorCalibration.java ../DnnFaceDetector.java ../FaceDetector.java
+               ../FaceDetectorFactory.java ../EnrollmentMetrics.java ../EnrollmentPipeline.java ../FrameBufferPool.java
+               ../FrameConverter.java ../LatencyHistogram.java android/util/Log.java *.java
+               (the JMH annotation processor runs as part of javac and generates the benchmark code)
+ How to run: java -Djava.library.path=<opencv java lib> -Dsafeaccess.video=<video of a face>
+             -Dsafeaccess.cascades=<opencv data folder with the cascade xml files>
+             -cp out:<jmh-core jar>:<jopt-simple jar>:<commons-math3 jar>:<opencv jar>:<org.json jar>
+             edu.memphis.com.safeaccess.benchmarks.BenchmarkMain [results.json] [benchmark regex]
+ Forked benchmark JVMs get the same -D options. The sample video is not part of the repository: record a
+ few seconds of a face the way users do for enrollment (portrait, phone camera) and keep using the same file.
+ */
+
+package edu.memphis.com.safeaccess.benchmarks;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException {
+        String resultFile = args.length > 0 ? args[0] : "benchmark-results.json";
+        String include = args.length > 1 ? args[1] : BenchmarkMain.class.getPackage().getName() + "\\..*Benchmark";
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(options).run();
+    }
+}
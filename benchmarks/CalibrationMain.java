@@ -0,0 +1,47 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class runs the face detector calibration of the app on the sample video from a desktop and prints
+ frames/sec, faces/sec and recall of every backend and the one to put in the config file (FACE_DETECTOR).
+ Model files (haarcascade_frontalface_alt_tree.xml, lbpcascade_frontalface.xml, opencv_face_detector_uint8.pb
+ and opencv_face_detector.pbtxt) are read from the -Dsafeaccess.cascades folder, a backend whose files are
+ missing is left out.
+ How to run: as BenchmarkMain, with edu.memphis.com.safeaccess.benchmarks.CalibrationMain [min recall percent]
+ */
+
+package edu.memphis.com.safeaccess.benchmarks;
+import edu.memphis.com.safeaccess.CascadeFaceDetector;
+import edu.memphis.com.safeaccess.DetectorCalibration;
+import edu.memphis.com.safeaccess.EnrollmentPipeline;
+import edu.memphis.com.safeaccess.FaceDetectorFactory;
+import edu.memphis.com.safeaccess.FrameBufferPool;
+import java.io.File;
+import java.util.List;
+
+public class CalibrationMain {
+    public static void main(String[] args) {
+        double minRecall = (args.length > 0 ? Integer.parseInt(args[0]) : 90) / 100.0;
+        SampleVideo.loadOpenCv();
+        final String videoPath = SampleVideo.videoPath();
+        final FrameBufferPool pool = new FrameBufferPool(SampleVideo.POOL_CAPACITY);
+        FaceDetectorFactory factory = new FaceDetectorFactory(FaceDetectorFactory.Backend.HAAR,
+                new File(System.getProperty("safeaccess.cascades", "benchmarks/cascades")),
+                CascadeFaceDetector.Mode.PYRAMID, SampleVideo.DETECT_WIDTH, SampleVideo.MIN_FACE_SIZE, 0.5f);
+        DetectorCalibration calibration = new DetectorCalibration(new DetectorCalibration.FrameSourceFactory() {
+            @Override
+            public EnrollmentPipeline.FrameSource open() {
+                return new VideoCaptureFrameSource(videoPath, SampleVideo.SAMPLED_FRAMES, pool);
+            }
+        }, pool);
+        List<DetectorCalibration.Result> results = calibration.calibrateAll(factory);
+        for (DetectorCalibration.Result result : results) {
+            System.out.println(result);
+        }
+        DetectorCalibration.Result chosen = DetectorCalibration.choose(results, minRecall);
+        System.out.println("FACE_DETECTOR=" + (chosen == null ? "none" : chosen.backend.name().toLowerCase()));
+        pool.clear();
+    }
+}
@@ -0,0 +1,76 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class benchmarks the decode stage of the enrollment pipeline on one frame.
+ Task performs:
+ 1. seekDecode: seek to the next sampled timestamp and decode the color frame
+ 2. grayRotate: convert a decoded frame to gray and rotate it upright (FrameConverter)
+ */
+
+package edu.memphis.com.safeaccess.benchmarks;
+import edu.memphis.com.safeaccess.FrameBufferPool;
+import edu.memphis.com.safeaccess.FrameConverter;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+    private FrameBufferPool pool;
+    private VideoCaptureFrameSource source;
+    private FrameConverter converter;
+    private Mat color;
+    private int frameIterator = 0;
+
+    @Setup
+    public void open() {
+        SampleVideo.loadOpenCv();
+        pool = new FrameBufferPool(SampleVideo.POOL_CAPACITY);
+        source = new VideoCaptureFrameSource(SampleVideo.videoPath(), SampleVideo.SAMPLED_FRAMES, pool);
+        converter = new FrameConverter(pool, Imgproc.COLOR_BGR2GRAY);
+        Mat first = source.decodeColor(0);
+        if (first == null) {
+            throw new IllegalStateException("no frame decoded from " + SampleVideo.videoPath());
+        }
+        color = first.clone();
+    }
+
+    @Benchmark
+    public Mat seekDecode() {
+        return source.decodeColor(frameIterator++ % source.getNumberOfFrame());
+    }
+
+    @Benchmark
+    public void grayRotate(Blackhole blackhole) {
+        Mat upright = converter.toUprightGray(color);
+        blackhole.consume(upright);
+        pool.release(upright);
+    }
+
+    @TearDown
+    public void close() {
+        source.close();
+        color.release();
+        pool.clear();
+    }
+}
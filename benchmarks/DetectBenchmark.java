@@ -0,0 +1,73 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class benchmarks face detection on the sampled frames of the video, one frame per call in video
+ order so the tracking of CascadeFaceDetector sees the same sequence as in the app.
+ Parameters: cascade - the alt_tree cascade the app ships against lighter cascades of OpenCV,
+             mode - FULL (plain detectMultiScale) or PYRAMID (downscaled and tracked)
+ */
+
+package edu.memphis.com.safeaccess.benchmarks;
+import edu.memphis.com.safeaccess.CascadeFaceDetector;
+import edu.memphis.com.safeaccess.FrameBufferPool;
+import edu.memphis.com.safeaccess.LatencyHistogram;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DetectBenchmark {
+    @Param({"haarcascade_frontalface_alt_tree.xml", "haarcascade_frontalface_alt.xml",
+            "haarcascade_frontalface_alt2.xml", "haarcascade_frontalface_default.xml", "lbpcascade_frontalface.xml"})
+    public String cascade;
+
+    @Param({"FULL", "PYRAMID"})
+    public String mode;
+
+    private FrameBufferPool pool;
+    private List<Mat> frames;
+    private CascadeFaceDetector detector;
+    private int frameIterator = 0;
+
+    @Setup
+    public void load() {
+        SampleVideo.loadOpenCv();
+        pool = new FrameBufferPool(SampleVideo.POOL_CAPACITY);
+        frames = SampleVideo.uprightFrames(pool);
+        detector = new CascadeFaceDetector(SampleVideo.loadCascade(cascade), CascadeFaceDetector.Mode.valueOf(mode),
+                SampleVideo.DETECT_WIDTH, SampleVideo.MIN_FACE_SIZE, pool, new LatencyHistogram("detection " + mode));
+    }
+
+    @Benchmark
+    public Rect[] detect() {
+        return detector.detect(frames.get(frameIterator++ % frames.size()));
+    }
+
+    @TearDown
+    public void close() {
+        detector.close();
+        SampleVideo.release(frames);
+        pool.clear();
+    }
+}
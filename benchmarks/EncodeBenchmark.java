@@ -0,0 +1,96 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class benchmarks JPEG compression of the faces found in the sample video, one face per call.
+ The mean JPEG size of the faces is reported as a JMH counter (meanJpegBytes), so it is in the JSON results
+ next to the time and the quality can be weighed against the upload size as well.
+ Parameters: quality - JPEG quality, the app uses 90
+ */
+
+package edu.memphis.com.safeaccess.benchmarks;
+import edu.memphis.com.safeaccess.FrameBufferPool;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+    @Param({"50", "70", "80", "90", "95"})
+    public int quality;
+
+    private List<Mat> faces;
+    private final MatOfByte encoded = new MatOfByte();
+    private MatOfInt params;
+    private int faceIterator = 0;
+
+    @Setup
+    public void load() {
+        SampleVideo.loadOpenCv();
+        FrameBufferPool pool = new FrameBufferPool(SampleVideo.POOL_CAPACITY);
+        List<Mat> frames = SampleVideo.uprightFrames(pool);
+        faces = SampleVideo.faceCrops(frames);
+        SampleVideo.release(frames);
+        pool.clear();
+        params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, quality);
+    }
+
+    @Benchmark
+    public byte[] imencode(Payload payload) {
+        Imgcodecs.imencode(".jpg", faces.get(faceIterator++ % faces.size()), encoded, params);
+        payload.bytes += encoded.total();
+        payload.encoded++;
+        return encoded.toArray();
+    }
+
+    @TearDown
+    public void close() {
+        SampleVideo.release(faces);
+        encoded.release();
+        params.release();
+    }
+
+    /**
+     JPEG size of the faces encoded in an iteration, a secondary result of JMH next to the time
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Payload {
+        long bytes;
+        long encoded;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            encoded = 0;
+        }
+
+        public double meanJpegBytes() {
+            return encoded == 0 ? 0 : (double) bytes / encoded;
+        }
+    }
+}
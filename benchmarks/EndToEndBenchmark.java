@@ -0,0 +1,104 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class benchmarks the whole per frame path of an enrollment on one thread, one sampled frame per call:
+ seek and decode, gray and rotate, detect, crop and resize, JPEG at quality 90 and Base64 of every face.
+ The sum of the stage benchmarks and this one should agree; a gap points at work between the stages.
+ Face selection (blur and duplicate checks) is left out, in a loop over the same frames it would reject
+ every face after the first round.
+ Parameters: cascade, mode - as in DetectBenchmark
+ */
+
+package edu.memphis.com.safeaccess.benchmarks;
+import edu.memphis.com.safeaccess.CascadeFaceDetector;
+import edu.memphis.com.safeaccess.FrameBufferPool;
+import edu.memphis.com.safeaccess.FrameConverter;
+import edu.memphis.com.safeaccess.LatencyHistogram;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Rect;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+    @Param({"haarcascade_frontalface_alt_tree.xml", "lbpcascade_frontalface.xml"})
+    public String cascade;
+
+    @Param({"FULL", "PYRAMID"})
+    public String mode;
+
+    private FrameBufferPool pool;
+    private VideoCaptureFrameSource source;
+    private FrameConverter converter;
+    private CascadeFaceDetector detector;
+    private final MatOfByte encoded = new MatOfByte();
+    private MatOfInt params90;
+    private int frameIterator = 0;
+
+    @Setup
+    public void open() {
+        SampleVideo.loadOpenCv();
+        pool = new FrameBufferPool(SampleVideo.POOL_CAPACITY);
+        source = new VideoCaptureFrameSource(SampleVideo.videoPath(), SampleVideo.SAMPLED_FRAMES, pool);
+        converter = new FrameConverter(pool, Imgproc.COLOR_BGR2GRAY);
+        detector = new CascadeFaceDetector(SampleVideo.loadCascade(cascade), CascadeFaceDetector.Mode.valueOf(mode),
+                SampleVideo.DETECT_WIDTH, SampleVideo.MIN_FACE_SIZE, pool, new LatencyHistogram("detection " + mode));
+        params90 = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 90);
+    }
+
+    @Benchmark
+    public void frame(Blackhole blackhole) {
+        Mat color = source.decodeColor(frameIterator++ % source.getNumberOfFrame());
+        if (color == null) {
+            return;
+        }
+        Mat upright = converter.toUprightGray(color);
+        try {
+            for (Rect face : detector.detect(upright)) {
+                if (face.width < SampleVideo.MIN_FACE_SIZE) {
+                    continue;
+                }
+                Mat sent = SampleVideo.sentFace(upright.submat(face));
+                Imgcodecs.imencode(".jpg", sent, encoded, params90);
+                sent.release();
+                blackhole.consume(Base64.getEncoder().encodeToString(encoded.toArray()));
+            }
+        } finally {
+            pool.release(upright);
+        }
+    }
+
+    @TearDown
+    public void close() {
+        detector.close();
+        source.close();
+        encoded.release();
+        params90.release();
+        pool.clear();
+    }
+}
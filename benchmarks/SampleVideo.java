@@ -0,0 +1,146 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class prepares the inputs shared by the enrollment benchmarks: the sample video, the cascade files
+ and frames and faces taken from the video once, so a benchmark only measures its own stage.
+ Task performs:
+ 1. Load the OpenCV native library of the forked benchmark JVM
+ 2. Find the sample video (-Dsafeaccess.video) and cascade files (-Dsafeaccess.cascades)
+ 3. Decode and convert the sampled frames of the video
+ 4. Crop the faces of those frames with the cascade the app ships
+ Settings follow the defaults of AddPersonFromGallery.
+ */
+
+package edu.memphis.com.safeaccess.benchmarks;
+import edu.memphis.com.safeaccess.FrameBufferPool;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class SampleVideo {
+    public static final int SAMPLED_FRAMES = 30; //frames sampled from the video, per benchmark
+    public static final int MIN_FACE_SIZE = 64;
+    public static final int DETECT_WIDTH = 320;
+    public static final int RESIZE_WIDTH = 200; //faces larger than this are halved before compression
+    public static final int BATCH_SIZE = 8;
+    public static final int POOL_CAPACITY = 32;
+    public static final String APP_CASCADE = "haarcascade_frontalface_alt_tree.xml"; //the cascade the app ships
+
+    private static boolean loaded = false;
+
+    private SampleVideo() {
+    }
+
+    public static synchronized void loadOpenCv() {
+        if (!loaded) {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+            loaded = true;
+        }
+    }
+
+    public static String videoPath() {
+        return existing(System.getProperty("safeaccess.video", "benchmarks/sample.mp4"));
+    }
+
+    public static String cascadePath(String cascadeName) {
+        return existing(new File(System.getProperty("safeaccess.cascades", "benchmarks/cascades"), cascadeName).getPath());
+    }
+
+    public static CascadeClassifier loadCascade(String cascadeName) {
+        CascadeClassifier classifier = new CascadeClassifier(cascadePath(cascadeName));
+        if (classifier.empty()) {
+            throw new IllegalStateException("can not load " + cascadeName);
+        }
+        return classifier;
+    }
+
+    /**
+     This method is to decode and convert the sampled frames of the video
+     parameter: pool - buffers used while converting
+     return: upright gray frames, owned by the caller
+     exception: none
+     */
+    public static List<Mat> uprightFrames(FrameBufferPool pool) {
+        List<Mat> frames = new ArrayList<>();
+        VideoCaptureFrameSource source = new VideoCaptureFrameSource(videoPath(), SAMPLED_FRAMES, pool);
+        try {
+            Mat frame;
+            while ((frame = source.nextFrame()) != null) {
+                frames.add(frame.clone());
+                pool.release(frame);
+            }
+        } finally {
+            source.close();
+        }
+        if (frames.isEmpty()) {
+            throw new IllegalStateException("no frame decoded from " + videoPath());
+        }
+        return frames;
+    }
+
+    /**
+     This method is to crop the faces of frames like the app, with its cascade on the full frame
+     parameter: frames - upright gray frames
+     return: face crops as the app compresses them, owned by the caller
+     exception: IllegalStateException when the video has no face
+     */
+    public static List<Mat> faceCrops(List<Mat> frames) {
+        CascadeClassifier classifier = loadCascade(APP_CASCADE);
+        List<Mat> faces = new ArrayList<>();
+        MatOfRect found = new MatOfRect();
+        for (Mat frame : frames) {
+            classifier.detectMultiScale(frame, found);
+            for (Rect face : found.toArray()) {
+                if (face.width >= MIN_FACE_SIZE) {//smaller faces are rejected by the app
+                    faces.add(sentFace(frame.submat(face)));
+                }
+            }
+        }
+        found.release();
+        if (faces.isEmpty()) {
+            throw new IllegalStateException("no face found in " + videoPath());
+        }
+        return faces;
+    }
+
+    /**
+     This method is to resize a crop like the app does before compressing it: halved when it is big
+     parameter: crop - face region of a frame, released here
+     return: face of its own
+     exception: none
+     */
+    public static Mat sentFace(Mat crop) {
+        Mat face = new Mat();
+        if (crop.rows() > RESIZE_WIDTH || crop.cols() > RESIZE_WIDTH) {
+            Imgproc.resize(crop, face, new Size(crop.cols() / 2, crop.rows() / 2));
+        } else {
+            crop.copyTo(face);
+        }
+        crop.release();
+        return face;
+    }
+
+    public static void release(List<Mat> mats) {
+        for (Mat mat : mats) {
+            mat.release();
+        }
+        mats.clear();
+    }
+
+    private static String existing(String path) {
+        if (!new File(path).exists()) {
+            throw new IllegalStateException("missing " + path);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,97 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class benchmarks building the body of one getpictures request of BATCH_SIZE faces.
+ Task performs:
+ 1. base64Json: Base64 pictures in a JSON object, the layout of BatchUploader.toJson (JSON transport)
+ 2. binaryFrames: [int32 id][int32 length][JPEG] frames, the layout of BinaryBatchRequest (binary transport)
+ java.util.Base64 stands in for android.util.Base64, both write the same NO_WRAP text.
+ */
+
+package edu.memphis.com.safeaccess.benchmarks;
+import edu.memphis.com.safeaccess.FrameBufferPool;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializeBenchmark {
+    private final List<byte[]> batch = new ArrayList<>(); //JPEG faces of one request
+
+    @Setup
+    public void load() {
+        SampleVideo.loadOpenCv();
+        FrameBufferPool pool = new FrameBufferPool(SampleVideo.POOL_CAPACITY);
+        List<Mat> frames = SampleVideo.uprightFrames(pool);
+        List<Mat> faces = SampleVideo.faceCrops(frames);
+        MatOfByte encoded = new MatOfByte();
+        MatOfInt params90 = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 90);
+        for (int faceIterator = 0; faceIterator < SampleVideo.BATCH_SIZE; faceIterator++) {
+            Imgcodecs.imencode(".jpg", faces.get(faceIterator % faces.size()), encoded, params90);
+            batch.add(encoded.toArray());
+        }
+        encoded.release();
+        params90.release();
+        SampleVideo.release(faces);
+        SampleVideo.release(frames);
+        pool.clear();
+    }
+
+    @Benchmark
+    public byte[] base64Json() throws Exception {
+        JSONObject request = new JSONObject();
+        request.put("name", "benchmark");
+        request.put("person_id", 1);
+        JSONArray images = new JSONArray();
+        for (int imageIterator = 0; imageIterator < batch.size(); imageIterator++) {
+            JSONObject image = new JSONObject();
+            image.put("id", imageIterator);
+            image.put("pic", Base64.getEncoder().encodeToString(batch.get(imageIterator)));
+            images.put(image);
+        }
+        request.put("images", images);
+        return request.toString().getBytes(StandardCharsets.UTF_8); //what Volley puts on the wire
+    }
+
+    @Benchmark
+    public byte[] binaryFrames() {
+        int size = 0;
+        for (byte[] face : batch) {
+            size += 8 + face.length;
+        }
+        ByteBuffer body = ByteBuffer.allocate(size);
+        for (int imageIterator = 0; imageIterator < batch.size(); imageIterator++) {
+            body.putInt(imageIterator);
+            body.putInt(batch.get(imageIterator).length);
+            body.put(batch.get(imageIterator));
+        }
+        return body.array();
+    }
+}
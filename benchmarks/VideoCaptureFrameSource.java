@@ -0,0 +1,81 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class is the desktop decode stage of the enrollment pipeline. The app seeks with
+ FFmpegMediaMetadataRetriever and converts Android bitmaps; here OpenCV's VideoCapture seeks and decodes
+ the same evenly spaced frames, and the frames go through the same FrameConverter as in the app.
+ Task performs:
+ 1. Sample "numberOfFrame" evenly spaced timestamps of the video
+ 2. Seek to a timestamp and decode the color frame
+ 3. Convert it to an upright gray frame taken from the buffer pool
+ */
+
+package edu.memphis.com.safeaccess.benchmarks;
+import edu.memphis.com.safeaccess.EnrollmentPipeline;
+import edu.memphis.com.safeaccess.FrameBufferPool;
+import edu.memphis.com.safeaccess.FrameConverter;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+public class VideoCaptureFrameSource implements EnrollmentPipeline.FrameSource {
+    private final VideoCapture capture;
+    private final FrameConverter converter;
+    private final int numberOfFrame;
+    private final double frameIntervalMs;
+    private final Mat color = new Mat(); //decoded frame, reused for every seek
+    private int frameIterator = 0;
+
+    /**
+     This constructor is to open the video
+     parameter: videoPath, numberOfFrame - frames sampled from the whole video, pool - buffers of the gray frames
+     return: None
+     exception: IllegalArgumentException when the video can not be opened
+     */
+    public VideoCaptureFrameSource(String videoPath, int numberOfFrame, FrameBufferPool pool) {
+        this.capture = new VideoCapture(videoPath);
+        if (!capture.isOpened()) {
+            throw new IllegalArgumentException("can not open " + videoPath);
+        }
+        this.converter = new FrameConverter(pool, Imgproc.COLOR_BGR2GRAY); //VideoCapture decodes to BGR
+        this.numberOfFrame = numberOfFrame;
+        double durationMs = capture.get(Videoio.CAP_PROP_FRAME_COUNT) * 1000 / Math.max(1, capture.get(Videoio.CAP_PROP_FPS));
+        this.frameIntervalMs = durationMs / numberOfFrame;
+    }
+
+    @Override
+    public Mat nextFrame() {
+        while (frameIterator < numberOfFrame) {
+            Mat decoded = decodeColor(frameIterator++);
+            if (decoded != null) {
+                return converter.toUprightGray(decoded);
+            }
+        }
+        return null;
+    }
+
+    /**
+     This method is to seek to a sampled timestamp and decode the frame, without converting it
+     parameter: index - sampled frame, 0 to numberOfFrame - 1
+     return: color frame owned by the source and overwritten by the next call, null when it can not be read
+     exception: none
+     */
+    public Mat decodeColor(int index) {
+        capture.set(Videoio.CAP_PROP_POS_MSEC, frameIntervalMs * index);
+        return capture.read(color) && !color.empty() ? color : null;
+    }
+
+    public int getNumberOfFrame() {
+        return numberOfFrame;
+    }
+
+    @Override
+    public void close() {
+        capture.release();
+        color.release();
+    }
+}
@@ -0,0 +1,22 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class stands in for android.util.Log when the enrollment classes of the app run on a desktop JVM
+ for the benchmarks. Only the calls those classes make are provided, messages go to standard error so
+ they do not mix with the results JMH prints.
+ */
+
+package android.util;
+
+public final class Log {
+    private Log() {
+    }
+
+    public static int i(String tag, String message) {
+        System.err.println(tag + " " + message);
+        return 0;
+    }
+}
@@ -0,0 +1,494 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This is the JVM version of the enrollment webservice (add_person.py). It implements the same webservices
+ with the same requests and answers, so the SafeAccess app only needs SERVER_URL pointed at it. The Flask
+ webservice runs on one thread: a phone uploading images or waiting for training blocks every other phone.
+ Here requests run on virtual threads (Java 21+, a thread pool on older JVMs), images are written to disk
+ asynchronously and training runs on a worker queue of its own, so many phones can enroll at once.
+ Task performs:
+ 1. Receive user information, insert the person in DB and create the person folder (addperson)
+ 2. Receive face images one per request (getpicture) or in batches, JSON or binary (getpictures). Stored
+    images are handed to the recognizer right away. A batch may carry LBP descriptors computed by the phone
+    instead of images (payload type lbp), they are stored as .lbp and go into the next model as they are
+ 3. Queue a training job (trainmodel) of one person ("name") or of a batch ("names", one model for all).
+    With "async": true the job id is answered at once, otherwise the answer waits for the new model like the
+    Flask webservice
+ 4. Answer the state of a training job, waiting up to "wait_ms" for it to finish (trainingjob). Queue a
+    rebuild of the model from the face cache (rebuildmodel)
+ 5. Answer the active model version (latestmodel) from the model registry, list versions (models),
+    roll back to an earlier version (rollback) and recognize a face with the active version (recognize)
+ 6. Look up owners and soft delete persons
+ Webservice: com.sun.net.httpserver, JSON: org.json, database: MySql over JDBC, model: OpenCV LBPH saved as .yml
+ How to run: java -Djava.library.path=<opencv java lib> -cp <opencv jar>:<org.json jar>:<mysql connector jar>:.
+             edu.memphis.com.safeaccess.server.EnrollmentServer [config.env]
+ */
+
+package edu.memphis.com.safeaccess.server;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class EnrollmentServer {
+    private static final Logger LOG = Logger.getLogger("enrollment");
+    private static final String JSON = "application/json";
+    private static final String BINARY = "application/octet-stream";
+    private static final String PAYLOAD_CROP = "crop"; //payload types of getpictures, crop when none is sent
+    private static final String PAYLOAD_LBP = "lbp";
+    private static final int IO_THREADS = 4; //threads completing asynchronous image writes
+    private static final long MAX_WAIT_MS = 30000; //longest a trainingjob request is held open
+    private static final int MAX_PAYLOAD_BYTES = 4 * 1024 * 1024; //largest face or descriptor of a binary batch
+
+    private final PersonStore persons;
+    private final ImageStore images;
+    private final ModelTrainer trainer;
+    private final ModelRegistry registry;
+    private final AtomicInteger pictureIndex = new AtomicInteger(); //keeps names of single images unique
+    private HttpServer server;
+
+    public static void main(String[] args) throws Exception {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        ServerConfig config = ServerConfig.read(args.length > 0 ? args[0] : "config.env");
+        new EnrollmentServer(config).start(config.getInt("APP_PORT", 5000));
+        LOG.info("application has started");
+    }
+
+    /**
+     This constructor is to create the stores and the training worker from the configuration
+     parameter: config - values of config.env
+     return: None
+     exception: IOException when the face cache can not be opened
+     */
+    public EnrollmentServer(ServerConfig config) throws IOException {
+        String directory = config.get("directory");
+        persons = new PersonStore(config);
+        images = new ImageStore(new File(directory), IO_THREADS);
+        File modelOutput = new File(directory, "models");
+        registry = ModelRegistry.open(modelOutput, new File(config.get("model_folder")), config.getInt("KEEP_WARM_MODELS", 2));
+        int imageWidth = config.getInt("IMAGE_WIDTH", 100);
+        int imageHeight = config.getInt("IMAGE_HEIGHT", 100);
+        //preprocessed faces have imageWidth rows of imageHeight pixels, the resize order of the Flask webservice
+        FaceCache faceCache = FaceCache.open(new File(config.get("FACE_CACHE_PATH", directory + "/face_cache.bin")),
+                imageHeight, imageWidth, config.getInt("FACE_CACHE_MAX_MB", 512) * 1024L * 1024L);
+        trainer = new ModelTrainer(images, registry, faceCache, modelOutput, imageWidth, imageHeight);
+    }
+
+    /**
+     This method is to start listening, it returns immediately
+     parameter: port
+     return: None
+     exception: IOException when the port can not be bound
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("0.0.0.0", port), 0);
+        server.createContext("/api/ownerinfo", new JsonHandler() {
+            @Override
+            void handle(HttpExchange exchange, JSONObject request) throws Exception {
+                respond(exchange, new JSONObject().put("message", String.valueOf(persons.findOwner(request.optString("owner_name")))));
+            }
+        });
+        server.createContext("/api/addperson", new JsonHandler() {
+            @Override
+            void handle(HttpExchange exchange, JSONObject request) throws Exception {
+                String name = request.getString("name");
+                int personId = persons.addPerson(name, request.optString("email"), request.optString("phone"),
+                        request.optString("phone_carier"), request.optString("relation"), request.optString("owner_name"));
+                images.resetPersonFolder(name); //images of an earlier enrollment were already used for training
+                trainer.resetPerson(name);
+                respond(exchange, new JSONObject().put("message", String.valueOf(personId)));
+            }
+        });
+        server.createContext("/api/deleteperson", new JsonHandler() {
+            @Override
+            void handle(HttpExchange exchange, JSONObject request) throws Exception {
+                int deleted = persons.deletePerson(request.optString("name"), request.optString("phone"));
+                respond(exchange, new JSONObject().put("message", String.valueOf(deleted)));
+            }
+        });
+        server.createContext("/api/getpicture", new JsonHandler() {
+            @Override
+            void handle(final HttpExchange exchange, JSONObject request) throws Exception {
+                final String name = request.getString("name");
+                final Object personId = request.opt("person_id");
+                final byte[] jpeg = Base64.getMimeDecoder().decode(request.getString("pic"));
+                images.write(name, personId, System.currentTimeMillis(),
+                        pictureIndex.getAndIncrement(), jpeg).whenComplete(new BiConsumer<Integer, Throwable>() {
+                            @Override
+                            public void accept(Integer imageId, Throwable error) {
+                                if (error == null) {
+                                    addToRecognizer(name, personId, Collections.singletonList(jpeg));
+                                }
+                                respondQuietly(exchange, error == null ? "frame received" : "frame not saved");
+                            }
+                        });
+            }
+        });
+        server.createContext("/api/getpictures", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                receivePictures(exchange);
+            }
+        });
+        server.createContext("/api/trainmodel", new JsonHandler() {
+            @Override
+            void handle(final HttpExchange exchange, JSONObject request) throws Exception {
+                List<String> names = new ArrayList<>();
+                JSONArray batch = request.optJSONArray("names");
+                if (batch == null) {
+                    names.add(request.getString("name"));
+                } else {
+                    for (int nameIterator = 0; nameIterator < batch.length(); nameIterator++) {
+                        names.add(batch.getString(nameIterator));
+                    }
+                }
+                for (String name : names) {
+                    images.personFolder(name); //validates the name before it is queued
+                }
+                ModelTrainer.Job job = trainer.submit(names);
+                if (request.optBoolean("async")) {
+                    respond(exchange, jobState(job).put("message", "Training queued"));
+                    return;
+                }
+                job.done.whenComplete(new BiConsumer<String, Throwable>() {
+                    @Override
+                    public void accept(String modelPath, Throwable error) {
+                        try {
+                            boolean trained = error == null && !modelPath.isEmpty();
+                            respond(exchange, new JSONObject().put("message", trained ? "Training is complete" : "Training failed")
+                                    .put("modelpath", trained ? modelPath : ""));
+                        } catch (Exception ex) {
+                            LOG.log(Level.SEVERE, "trainmodel answer failed", ex);
+                            exchange.close();
+                        }
+                    }
+                });
+            }
+        });
+        server.createContext("/api/rebuildmodel", new JsonHandler() {
+            @Override
+            void handle(HttpExchange exchange, JSONObject request) throws Exception {
+                respond(exchange, jobState(trainer.submitRebuild()).put("message", "Rebuild queued"));
+            }
+        });
+        server.createContext("/api/trainingjob", new JsonHandler() {
+            @Override
+            void handle(final HttpExchange exchange, JSONObject request) throws Exception {
+                final ModelTrainer.Job job = trainer.getJob(request.optString("job_id"));
+                if (job == null) {
+                    respond(exchange, new JSONObject().put("status", "unknown").put("message", "Unknown job"));
+                    return;
+                }
+                //long poll: answer when the job finishes or after wait_ms, whichever comes first
+                long waitMs = Math.max(0, Math.min(request.optLong("wait_ms", 0), MAX_WAIT_MS));
+                job.done.copy().completeOnTimeout("", waitMs, TimeUnit.MILLISECONDS).whenComplete(new BiConsumer<String, Throwable>() {
+                    @Override
+                    public void accept(String modelPath, Throwable error) {
+                        try {
+                            respond(exchange, jobState(job));
+                        } catch (Exception ex) {
+                            LOG.log(Level.SEVERE, "trainingjob answer failed", ex);
+                            exchange.close();
+                        }
+                    }
+                });
+            }
+        });
+        server.createContext("/api/latestmodel", new JsonHandler() {
+            @Override
+            void handle(HttpExchange exchange, JSONObject request) throws Exception {
+                ModelRegistry.ModelVersion active = registry.getActive();
+                respond(exchange, new JSONObject().put("models", active == null ? "" : active.path)
+                        .put("version", active == null ? 0 : active.version));
+            }
+        });
+        server.createContext("/api/models", new JsonHandler() {
+            @Override
+            void handle(HttpExchange exchange, JSONObject request) throws Exception {
+                ModelRegistry.ModelVersion active = registry.getActive();
+                JSONArray versions = new JSONArray();
+                for (ModelRegistry.ModelVersion version : registry.getCatalog()) {
+                    versions.put(new JSONObject().put("version", version.version).put("modelpath", version.path)
+                            .put("created", version.createdMillis).put("warm", version.isWarm()));
+                }
+                respond(exchange, new JSONObject().put("active", active == null ? 0 : active.version).put("versions", versions));
+            }
+        });
+        server.createContext("/api/rollback", new JsonHandler() {
+            @Override
+            void handle(final HttpExchange exchange, JSONObject request) throws Exception {
+                //through the trainer, its recognizer is rolled back too and the next job builds on that version
+                trainer.rollback(request.optInt("version", 0)).whenComplete(new BiConsumer<ModelRegistry.ModelVersion, Throwable>() {
+                    @Override
+                    public void accept(ModelRegistry.ModelVersion active, Throwable error) {
+                        try {
+                            if (active == null) {
+                                respond(exchange, new JSONObject().put("message", "Rollback failed"));
+                                return;
+                            }
+                            respond(exchange, new JSONObject().put("message", "Rolled back").put("version", active.version)
+                                    .put("modelpath", active.path));
+                        } catch (Exception ex) {
+                            LOG.log(Level.SEVERE, "rollback answer failed", ex);
+                            exchange.close();
+                        }
+                    }
+                });
+            }
+        });
+        server.createContext("/api/recognize", new JsonHandler() {
+            @Override
+            void handle(HttpExchange exchange, JSONObject request) throws Exception {
+                MatOfByte encoded = new MatOfByte(Base64.getMimeDecoder().decode(request.getString("pic")));
+                Mat face = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_GRAYSCALE);
+                encoded.release();
+                if (face == null || face.empty()) {
+                    respond(exchange, new JSONObject().put("message", "Not an image"));
+                    return;
+                }
+                ModelRegistry.Prediction prediction = registry.predict(trainer.preprocess(face));
+                face.release();
+                if (prediction == null) {
+                    respond(exchange, new JSONObject().put("message", "No model"));
+                    return;
+                }
+                respond(exchange, new JSONObject().put("message", "recognized").put("label", prediction.label)
+                        .put("confidence", prediction.confidence).put("version", prediction.version));
+            }
+        });
+        server.setExecutor(requestExecutor());
+        server.start();
+        LOG.info("enrollment server listening on " + port);
+    }
+
+    public void stop() {
+        server.stop(1);
+        trainer.shutdown();
+        images.shutdown();
+        persons.close();
+    }
+
+    //answers once every image of the batch is on disk, the request thread does not wait for the writes.
+    //write_ms of the answer is the time from the request to the last write, the phone keeps it in its metrics
+    private void receivePictures(final HttpExchange exchange) {
+        try {
+            String name;
+            Object personId;
+            final long receivedMillis = System.currentTimeMillis();
+            final List<CompletableFuture<Integer>> writes = new ArrayList<>();
+            final List<byte[]> received = new ArrayList<>(); //in the order of writes
+            String payloadType;
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType != null && contentType.startsWith(BINARY)) {
+                //frames of [int32 image id][int32 length][JPEG or descriptor], person in the headers
+                name = exchange.getRequestHeaders().getFirst("X-Person-Name");
+                personId = exchange.getRequestHeaders().getFirst("X-Person-Id");
+                payloadType = exchange.getRequestHeaders().getFirst("X-Payload-Type");
+                images.personFolder(name);
+                DataInputStream in = new DataInputStream(exchange.getRequestBody());
+                while (true) {
+                    int imageId;
+                    try {
+                        imageId = in.readInt();
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_PAYLOAD_BYTES) {//the length comes from the client, never trust it
+                        LOG.warning("Image " + imageId + " of " + name + " has an invalid length " + length);
+                        respondQuietly(exchange, 400, "invalid image length");
+                        return;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    storePayload(name, personId, payloadType, receivedMillis, imageId, payload, writes, received);
+                }
+            } else {
+                JSONObject request = new JSONObject(new String(readBody(exchange.getRequestBody()), "UTF-8"));
+                name = request.getString("name");
+                personId = request.opt("person_id");
+                payloadType = request.optString("payload_type", PAYLOAD_CROP);
+                JSONArray batch = request.optJSONArray("images");
+                for (int imageIterator = 0; batch != null && imageIterator < batch.length(); imageIterator++) {
+                    JSONObject image = batch.getJSONObject(imageIterator);
+                    byte[] payload = Base64.getMimeDecoder().decode(image.getString("pic"));
+                    storePayload(name, personId, payloadType, receivedMillis, image.getInt("id"), payload, writes, received);
+                }
+            }
+            final String personName = name;
+            final Object person = personId;
+            final boolean descriptorBatch = PAYLOAD_LBP.equals(payloadType);
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void ignored, Throwable error) {
+                    JSONArray acks = new JSONArray();
+                    List<byte[]> saved = new ArrayList<>();
+                    for (int writeIterator = 0; writeIterator < writes.size(); writeIterator++) {
+                        CompletableFuture<Integer> write = writes.get(writeIterator);
+                        if (!write.isCompletedExceptionally()) {
+                            acks.put(write.join().intValue());
+                            saved.add(received.get(writeIterator));
+                        } else {
+                            LOG.warning("Failed to save an image of a batch");
+                        }
+                    }
+                    addToRecognizer(personName, person, saved, descriptorBatch);
+                    try {
+                        respond(exchange, new JSONObject().put("message", "frames received").put("acks", acks)
+                                .put("write_ms", System.currentTimeMillis() - receivedMillis));
+                    } catch (Exception ex) {
+                        LOG.log(Level.SEVERE, "getpictures answer failed", ex);
+                        exchange.close();
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "getpictures failed", ex);
+            fail(exchange);
+        }
+    }
+
+    //a descriptor computed with other LBP parameters or image size is neither stored nor acknowledged
+    private void storePayload(String name, Object personId, String payloadType, long receivedMillis, int imageId,
+                              byte[] payload, List<CompletableFuture<Integer>> writes, List<byte[]> received) {
+        if (!PAYLOAD_LBP.equals(payloadType)) {
+            writes.add(images.write(name, personId, receivedMillis, imageId, payload));
+        } else if (trainer.acceptsDescriptor(payload)) {
+            writes.add(images.write(name, personId, receivedMillis, imageId, payload, ImageStore.DESCRIPTOR_EXTENSION));
+        } else {
+            LOG.warning("Descriptor " + imageId + " of " + name + " does not match the recognizer");
+            return;
+        }
+        received.add(payload);
+    }
+
+    //images reach the recognizer while the upload is still running, a training job then only writes the model
+    private void addToRecognizer(String personName, Object personId, List<byte[]> saved) {
+        addToRecognizer(personName, personId, saved, false);
+    }
+
+    private void addToRecognizer(String personName, Object personId, List<byte[]> saved, boolean descriptors) {
+        try {
+            int label = Integer.parseInt(String.valueOf(personId).trim());
+            if (descriptors) {
+                trainer.addDescriptors(personName, label, saved);
+            } else {
+                trainer.addImages(personName, label, saved);
+            }
+        } catch (NumberFormatException ex) {
+            LOG.warning("No person id, images of " + personName + " are read at training");
+        }
+    }
+
+    private static JSONObject jobState(ModelTrainer.Job job) throws Exception {
+        return new JSONObject().put("job_id", job.id).put("status", job.getStatus()).put("modelpath", job.getModelPath())
+                .put("version", job.getVersion()).put("queued_ms", job.getQueuedMillis()).put("training_ms", job.getTrainingMillis());
+    }
+
+    private static void respondQuietly(HttpExchange exchange, String message) {
+        respondQuietly(exchange, 200, message);
+    }
+
+    private static void respondQuietly(HttpExchange exchange, int status, String message) {
+        try {
+            respond(exchange, status, new JSONObject().put("message", message));
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "answer failed", ex);
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, JSONObject result) throws IOException {
+        respond(exchange, 200, result);
+    }
+
+    private static void respond(HttpExchange exchange, int status, JSONObject result) throws IOException {
+        byte[] body = result.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void fail(HttpExchange exchange) {
+        try {
+            exchange.sendResponseHeaders(500, -1);
+        } catch (IOException ex) {
+            //connection already gone
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            body.write(buffer, 0, bytesRead);
+        }
+        return body.toByteArray();
+    }
+
+    //one virtual thread per request where the JVM has them, a request blocked on MySql then costs no platform thread
+    private static ExecutorService requestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception ex) {
+            LOG.info("virtual threads not available, using a thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     Handler of a webservice taking a JSON object. Errors answer 500, the handler may answer later from
+     another thread
+     */
+    private abstract static class JsonHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) {
+            try {
+                handle(exchange, new JSONObject(new String(readBody(exchange.getRequestBody()), "UTF-8")));
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, exchange.getRequestURI() + " failed", ex);
+                fail(exchange);
+            }
+        }
+
+        abstract void handle(HttpExchange exchange, JSONObject request) throws Exception;
+    }
+}
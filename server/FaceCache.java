@@ -0,0 +1,210 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class is a persistent, size bounded cache of preprocessed faces (decoded, resized, gamma adjusted)
+ keyed by the SHA-1 of the received JPEG. Every training used to decode and preprocess every image again,
+ and a new enrollment of the same person starts from an empty folder. With the cache each face is
+ preprocessed once, and a model can be rebuilt from the cache with one sequential read.
+ Task performs:
+ 1. Map one file of fixed size records into memory, used as a ring: once full the oldest face is overwritten
+ 2. Build the hash index with one pass over the file when it is opened
+ 3. Look up and store faces by hash, read all faces in slot order for a rebuild
+ File format, little endian, shared with the Flask webservice (FaceCache in add_person.py):
+    header of 8 int32: magic, width, height, capacity, count, next slot, 2 reserved
+    record: 20 bytes SHA-1, int32 label, height x width gray pixels
+ A file written for another image size or capacity is started over.
+ */
+
+package edu.memphis.com.safeaccess.server;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+public class FaceCache {
+    private static final Logger LOG = Logger.getLogger("enrollment");
+    private static final int MAGIC = 0x43464153;
+    private static final int HEADER_BYTES = 32;
+    private static final int HASH_BYTES = 20;
+    private static final int COUNT_OFFSET = 16;
+    private static final int NEXT_OFFSET = 20;
+
+    private final MappedByteBuffer map;
+    private final int width;
+    private final int height;
+    private final int capacity;
+    private final int recordBytes;
+    private final Map<ByteBuffer, Integer> index = new HashMap<>(); //hash -> slot
+
+    /**
+     This method is to open or create the cache file
+     parameter: file, width, height - size of preprocessed faces, maxBytes - size bound of the file
+     return: cache
+     exception: IOException when the file can not be mapped
+     */
+    public static FaceCache open(File file, int width, int height, long maxBytes) throws IOException {
+        int recordBytes = HASH_BYTES + 4 + width * height;
+        int capacity = (int) Math.max(1, (Math.min(maxBytes, Integer.MAX_VALUE) - HEADER_BYTES) / recordBytes); //one mapping holds at most 2 GB
+        long size = HEADER_BYTES + (long) capacity * recordBytes;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean matches = raf.length() == size;
+            if (matches) {
+                ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                raf.getChannel().read(header, 0);
+                matches = header.getInt(0) == MAGIC && header.getInt(4) == width && header.getInt(8) == height
+                        && header.getInt(12) == capacity;
+            }
+            if (!matches) {
+                LOG.info("face cache does not match the configuration, starting over");
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (!matches) {
+                map.putInt(0, MAGIC);
+                map.putInt(4, width);
+                map.putInt(8, height);
+                map.putInt(12, capacity);
+            }
+            return new FaceCache(map, width, height, capacity, recordBytes);
+        } finally {
+            raf.close(); //the mapping stays valid
+        }
+    }
+
+    private FaceCache(MappedByteBuffer map, int width, int height, int capacity, int recordBytes) {
+        this.map = map;
+        this.width = width;
+        this.height = height;
+        this.capacity = capacity;
+        this.recordBytes = recordBytes;
+        int count = getCount();
+        for (int slot = 0; slot < count; slot++) {
+            index.put(ByteBuffer.wrap(hashAt(slot)), slot);
+        }
+        LOG.info("face cache faces " + count + " capacity " + capacity);
+    }
+
+    public static byte[] digest(byte[] jpeg) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(jpeg);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex); //every JVM has SHA-1
+        }
+    }
+
+    /**
+     This method is to look up a face
+     parameter: digest - SHA-1 of the JPEG
+     return: cached face, null when not cached
+     exception: none
+     */
+    public synchronized Face get(byte[] digest) {
+        Integer slot = index.get(ByteBuffer.wrap(digest));
+        return slot == null ? null : faceAt(slot);
+    }
+
+    /**
+     This method is to store a face, overwriting the oldest one when the cache is full
+     parameter: digest - SHA-1 of the JPEG, label - person id, pixels - height x width preprocessed gray pixels
+     return: None
+     exception: none
+     */
+    public synchronized void put(byte[] digest, int label, byte[] pixels) {
+        ByteBuffer key = ByteBuffer.wrap(digest.clone());
+        Integer slot = index.get(key);
+        if (slot == null) {
+            slot = map.getInt(NEXT_OFFSET);
+            int count = getCount();
+            if (count == capacity) {
+                index.remove(ByteBuffer.wrap(hashAt(slot)));
+            }
+            map.putInt(NEXT_OFFSET, (slot + 1) % capacity);
+            map.putInt(COUNT_OFFSET, Math.min(count + 1, capacity));
+        }
+        int offset = HEADER_BYTES + slot * recordBytes;
+        ByteBuffer record = map.duplicate();
+        record.order(ByteOrder.LITTLE_ENDIAN);
+        record.position(offset);
+        record.put(digest, 0, HASH_BYTES);
+        record.putInt(label);
+        record.put(pixels, 0, width * height);
+        index.put(key, slot);
+    }
+
+    public synchronized int getCount() {
+        return map.getInt(COUNT_OFFSET);
+    }
+
+    /**
+     This method is to read faces in slot order, for a rebuild
+     parameter: start - first slot, count - number of faces
+     return: faces
+     exception: none
+     */
+    public synchronized List<Face> read(int start, int count) {
+        int end = Math.min(getCount(), start + count);
+        List<Face> faces = new ArrayList<>();
+        for (int slot = start; slot < end; slot++) {
+            faces.add(faceAt(slot));
+        }
+        return faces;
+    }
+
+    public void flush() {
+        map.force();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    private byte[] hashAt(int slot) {
+        byte[] hash = new byte[HASH_BYTES];
+        ByteBuffer record = map.duplicate();
+        record.position(HEADER_BYTES + slot * recordBytes);
+        record.get(hash);
+        return hash;
+    }
+
+    private Face faceAt(int slot) {
+        ByteBuffer record = map.duplicate();
+        record.order(ByteOrder.LITTLE_ENDIAN);
+        record.position(HEADER_BYTES + slot * recordBytes + HASH_BYTES);
+        int label = record.getInt();
+        byte[] pixels = new byte[width * height];
+        record.get(pixels);
+        return new Face(label, pixels);
+    }
+
+    /**
+     A cached face
+     */
+    public static class Face {
+        public final int label;
+        public final byte[] pixels;
+
+        Face(int label, byte[] pixels) {
+            this.label = label;
+            this.pixels = pixels;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class stores received face images in the folder of a person, with the same file names the Flask
+ webservice uses so the training code finds them: subject<person id>.<milliseconds>_<image id>.jpg
+ LBP descriptors uploaded instead of images are stored the same way with the extension .lbp
+ Task performs:
+ 1. Create an empty folder for a person, removing images of an earlier enrollment
+ 2. Write an image asynchronously, the caller gets a future instead of waiting for the disk
+ Writes run on a small I/O pool of their own, request threads never wait for the disk.
+ */
+
+package edu.memphis.com.safeaccess.server;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+public class ImageStore {
+    public static final String DESCRIPTOR_EXTENSION = ".lbp";
+
+    private final File directory;
+    private final ExecutorService ioPool;
+
+    /**
+     This constructor is to store images below a directory
+     parameter: directory - "directory" of config.env, ioThreads - threads completing the writes
+     return: None
+     exception: none
+     */
+    public ImageStore(File directory, int ioThreads) {
+        this.directory = directory;
+        this.ioPool = Executors.newFixedThreadPool(ioThreads);
+    }
+
+    public File personFolder(String personName) {
+        if (personName == null || personName.isEmpty() || personName.contains("/") || personName.contains("\\")
+                || personName.equals("..") || personName.equals(".")) {
+            throw new IllegalArgumentException("invalid person name " + personName);
+        }
+        return new File(directory, personName);
+    }
+
+    /**
+     This method is to start an enrollment with an empty folder, images of an earlier enrollment were
+     already used for training
+     parameter: personName
+     return: None
+     exception: IOException
+     */
+    public void resetPersonFolder(String personName) throws IOException {
+        Path folder = personFolder(personName).toPath();
+        if (Files.exists(folder)) {
+            try (Stream<Path> paths = Files.walk(folder)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+        Files.createDirectories(folder);
+    }
+
+    /**
+     This method is to write an image without waiting for it
+     parameter: personName, personId, receivedMillis - time the request arrived, imageId, jpeg
+     return: future completed once the image is on disk
+     exception: none, failures complete the future exceptionally
+     */
+    public CompletableFuture<Integer> write(String personName, Object personId, long receivedMillis, final int imageId,
+                                            byte[] jpeg) {
+        return write(personName, personId, receivedMillis, imageId, jpeg, ".jpg");
+    }
+
+    /**
+     This method is to write an image or a descriptor without waiting for it
+     parameter: personName, personId, receivedMillis - time the request arrived, imageId, bytes, extension - .jpg or
+                DESCRIPTOR_EXTENSION
+     return: future completed once the file is on disk
+     exception: none, failures complete the future exceptionally
+     */
+    public CompletableFuture<Integer> write(String personName, Object personId, long receivedMillis, final int imageId,
+                                            byte[] bytes, String extension) {
+        final CompletableFuture<Integer> written = new CompletableFuture<>();
+        final AsynchronousFileChannel channel;
+        try {
+            File file = new File(personFolder(personName), "subject" + personId + "." + receivedMillis + "_" + imageId + extension);
+            channel = AsynchronousFileChannel.open(file.toPath(), EnumSet.of(StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), ioPool);
+        } catch (Exception ex) {
+            written.completeExceptionally(ex);
+            return written;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        channel.write(buffer, 0, null, new CompletionHandler<Integer, Object>() {
+            @Override
+            public void completed(Integer bytes, Object attachment) {
+                if (buffer.hasRemaining()) {//partial write, continue where it stopped
+                    channel.write(buffer, buffer.position(), null, this);
+                    return;
+                }
+                close(channel);
+                written.complete(imageId);
+            }
+
+            @Override
+            public void failed(Throwable ex, Object attachment) {
+                close(channel);
+                written.completeExceptionally(ex);
+            }
+        });
+        return written;
+    }
+
+    public void shutdown() {
+        ioPool.shutdown();
+    }
+
+    private static void close(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            //the image is written, nothing more can be done
+        }
+    }
+}
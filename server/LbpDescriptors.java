@@ -0,0 +1,163 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class reads the LBP descriptors phones upload instead of face images (LbpDescriptor of the app) and
+ writes them into an LBPH model. OpenCV has no call to add a histogram to an LBPH recognizer, but the
+ recognizer reads its histograms from the .yml model, so the model is written with the histograms of the
+ recognizer followed by the received ones and read back.
+ Task performs:
+ 1. Check that a descriptor was computed with the parameters and image size of the recognizer
+ 2. Turn a descriptor into the normalized spatial histogram LBPH keeps (counts divided by the cell size)
+ 3. Write a model of the histograms and labels of a recognizer plus received histograms, in the format of
+    LBPHFaceRecognizer.write
+ Descriptor format: see LbpDescriptor of the app.
+ */
+
+package edu.memphis.com.safeaccess.server;
+import org.opencv.core.Mat;
+import org.opencv.face.LBPHFaceRecognizer;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+public class LbpDescriptors {
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 10;
+
+    private final int width;
+    private final int height;
+    private final int radius;
+    private final int neighbors;
+    private final int gridX;
+    private final int gridY;
+
+    /**
+     This constructor is to accept descriptors matching the recognizer
+     parameter: width, height - size of preprocessed training faces, recognizer - its LBP parameters are used
+     return: None
+     exception: none
+     */
+    public LbpDescriptors(int width, int height, LBPHFaceRecognizer recognizer) {
+        this.width = width;
+        this.height = height;
+        this.radius = recognizer.getRadius();
+        this.neighbors = recognizer.getNeighbors();
+        this.gridX = recognizer.getGridX();
+        this.gridY = recognizer.getGridY();
+    }
+
+    /**
+     This method is to check the header of a descriptor without decoding it
+     parameter: descriptor
+     return: true when it was computed like the histograms of the recognizer
+     exception: none
+     */
+    public boolean accepts(byte[] descriptor) {
+        if (descriptor.length < HEADER_BYTES || descriptor[0] != 'L' || descriptor[1] != VERSION) {
+            return false;
+        }
+        int descriptorWidth = ((descriptor[2] & 0xFF) << 8) | (descriptor[3] & 0xFF);
+        int descriptorHeight = ((descriptor[4] & 0xFF) << 8) | (descriptor[5] & 0xFF);
+        return descriptorWidth == width && descriptorHeight == height && descriptor[6] == radius
+                && descriptor[7] == neighbors && descriptor[8] == gridX && descriptor[9] == gridY;
+    }
+
+    /**
+     This method is to decode a descriptor into the histogram LBPH keeps for a face
+     parameter: descriptor
+     return: gridX * gridY * 2^neighbors values, each cell sums to 1
+     exception: IOException when the descriptor is not valid
+     */
+    public float[] histogram(byte[] descriptor) throws IOException {
+        if (!accepts(descriptor)) {
+            throw new IOException("descriptor does not match the recognizer");
+        }
+        int bins = 1 << neighbors;
+        float cellSize = ((width - 2 * radius) / gridX) * ((height - 2 * radius) / gridY);
+        float[] histogram = new float[gridX * gridY * bins];
+        DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(descriptor, HEADER_BYTES, descriptor.length - HEADER_BYTES)));
+        try {
+            for (int cell = 0; cell < gridX * gridY; cell++) {
+                int used = in.readUnsignedShort();
+                for (int binIterator = 0; binIterator < used; binIterator++) {
+                    int bin = in.readUnsignedByte();
+                    int count = in.readUnsignedByte();
+                    if (count == 255) {
+                        count = in.readUnsignedShort();
+                    }
+                    histogram[cell * bins + bin] = count / cellSize;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return histogram;
+    }
+
+    /**
+     This method is to write a model holding the histograms of a recognizer and received histograms
+     parameter: file, base - recognizer whose histograms come first, null when there is no model yet,
+                histograms, labels - received histograms and their person ids
+     return: None
+     exception: IOException
+     */
+    public void writeModel(File file, LBPHFaceRecognizer base, List<float[]> histograms, List<Integer> labels) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write("%YAML:1.0\n---\nopencv_lbphfaces:\n");
+            out.write("   threshold: " + (base == null ? Double.MAX_VALUE : base.getThreshold()) + "\n");
+            out.write("   radius: " + radius + "\n   neighbors: " + neighbors + "\n");
+            out.write("   grid_x: " + gridX + "\n   grid_y: " + gridY + "\n");
+            out.write("   histograms:\n");
+            int[] baseLabels = new int[0];
+            if (base != null) {
+                for (Mat histogram : base.getHistograms()) {
+                    float[] values = new float[histogram.cols()];
+                    histogram.get(0, 0, values);
+                    writeHistogram(out, values);
+                }
+                Mat labelMat = base.getLabels();
+                baseLabels = new int[labelMat.rows()];
+                labelMat.get(0, 0, baseLabels);
+            }
+            for (float[] histogram : histograms) {
+                writeHistogram(out, histogram);
+            }
+            out.write("   labels: !!opencv-matrix\n      rows: " + (baseLabels.length + labels.size())
+                    + "\n      cols: 1\n      dt: i\n      data: [");
+            String separator = " ";
+            for (int label : baseLabels) {
+                out.write(separator + label);
+                separator = ", ";
+            }
+            for (int label : labels) {
+                out.write(separator + label);
+                separator = ", ";
+            }
+            out.write(" ]\n   labelsInfo:\n      []\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    //one histogram as a 1 x n float matrix, zeros written short since most bins are empty
+    private static void writeHistogram(Writer out, float[] values) throws IOException {
+        out.write("      - !!opencv-matrix\n         rows: 1\n         cols: " + values.length
+                + "\n         dt: f\n         data: [");
+        for (int valueIterator = 0; valueIterator < values.length; valueIterator++) {
+            out.write(valueIterator == 0 ? " " : ", ");
+            out.write(values[valueIterator] == 0 ? "0." : Float.toString(values[valueIterator]));
+        }
+        out.write(" ]\n");
+    }
+}
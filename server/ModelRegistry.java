@@ -0,0 +1,274 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class keeps the versions of the face recognition model. The Flask webservice finds the latest model
+ by sorting every file of the model folder on each call, and a recognizer reads the .yml from disk when it
+ switches. Here the versions are kept in a catalog and the active one is held loaded in memory.
+ Task performs:
+ 1. Keep a catalog of versions (number, path, time) in catalog.tsv next to the models, appended to on
+    every new version. On the first start the catalog is built once from the files of the model folder
+ 2. Load a new version before it is published, then swap it in with one reference write. Recognition
+    takes the active version once per request, so a request in flight finishes on the version it started
+    with and no request waits for a load
+ 3. Keep the active version and "keepWarm" versions before it loaded, so rolling back to them is a swap
+ 4. Roll back to any version of the catalog, loading it first if it is no longer warm
+ */
+
+package edu.memphis.com.safeaccess.server;
+import org.opencv.core.Mat;
+import org.opencv.face.LBPHFaceRecognizer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class ModelRegistry {
+    private static final Logger LOG = Logger.getLogger("enrollment");
+    private static final String CATALOG = "catalog.tsv";
+
+    private final File catalogFile;
+    private final int keepWarm;
+    private final List<ModelVersion> catalog = new ArrayList<>(); //oldest first, guarded by this
+    private final AtomicReference<ModelVersion> active = new AtomicReference<>();
+
+    /**
+     This method is to open the catalog and load the latest version
+     parameter: catalogFolder - where catalog.tsv is kept, modelFolder - scanned when there is no catalog yet,
+                keepWarm - previous versions kept loaded
+     return: registry, without an active version when there is no model yet
+     exception: none
+     */
+    public static ModelRegistry open(File catalogFolder, File modelFolder, int keepWarm) {
+        ModelRegistry registry = new ModelRegistry(new File(catalogFolder, CATALOG), keepWarm);
+        try {
+            if (registry.catalogFile.exists()) {
+                registry.readCatalog();
+            } else {
+                registry.seedCatalog(modelFolder);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "model catalog not readable", ex);
+        }
+        synchronized (registry) {
+            for (int versionIterator = registry.catalog.size() - 1; versionIterator >= 0; versionIterator--) {
+                ModelVersion latest = registry.catalog.get(versionIterator);
+                if (new File(latest.path).exists() && registry.load(latest)) {
+                    registry.active.set(latest);
+                    break;
+                }
+            }
+        }
+        return registry;
+    }
+
+    private ModelRegistry(File catalogFile, int keepWarm) {
+        this.catalogFile = catalogFile;
+        this.keepWarm = Math.max(0, keepWarm);
+    }
+
+    /**
+     This method is to add a newly written model as the active version
+     parameter: path - .yml written by the trainer
+     return: the new version, null when it can not be loaded
+     exception: none
+     */
+    public synchronized ModelVersion publish(String path) {
+        ModelVersion version = new ModelVersion(nextVersion(), path, System.currentTimeMillis());
+        if (!load(version)) {//loaded before the swap, recognition never waits for it
+            return null;
+        }
+        catalog.add(version);
+        appendCatalog(version);
+        active.set(version);
+        evict();
+        LOG.info("model version " + version.version + " active " + path);
+        return version;
+    }
+
+    /**
+     This method is to make an earlier version active again
+     parameter: version - version number, 0 or less for the one before the active version
+     return: the version now active, null when there is no such version
+     exception: none
+     */
+    public synchronized ModelVersion rollback(int version) {
+        ModelVersion current = active.get();
+        ModelVersion target = null;
+        for (ModelVersion candidate : catalog) {
+            if (version > 0 ? candidate.version == version
+                    : current != null && candidate.version < current.version) {
+                target = candidate; //for "previous" the last one before the active version wins
+            }
+        }
+        if (target == null || !load(target)) {
+            return null;
+        }
+        active.set(target);
+        evict();
+        LOG.info("model rolled back to version " + target.version);
+        return target;
+    }
+
+    public ModelVersion getActive() {
+        return active.get();
+    }
+
+    public synchronized List<ModelVersion> getCatalog() {
+        return new ArrayList<>(catalog);
+    }
+
+    /**
+     This method is to recognize a preprocessed face with the active version
+     parameter: face - gray face, preprocessed like training images
+     return: label, confidence and version, null when there is no model
+     exception: none
+     */
+    public Prediction predict(Mat face) {
+        ModelVersion version = active.get(); //one read, a swap during the prediction does not affect it
+        LBPHFaceRecognizer recognizer = version == null ? null : version.recognizer;
+        if (recognizer == null) {
+            return null;
+        }
+        int[] label = new int[1];
+        double[] confidence = new double[1];
+        recognizer.predict(face, label, confidence);
+        return new Prediction(label[0], confidence[0], version.version);
+    }
+
+    //caller holds the lock. Reads the .yml unless the version is still warm
+    private boolean load(ModelVersion version) {
+        if (version.recognizer != null) {
+            return true;
+        }
+        try {
+            LBPHFaceRecognizer recognizer = LBPHFaceRecognizer.create();
+            recognizer.read(version.path);
+            version.recognizer = recognizer;
+            return true;
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "model not loadable " + version.path, ex);
+            return false;
+        }
+    }
+
+    //caller holds the lock. The active version and keepWarm versions before it stay loaded
+    private void evict() {
+        ModelVersion current = active.get();
+        int warm = 0;
+        for (int versionIterator = catalog.size() - 1; versionIterator >= 0; versionIterator--) {
+            ModelVersion version = catalog.get(versionIterator);
+            if (version == current) {
+                continue;
+            }
+            if (current != null && version.version < current.version && warm < keepWarm) {
+                warm++;
+                continue;
+            }
+            version.recognizer = null; //requests still using it keep their own reference
+        }
+    }
+
+    private int nextVersion() {
+        return catalog.isEmpty() ? 1 : catalog.get(catalog.size() - 1).version + 1;
+    }
+
+    private void readCatalog() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(catalogFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 3) {
+                    catalog.add(new ModelVersion(Integer.parseInt(fields[0]), fields[1], Long.parseLong(fields[2])));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    //first start: every model of the folder becomes a version, oldest first
+    private void seedCatalog(File modelFolder) throws IOException {
+        File[] files = modelFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return Long.compare(first.lastModified(), second.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(".yml")) {
+                ModelVersion version = new ModelVersion(nextVersion(), file.getPath(), file.lastModified());
+                catalog.add(version);
+                appendCatalog(version);
+            }
+        }
+    }
+
+    private void appendCatalog(ModelVersion version) {
+        File folder = catalogFile.getParentFile();
+        try {
+            if (folder != null && !folder.exists() && !folder.mkdirs()) {
+                throw new IOException("can not create " + folder);
+            }
+            Writer writer = new FileWriter(catalogFile, true);
+            try {
+                writer.write(version.version + "\t" + version.path + "\t" + version.createdMillis + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "model catalog not writable", ex);
+        }
+    }
+
+    /**
+     One model version. The recognizer is set while the version is warm
+     */
+    public static class ModelVersion {
+        public final int version;
+        public final String path;
+        public final long createdMillis;
+        volatile LBPHFaceRecognizer recognizer;
+
+        ModelVersion(int version, String path, long createdMillis) {
+            this.version = version;
+            this.path = path;
+            this.createdMillis = createdMillis;
+        }
+
+        public boolean isWarm() {
+            return recognizer != null;
+        }
+    }
+
+    /**
+     Answer of a recognition
+     */
+    public static class Prediction {
+        public final int label;
+        public final double confidence;
+        public final int version;
+
+        Prediction(int label, double confidence, int version) {
+            this.label = label;
+            this.confidence = confidence;
+            this.version = version;
+        }
+    }
+}
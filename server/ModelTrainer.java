@@ -0,0 +1,565 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class trains the LBPH face recognition model of the enrollment server. Reading every image of a
+ person back from disk once the upload is over puts seconds of decoding between the last image and a new
+ model, so images are added to the recognizer while they arrive and a training job only has to write
+ the model. All work is queued to one worker thread and runs in arrival order (the recognizer is updated
+ in place and is not thread safe).
+ Task performs:
+ 1. Load the latest model of the model folder at start up
+ 2. Queue received images: decode, resize and adjust gamma like the Flask webservice, update the recognizer
+ 3. Queue a training job of one person or of a batch of persons (bulk import), the caller gets the job right
+    away and polls it or waits on it. A batch writes one model
+ 4. A job writes the model as .yml and publishes it as a new version of the model registry. Images of a
+    person never added incrementally (server restarted during the upload) are read from the person folder first
+ 5. Keep preprocessed faces in the face cache: a face received again (same person enrolled again, training
+    from the folder) is not decoded again. A face is skipped as a duplicate only when this process added it to
+    the recognizer it holds, a cached face may belong to an upload whose model was never written (server
+    restarted before trainmodel)
+ 6. Queue a rebuild job: train a new recognizer from the face cache alone, without decoding any image
+ 7. Keep recent jobs by id
+ 8. Queue LBP descriptors computed by the phone: they are already the histograms LBPH keeps, a job writes
+    them into the model next to the histograms of the recognizer (see LbpDescriptors). They are not in the
+    face cache, a rebuild only covers faces received as images
+ 9. Queue a rollback: the registry serves the earlier version and the recognizer is read back from it, so the
+    next job does not publish what was rolled back. Images added since are dropped with it, a person trained
+    later is read from the person folder
+ */
+
+package edu.memphis.com.safeaccess.server;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
+import org.opencv.face.LBPHFaceRecognizer;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class ModelTrainer {
+    private static final Logger LOG = Logger.getLogger("enrollment");
+    private static final double GAMMA = 1.3; //same correction as the Flask webservice
+    private static final int KEPT_JOBS = 100; //finished jobs kept for polling
+    private static final int REBUILD_CHUNK = 1000; //cached faces handed to the recognizer at once
+
+    private final ImageStore images;
+    private final File modelOutput;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final FaceCache faceCache;
+    private LBPHFaceRecognizer recognizer = LBPHFaceRecognizer.create(); //worker only, replaced by a rebuild or rollback
+    private final Mat gammaTable;
+    private final Map<String, Job> jobs = new LinkedHashMap<>(); //oldest first, guarded by itself
+    private final Map<String, Integer> incrementalImages = new HashMap<>(); //person -> images added since enrollment, worker only
+    private boolean hasModel = false; //only touched by the worker
+    private final Set<ByteBuffer> inRecognizer = new HashSet<>(); //digests of faces added to the recognizer held now, worker only
+    private final LbpDescriptors descriptors;
+    private final List<float[]> pendingHistograms = new ArrayList<>(); //received descriptors not in the model yet, worker only
+    private final List<Integer> pendingLabels = new ArrayList<>();
+    private final ModelRegistry registry;
+
+    /**
+     This constructor is to create the trainer and continue from the active model version
+     parameter: images, registry - versions of the model, faceCache - preprocessed faces, modelOutput - folder
+                new models are written to, imageWidth, imageHeight - training image size
+     return: None
+     exception: none
+     */
+    public ModelTrainer(ImageStore images, ModelRegistry registry, FaceCache faceCache, File modelOutput,
+                        int imageWidth, int imageHeight) {
+        this.images = images;
+        this.faceCache = faceCache;
+        this.registry = registry;
+        this.modelOutput = modelOutput;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.gammaTable = gammaTable(GAMMA);
+        this.descriptors = new LbpDescriptors(imageHeight, imageWidth, recognizer); //preprocessed faces are imageHeight wide
+        ModelRegistry.ModelVersion active = registry.getActive();
+        if (active != null) {
+            recognizer.read(active.path); //a copy of its own, the registry copy serves recognition
+            hasModel = true;
+        } else {
+            LOG.info("No model. This will be the first model");
+        }
+    }
+
+    /**
+     This method is to queue images of a person for the recognizer, they are added before any job queued later
+     parameter: personName, label - person id, jpegs - received images
+     return: None
+     exception: none
+     */
+    public void addImages(final String personName, final int label, final List<byte[]> jpegs) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<Mat> faces = new ArrayList<>();
+                    List<ByteBuffer> added = new ArrayList<>();
+                    int handled = 0;
+                    for (byte[] jpeg : jpegs) {
+                        ByteBuffer digest = ByteBuffer.wrap(FaceCache.digest(jpeg));
+                        if (inRecognizer.contains(digest) || added.contains(digest)) {
+                            handled++; //added to this recognizer when it was first received
+                            continue;
+                        }
+                        Mat face = cachedFace(jpeg, label); //a cache hit is not decoded, but still added
+                        if (face != null) {
+                            faces.add(face);
+                            added.add(digest);
+                            handled++;
+                        }
+                    }
+                    update(faces, label);
+                    inRecognizer.addAll(added);
+                    faceCache.flush();
+                    Integer count = incrementalImages.get(personName);
+                    incrementalImages.put(personName, (count == null ? 0 : count) + handled);
+                } catch (Exception ex) {
+                    LOG.log(Level.SEVERE, "Failed to add images of " + personName, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     This method is to check a descriptor before it is stored and acknowledged
+     parameter: descriptor
+     return: true when it matches the recognizer
+     exception: none
+     */
+    public boolean acceptsDescriptor(byte[] descriptor) {
+        return descriptors.accepts(descriptor);
+    }
+
+    /**
+     This method is to queue LBP descriptors of a person, they are in the next model written
+     parameter: personName, label - person id, received - descriptors
+     return: None
+     exception: none
+     */
+    public void addDescriptors(final String personName, final int label, final List<byte[]> received) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                int handled = 0;
+                for (byte[] descriptor : received) {
+                    try {
+                        pendingHistograms.add(descriptors.histogram(descriptor));
+                        pendingLabels.add(label);
+                        handled++;
+                    } catch (IOException ex) {
+                        LOG.log(Level.WARNING, "Skipped a descriptor of " + personName, ex);
+                    }
+                }
+                Integer added = incrementalImages.get(personName);
+                incrementalImages.put(personName, (added == null ? 0 : added) + handled);
+            }
+        });
+    }
+
+    /**
+     This method is to forget images added for a person, a new enrollment starts from an empty folder
+     parameter: personName
+     return: None
+     exception: none
+     */
+    public void resetPerson(final String personName) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                incrementalImages.remove(personName);
+            }
+        });
+    }
+
+    /**
+     This method is to queue a training job of a person. It runs after every image queued before it
+     parameter: personName
+     return: job, its future completes with the path of the new model, empty when training failed
+     exception: none
+     */
+    public Job submit(final String personName) {
+        return submit(Collections.singletonList(personName));
+    }
+
+    /**
+     This method is to queue one training job for a batch of persons, e.g. a bulk import. Persons without
+     images added since enrollment are read from their folders, one model is written for all of them
+     parameter: personNames
+     return: job, its future completes with the path of the new model, empty when training failed
+     exception: none
+     */
+    public Job submit(final List<String> personNames) {
+        return queue(personNames, false);
+    }
+
+    /**
+     This method is to queue a rebuild: a new model trained from every cached face, no image is decoded.
+     Faces evicted from the cache are not part of it
+     parameter: None
+     return: job, its future completes with the path of the new model, empty when the rebuild failed
+     exception: none
+     */
+    public Job submitRebuild() {
+        return queue(Collections.<String>emptyList(), true);
+    }
+
+    /**
+     This method is to queue a rollback. It runs after every image and job queued before it
+     parameter: version - version number, 0 or less for the one before the active version
+     return: future of the version now active, null when there is no such version
+     exception: none
+     */
+    public CompletableFuture<ModelRegistry.ModelVersion> rollback(final int version) {
+        final CompletableFuture<ModelRegistry.ModelVersion> done = new CompletableFuture<>();
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                ModelRegistry.ModelVersion target = null;
+                try {
+                    target = registry.rollback(version);
+                    if (target != null) {
+                        LBPHFaceRecognizer restored = LBPHFaceRecognizer.create();
+                        restored.read(target.path);
+                        recognizer = restored;
+                        hasModel = true;
+                        incrementalImages.clear(); //their images left with the rolled back versions
+                        inRecognizer.clear();
+                    }
+                } catch (Exception ex) {
+                    LOG.log(Level.SEVERE, "Rollback of the recognizer failed", ex);
+                }
+                done.complete(target);
+            }
+        });
+        return done;
+    }
+
+    private Job queue(final List<String> personNames, final boolean rebuild) {
+        final String personName = String.join(",", personNames);
+        final Job job = new Job(UUID.randomUUID().toString(), personName);
+        synchronized (jobs) {
+            forgetOldJobs();
+            jobs.put(job.id, job);
+        }
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                job.startedNanos = System.nanoTime();
+                job.status = Job.RUNNING;
+                String modelPath = "";
+                try {
+                    modelPath = rebuild ? rebuild() : train(personNames);
+                } catch (Exception ex) {
+                    LOG.log(Level.SEVERE, "Training failed for " + personName, ex);
+                }
+                job.finishedNanos = System.nanoTime();
+                ModelRegistry.ModelVersion active = registry.getActive();
+                job.version = active != null && active.path.equals(modelPath) ? active.version : 0;
+                job.modelPath = modelPath;
+                job.status = modelPath.isEmpty() ? Job.FAILED : Job.DONE;
+                job.done.complete(modelPath);
+            }
+        });
+        return job;
+    }
+
+    public Job getJob(String jobId) {
+        synchronized (jobs) {
+            return jobs.get(jobId);
+        }
+    }
+
+    /**
+     This method is to resize and adjust gamma of a gray face in place, the same steps as training images
+     parameter: face - gray face
+     return: the same Mat
+     exception: none
+     */
+    public Mat preprocess(Mat face) {
+        Imgproc.resize(face, face, new Size(imageHeight, imageWidth), 0, 0, Imgproc.INTER_LINEAR); //same order as the Flask webservice
+        Core.LUT(face, gammaTable, face);
+        return face;
+    }
+
+    public void shutdown() {
+        worker.shutdown();
+    }
+
+    //images are already in the recognizer unless none arrived since the person was enrolled, only the model is
+    //written. A person whose folder has no image is left out, the model is written if any person is in it
+    private String train(List<String> personNames) {
+        LOG.info("Face recognizer training starts....");
+        boolean trained = false;
+        for (String personName : personNames) {
+            Integer added = incrementalImages.remove(personName);
+            if (added != null && added > 0 || updateFromFolder(personName)) {
+                trained = true;
+            } else {
+                LOG.warning("No image of " + personName + " to train");
+            }
+        }
+        if (!trained) {
+            return "";
+        }
+        return writeModel();
+    }
+
+    //a fresh recognizer trained chunk by chunk from the cache, it replaces the one updated so far. Descriptors
+    //already written into the model are dropped, those still pending join the rebuilt model
+    private String rebuild() {
+        LOG.info("Face recognizer rebuild from cache starts....");
+        LBPHFaceRecognizer rebuilt = LBPHFaceRecognizer.create();
+        boolean trained = false;
+        int count = faceCache.getCount();
+        for (int start = 0; start < count; start += REBUILD_CHUNK) {
+            List<Mat> faces = new ArrayList<>();
+            List<FaceCache.Face> cached = faceCache.read(start, REBUILD_CHUNK);
+            Mat labelMat = new Mat(cached.size(), 1, CvType.CV_32SC1);
+            for (int faceIterator = 0; faceIterator < cached.size(); faceIterator++) {
+                FaceCache.Face face = cached.get(faceIterator);
+                Mat pixels = new Mat(faceCache.getHeight(), faceCache.getWidth(), CvType.CV_8UC1);
+                pixels.put(0, 0, face.pixels);
+                faces.add(pixels);
+                labelMat.put(faceIterator, 0, face.label);
+            }
+            if (trained) {
+                rebuilt.update(faces, labelMat);
+            } else {
+                rebuilt.train(faces, labelMat);
+                trained = true;
+            }
+            for (Mat face : faces) {
+                face.release();
+            }
+            labelMat.release();
+        }
+        if (!trained) {
+            return "";
+        }
+        recognizer = rebuilt;
+        hasModel = true;
+        inRecognizer.clear(); //faces re-sent later are added again rather than missed
+        return writeModel();
+    }
+
+    private String writeModel() {
+        if (!hasModel && pendingHistograms.isEmpty()) {
+            return "";
+        }
+        if (!modelOutput.exists() && !modelOutput.mkdirs()) {
+            return "";
+        }
+        String stamp = "lbp_" + Math.round(System.currentTimeMillis() / 1000.0);
+        File modelFile = new File(modelOutput, stamp + ".yml");
+        for (int suffix = 1; modelFile.exists(); suffix++) {//two trainings in one second must not share a version file
+            modelFile = new File(modelOutput, stamp + "_" + suffix + ".yml");
+        }
+        String modelPath = modelFile.getPath();
+        if (pendingHistograms.isEmpty()) {
+            recognizer.write(modelPath);
+        } else {
+            try {//descriptors join the model through the file, the recognizer reads it back
+                descriptors.writeModel(modelFile, hasModel ? recognizer : null, pendingHistograms, pendingLabels);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "can not write " + modelPath, ex);
+                return "";
+            }
+            recognizer.read(modelPath);
+            hasModel = true;
+            pendingHistograms.clear();
+            pendingLabels.clear();
+        }
+        if (!modelFile.exists() || registry.publish(modelPath) == null) {
+            return "";
+        }
+        LOG.info("Face recognizer training END.... " + modelPath);
+        return modelPath;
+    }
+
+    //the path of the Flask webservice: read every image (and descriptor) of the person
+    private boolean updateFromFolder(String personName) {
+        File[] files = images.personFolder(personName).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".jpg") || file.getName().endsWith(ImageStore.DESCRIPTOR_EXTENSION);
+            }
+        });
+        if (files == null || files.length == 0) {
+            return false;
+        }
+        Map<Integer, List<Mat>> facesByLabel = new HashMap<>();
+        int descriptorCount = 0;
+        for (File file : files) {
+            int label = labelOf(file.getName());
+            Mat face;
+            try {
+                if (file.getName().endsWith(ImageStore.DESCRIPTOR_EXTENSION)) {
+                    pendingHistograms.add(descriptors.histogram(Files.readAllBytes(file.toPath())));
+                    pendingLabels.add(label);
+                    descriptorCount++;
+                    continue;
+                }
+                face = cachedFace(Files.readAllBytes(file.toPath()), label);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "can not read " + file, ex);
+                continue;
+            }
+            if (face == null) {
+                continue;
+            }
+            if (!facesByLabel.containsKey(label)) {
+                facesByLabel.put(label, new ArrayList<Mat>());
+            }
+            facesByLabel.get(label).add(face);
+        }
+        for (Map.Entry<Integer, List<Mat>> entry : facesByLabel.entrySet()) {
+            update(entry.getValue(), entry.getKey());
+        }
+        faceCache.flush();
+        return !facesByLabel.isEmpty() || descriptorCount > 0;
+    }
+
+    //preprocessed face of a JPEG, taken from the cache or decoded and cached. Null if it is not an image
+    private Mat cachedFace(byte[] jpeg, int label) {
+        byte[] digest = FaceCache.digest(jpeg);
+        FaceCache.Face cached = faceCache.get(digest);
+        if (cached != null) {
+            Mat face = new Mat(faceCache.getHeight(), faceCache.getWidth(), CvType.CV_8UC1);
+            face.put(0, 0, cached.pixels);
+            return face;
+        }
+        MatOfByte encoded = new MatOfByte(jpeg);
+        Mat face = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_GRAYSCALE);
+        encoded.release();
+        if (face == null || face.empty()) {
+            return null;
+        }
+        preprocess(face);
+        byte[] pixels = new byte[faceCache.getWidth() * faceCache.getHeight()];
+        face.get(0, 0, pixels);
+        faceCache.put(digest, label, pixels);
+        return face;
+    }
+
+    //worker only. Update the model if there is one, train a new one otherwise
+    private void update(List<Mat> faces, int label) {
+        if (faces.isEmpty()) {
+            return;
+        }
+        Mat labelMat = new Mat(faces.size(), 1, CvType.CV_32SC1);
+        for (int labelIterator = 0; labelIterator < faces.size(); labelIterator++) {
+            labelMat.put(labelIterator, 0, label);
+        }
+        if (hasModel) {
+            recognizer.update(faces, labelMat);
+        } else {
+            recognizer.train(faces, labelMat);
+        }
+        hasModel = true;
+        for (Mat face : faces) {
+            face.release();
+        }
+        labelMat.release();
+    }
+
+    //caller holds the lock of jobs
+    private void forgetOldJobs() {
+        if (jobs.size() < KEPT_JOBS) {
+            return;
+        }
+        Iterator<Job> iterator = jobs.values().iterator();
+        while (iterator.hasNext() && jobs.size() >= KEPT_JOBS) {
+            if (iterator.next().done.isDone()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    //subject17.1604191077281_3.jpg -> 17
+    static int labelOf(String fileName) {
+        return Integer.parseInt(fileName.substring(0, fileName.indexOf('.')).replace("subject", ""));
+    }
+
+    private static Mat gammaTable(double gamma) {
+        Mat table = new Mat(1, 256, CvType.CV_8UC1);
+        byte[] values = new byte[256];
+        for (int level = 0; level < 256; level++) {
+            values[level] = (byte) (int) (Math.pow(level / 255.0, 1.0 / gamma) * 255);
+        }
+        table.put(0, 0, values);
+        return table;
+    }
+
+    /**
+     A queued training. Status moves from queued to running to done or failed
+     */
+    public static class Job {
+        public static final String QUEUED = "queued";
+        public static final String RUNNING = "running";
+        public static final String DONE = "done";
+        public static final String FAILED = "failed";
+
+        public final String id;
+        public final String personName;
+        public final CompletableFuture<String> done = new CompletableFuture<>();
+        public final long submittedNanos = System.nanoTime();
+        volatile String status = QUEUED;
+        volatile String modelPath = "";
+        volatile int version = 0;
+        volatile long startedNanos = 0;
+        volatile long finishedNanos = 0;
+
+        Job(String id, String personName) {
+            this.id = id;
+            this.personName = personName;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getModelPath() {
+            return modelPath;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public long getQueuedMillis() {
+            return ((startedNanos > 0 ? startedNanos : System.nanoTime()) - submittedNanos) / 1000000;
+        }
+
+        public long getTrainingMillis() {
+            return startedNanos == 0 ? 0 : ((finishedNanos > 0 ? finishedNanos : System.nanoTime()) - startedNanos) / 1000000;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class keeps the person records of the enrollment server in the MySql table personinfo, with the same
+ queries and the same default ids as the Flask webservice.
+ Task performs:
+ 1. Find the id of a home owner
+ 2. Insert a person if name and phone are not in the table yet, return the id either way. Lookup and insert
+    run under a MySql named lock of the person (GET_LOCK), the one the Flask webservice takes too, so two
+    addperson calls for the same person can not both insert. An upsert (insert ... on duplicate key update)
+    would need a unique key on (name, phone), the schema is not part of this repository and existing tables
+    may hold duplicates that prevent adding one
+ 3. Soft delete a person
+ 4. Keep up to DB_POOL_SIZE connections open for reuse, with prepared statements cached by the driver on
+    each connection. No more than DB_POOL_SIZE connections are in use at once, a request waits for a free one
+ 5. Remember the id of every person looked up or inserted, addperson for a known person runs no query
+ Note: calls block, they run on the request thread. A connection that failed is closed, not reused.
+ */
+
+package edu.memphis.com.safeaccess.server;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class PersonStore {
+    private static final Logger LOG = Logger.getLogger("enrollment");
+    private static final int OWNER_NOT_FOUND = 88888; //ids returned by the Flask webservice when nothing is found
+    private static final int PERSON_NOT_FOUND = -88888;
+    private static final int INSERT_FAILED = -999999;
+    private static final int VALID_TIMEOUT_SECONDS = 2; //check of an idle connection before it is reused
+    private static final int LOCK_TIMEOUT_SECONDS = 10; //longest wait for the named lock of a person
+
+    /**
+     Work done with a borrowed connection
+     */
+    private interface Query<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final BlockingQueue<Connection> idle;
+    private final Semaphore slots; //connections in use, virtual threads must not open one each
+    private final ConcurrentHashMap<String, Integer> personIds = new ConcurrentHashMap<>(); //name and phone -> id
+
+    /**
+     This constructor is to point the store to the database
+     parameter: config - DB_HOST, DB_DATABASE, DB_USERNAME, DB_PASSWORD, DB_POOL_SIZE (optional, 4)
+     return: None
+     exception: none
+     */
+    public PersonStore(ServerConfig config) {
+        //the driver keeps the prepared statements of a connection, server side, as long as the connection lives
+        this.url = "jdbc:mysql://" + config.get("DB_HOST") + "/" + config.get("DB_DATABASE")
+                + "?useServerPrepStmts=true&cachePrepStmts=true";
+        this.user = config.get("DB_USERNAME");
+        this.password = config.get("DB_PASSWORD");
+        int poolSize = Math.max(1, config.getInt("DB_POOL_SIZE", 4));
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+        this.slots = new Semaphore(poolSize, true);
+    }
+
+    public int findOwner(final String ownerName) {
+        return withConnection(new Query<Integer>() {
+            @Override
+            public Integer run(Connection connection) throws SQLException {
+                try (PreparedStatement query = connection.prepareStatement("select * from personinfo where owner_name = ?")) {
+                    query.setString(1, ownerName);
+                    return lastId(query.executeQuery(), OWNER_NOT_FOUND);
+                }
+            }
+        }, OWNER_NOT_FOUND);
+    }
+
+    /**
+     This method is to insert a person unless name and phone are already in the table. A person seen before
+     is answered from memory
+     parameter: name, email, phone, phoneCarier, relation, ownerName
+     return: id of the new or existing person
+     exception: none
+     */
+    public int addPerson(final String name, final String email, final String phone, final String phoneCarier,
+                         final String relation, final String ownerName) {
+        final String key = personKey(name, phone);
+        Integer cached = personIds.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int personId = withConnection(new Query<Integer>() {
+            @Override
+            public Integer run(Connection connection) throws SQLException {
+                String lockName = lockName(key);
+                try (PreparedStatement lock = connection.prepareStatement("select get_lock(?, ?)")) {
+                    lock.setString(1, lockName);
+                    lock.setInt(2, LOCK_TIMEOUT_SECONDS);
+                    ResultSet locked = lock.executeQuery();
+                    if (!locked.next() || locked.getInt(1) != 1) {
+                        throw new SQLException("timed out waiting for " + lockName);
+                    }
+                }
+                try {
+                    return findOrInsert(connection, name, email, phone, phoneCarier, relation, ownerName);
+                } finally {
+                    try (PreparedStatement release = connection.prepareStatement("select release_lock(?)")) {
+                        release.setString(1, lockName);
+                        release.executeQuery().close();
+                    }
+                }
+            }
+        }, INSERT_FAILED);
+        if (personId != INSERT_FAILED) {
+            personIds.put(key, personId);
+        }
+        return personId;
+    }
+
+    //caller holds the named lock of the person, autocommit makes the row visible before it is released
+    private static int findOrInsert(Connection connection, String name, String email, String phone, String phoneCarier,
+                                    String relation, String ownerName) throws SQLException {
+        try (PreparedStatement query = connection.prepareStatement("select * from personinfo where name = ? and phone = ?")) {
+            query.setString(1, name);
+            query.setString(2, phone);
+            int personId = lastId(query.executeQuery(), PERSON_NOT_FOUND);
+            if (personId != PERSON_NOT_FOUND) {
+                return personId;
+            }
+        }
+        try (PreparedStatement insert = connection.prepareStatement("insert into personinfo (name,email,phone,phone_carier,relation,owner_name)"
+                + " values (?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+            insert.setString(1, name);
+            insert.setString(2, email);
+            insert.setString(3, phone);
+            insert.setString(4, phoneCarier);
+            insert.setString(5, relation);
+            insert.setString(6, ownerName);
+            insert.executeUpdate();
+            ResultSet keys = insert.getGeneratedKeys();
+            return keys.next() ? keys.getInt(1) : INSERT_FAILED;
+        }
+    }
+
+    /**
+     This method is to soft delete a person
+     parameter: name, phone
+     return: number of rows changed
+     exception: none
+     */
+    public int deletePerson(final String name, final String phone) {
+        personIds.remove(personKey(name, phone));
+        return withConnection(new Query<Integer>() {
+            @Override
+            public Integer run(Connection connection) throws SQLException {
+                try (PreparedStatement update = connection.prepareStatement("update personinfo set isactive=1 where name = ? and phone = ?")) {
+                    update.setString(1, name);
+                    update.setString(2, phone);
+                    return update.executeUpdate();
+                }
+            }
+        }, INSERT_FAILED);
+    }
+
+    /**
+     This method is to close the idle connections
+     parameter: none
+     return: None
+     exception: none
+     */
+    public void close() {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    //runs the query on an idle connection, or a new one when none is idle, and keeps the connection for reuse.
+    //Waits while DB_POOL_SIZE connections are in use
+    private <T> T withConnection(Query<T> query, T onError) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return onError;
+        }
+        Connection connection = null;
+        try {
+            connection = borrow();
+            T result = query.run(connection);
+            if (!idle.offer(connection)) {
+                closeQuietly(connection); //pool is full
+            }
+            return result;
+        } catch (SQLException ex) {
+            LOG.log(Level.SEVERE, "Error while connecting to MySQL", ex);
+            if (connection != null) {
+                closeQuietly(connection);
+            }
+            return onError;
+        } finally {
+            slots.release();
+        }
+    }
+
+    private Connection borrow() throws SQLException {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            if (connection.isValid(VALID_TIMEOUT_SECONDS)) {
+                return connection;
+            }
+            closeQuietly(connection); //closed by the database while idle
+        }
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            LOG.log(Level.FINE, "closing a connection failed", ex);
+        }
+    }
+
+    private static String personKey(String name, String phone) {
+        return name + "\n" + phone;
+    }
+
+    //names are limited to 64 characters, the SHA-1 of the key fits and is the same in the Flask webservice
+    private static String lockName(String key) throws SQLException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder("personinfo-");
+            for (byte value : digest) {
+                name.append(String.format("%02x", value & 0xff));
+            }
+            return name.toString();
+        } catch (Exception ex) {
+            throw new SQLException(ex);
+        }
+    }
+
+    //the Flask webservice keeps the id of the last matching row
+    private static int lastId(ResultSet rows, int notFound) throws SQLException {
+        int personId = notFound;
+        while (rows.next()) {
+            personId = rows.getInt(1);
+        }
+        rows.close();
+        return personId;
+    }
+}
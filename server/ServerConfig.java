@@ -0,0 +1,80 @@
+/************************************************
+ Copyright (c) 2020 the university of Memphis to present
+ All right reserved
+ Author: Shahinur Alam
+ Email:salam@memphis.edu
+ **************************************************
+This class reads the configuration of the enrollment server from config.env, the same file the Flask
+ webservice (add_person.py) reads, so both servers can run against the same folders and database.
+ Task performs:
+ 1. Parse the [DB] section of config.env (key=value lines, # and ; start a comment)
+ 2. Expose the values the Java server needs with the same names
+ */
+
+package edu.memphis.com.safeaccess.server;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ServerConfig {
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     This method is to read the [DB] section of a config file
+     parameter: path - usually config.env in the working directory
+     return: config
+     exception: IOException when the file can not be read
+     */
+    public static ServerConfig read(String path) throws IOException {
+        ServerConfig config = new ServerConfig();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String section = "";
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith(";")) {
+                    continue;
+                }
+                if (line.startsWith("[") && line.endsWith("]")) {
+                    section = line.substring(1, line.length() - 1).trim();
+                    continue;
+                }
+                int separator = line.indexOf('=');
+                if (separator < 0) {
+                    separator = line.indexOf(':');
+                }
+                if ("DB".equals(section) && separator > 0) {
+                    //configparser keys are case insensitive
+                    config.values.put(line.substring(0, separator).trim().toLowerCase(), line.substring(separator + 1).trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return config;
+    }
+
+    public String get(String key) {
+        String value = values.get(key.toLowerCase());
+        if (value == null) {
+            throw new IllegalArgumentException("missing " + key + " in config");
+        }
+        return value;
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = values.get(key.toLowerCase());
+        return value == null ? defaultValue : value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(get(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+}